@@ -0,0 +1,60 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.easycrab.util.nio.NSSLSocketConnection;
+import net.easycrab.util.nio.NSocketConnection;
+
+/**
+ * TCP connect and TLS handshake cost, each operation opens and closes one connection.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectBenchmark
+{
+
+    @Benchmark
+    public void tcpConnect(LoopbackServerState state) throws Exception
+    {
+        NSocketConnection conn = new NSocketConnection(state.server.getHttpAddress());
+        conn.connect(LoopbackServerState.TIMEOUT);
+        conn.close();
+    }
+
+    // the session cache of the shared config makes this an abbreviated handshake after the first one
+    @Benchmark
+    public SSLSession tlsHandshakeResumed(LoopbackServerState state) throws Exception
+    {
+        NSSLSocketConnection conn = new NSSLSocketConnection(state.server.getHttpsAddress(), state.tlsConfig);
+        conn.connect(LoopbackServerState.TIMEOUT);
+        SSLSession session = conn.getSession();
+        conn.close();
+        return session;
+    }
+
+    // the session is invalidated so the next connect cannot resume it
+    @Benchmark
+    public SSLSession tlsHandshakeFull(LoopbackServerState state) throws Exception
+    {
+        NSSLSocketConnection conn = new NSSLSocketConnection(state.server.getHttpsAddress(), state.tlsConfig);
+        conn.connect(LoopbackServerState.TIMEOUT);
+        SSLSession session = conn.getSession();
+        session.invalidate();
+        conn.close();
+        return session;
+    }
+
+}
@@ -0,0 +1,32 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Drops the data and only counts it, so benchmarks do not measure buffer growth.
+ */
+public class CountingOutputStream extends OutputStream
+{
+    private long        count;
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public void reset()
+    {
+        count = 0;
+    }
+
+    public void write(int b)
+    {
+        count++;
+    }
+
+    public void write(byte[] data, int offset, int len)
+    {
+        count += len;
+    }
+
+}
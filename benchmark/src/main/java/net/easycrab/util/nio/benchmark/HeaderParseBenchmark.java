@@ -0,0 +1,71 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.easycrab.util.nio.NHttpResponseParser;
+
+/**
+ * Parsing of a typical response header, fed in one piece or in small pieces as from a slow network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderParseBenchmark
+{
+    private static final String HEADER = "HTTP/1.1 200 OK\r\n"
+            + "Date: Sun, 18 Oct 2026 08:00:00 GMT\r\n"
+            + "Server: Apache/2.4.58 (Unix)\r\n"
+            + "Content-Type: application/json; charset=utf-8\r\n"
+            + "Content-Length: 1523\r\n"
+            + "Cache-Control: private, max-age=0, must-revalidate\r\n"
+            + "ETag: \"5f2a-1b3c4d5e6f7a8\"\r\n"
+            + "Last-Modified: Sat, 17 Oct 2026 21:13:45 GMT\r\n"
+            + "Vary: Accept-Encoding, Origin\r\n"
+            + "Strict-Transport-Security: max-age=31536000; includeSubDomains\r\n"
+            + "X-Request-Id: 7d8f9e0a-1b2c-3d4e-5f6a-7b8c9d0e1f2a\r\n"
+            + "Set-Cookie: session=a1b2c3d4e5f6; Path=/; HttpOnly; Secure\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+    @Param({ "0", "64" })
+    public int                  pieceSize;  // 0 means the whole header at once
+
+    private byte[]              data;
+    private NHttpResponseParser parser;
+
+    @Setup
+    public void setup()
+    {
+        data = HEADER.getBytes(Charset.forName("us-ascii"));
+        parser = new NHttpResponseParser();
+    }
+
+    @Benchmark
+    public int parse() throws Exception
+    {
+        parser.reset();
+        int step = (pieceSize > 0) ? pieceSize : data.length;
+        int offset = 0;
+        while (! parser.isComplete()) {
+            offset += parser.parse(data, offset, Math.min(step, data.length - offset));
+        }
+        return parser.getStatusCode() + parser.getHeaders().size();
+    }
+
+}
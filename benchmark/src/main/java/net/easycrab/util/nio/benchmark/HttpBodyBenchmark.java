@@ -0,0 +1,82 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.easycrab.util.nio.NConnectionPool;
+import net.easycrab.util.nio.NHttpConnection;
+import net.easycrab.util.nio.NHttpsConnection;
+
+/**
+ * GET through NHttpConnection on a pooled keep-alive connection, covering header parse and
+ * the Content-Length, chunked and gzip body paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpBodyBenchmark
+{
+    @Param({ "http", "https" })
+    public String               scheme;
+
+    @Param({ "len", "chunk", "gzip" })
+    public String               encoding;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int                  size;
+
+    private String              url;
+    private NConnectionPool     pool;
+    private CountingOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setup(LoopbackServerState state)
+    {
+        String path = "/" + encoding + "?n=" + size;
+        url = "https".equals(scheme) ? state.server.getHttpsUrl(path) : state.server.getHttpUrl(path);
+        pool = new NConnectionPool();
+        output = new CountingOutputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        pool.closeAll();
+    }
+
+    @Benchmark
+    public long get(LoopbackServerState state) throws Exception
+    {
+        NHttpConnection conn;
+        if ("https".equals(scheme)) {
+            conn = new NHttpsConnection(url, false, LoopbackServerState.TIMEOUT);
+            conn.setTLSConfig(state.tlsConfig);
+        }
+        else {
+            conn = new NHttpConnection(url, false, LoopbackServerState.TIMEOUT);
+        }
+        conn.setConnectionPool(pool);
+        conn.connect();
+        output.reset();
+        conn.readBody(output, true);
+        conn.close();
+        return output.getCount();
+    }
+
+}
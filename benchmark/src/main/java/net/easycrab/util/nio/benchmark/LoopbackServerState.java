@@ -0,0 +1,37 @@
+package net.easycrab.util.nio.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import net.easycrab.util.nio.NTLSClientConfig;
+
+/**
+ * One loopback server per benchmark run, shared by all benchmark threads.
+ */
+@State(Scope.Benchmark)
+public class LoopbackServerState
+{
+    public static final long    TIMEOUT = 10000; // 10 seconds
+
+    public NLoopbackServer      server;
+    public NTLSClientConfig     tlsConfig;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception
+    {
+        server = new NLoopbackServer();
+        server.start();
+        // the server certificate is self-signed
+        tlsConfig = NTLSClientConfig.getDefault();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop()
+    {
+        server.stop();
+    }
+
+}
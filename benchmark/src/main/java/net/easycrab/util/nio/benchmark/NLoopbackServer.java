@@ -0,0 +1,394 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * Minimal HTTP/1.1 server on 127.0.0.1 for benchmarks, with a plain and a TLS port. The TLS
+ * port uses a self-signed certificate made by keytool at start. Connections are kept alive,
+ * one thread serves each. Paths:
+ * <pre>
+ *     /len?n=N      N bytes with Content-Length
+ *     /chunk?n=N    N bytes in chunks of 8K
+ *     /gzip?n=N     N bytes gzip encoded, with Content-Length
+ *     /upload       reads the request body (Content-Length or chunked), answers its length
+ * </pre>
+ */
+public class NLoopbackServer
+{
+    private static final Charset    ASCII = Charset.forName("us-ascii");
+    private static final String     STORE_PASSWORD = "changeit";
+
+    private final int               CHUNK_SIZE = 8192; // 8K
+
+    private ServerSocket            httpSocket;
+    private ServerSocket            httpsSocket;
+    private File                    keyStoreFile;
+    private volatile boolean        isRunning;
+
+    private Map<String, byte[]>     bodyCache = new ConcurrentHashMap<String, byte[]>();
+
+    public void start() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        httpSocket = new ServerSocket(0, 1024, loopback);
+
+        SSLContext context = createServerContext();
+        httpsSocket = context.getServerSocketFactory().createServerSocket(0, 1024, loopback);
+        ((SSLServerSocket) httpsSocket).setUseClientMode(false);
+
+        isRunning = true;
+        startAcceptor(httpSocket, "NLoopbackServer-http");
+        startAcceptor(httpsSocket, "NLoopbackServer-https");
+    }
+
+    public void stop()
+    {
+        isRunning = false;
+        closeQuietly(httpSocket);
+        closeQuietly(httpsSocket);
+        if (keyStoreFile != null) {
+            keyStoreFile.delete();
+        }
+    }
+
+    public InetSocketAddress getHttpAddress()
+    {
+        return new InetSocketAddress("127.0.0.1", httpSocket.getLocalPort());
+    }
+
+    public InetSocketAddress getHttpsAddress()
+    {
+        return new InetSocketAddress("127.0.0.1", httpsSocket.getLocalPort());
+    }
+
+    public String getHttpUrl(String path)
+    {
+        return "http://127.0.0.1:" + httpSocket.getLocalPort() + path;
+    }
+
+    public String getHttpsUrl(String path)
+    {
+        return "https://127.0.0.1:" + httpsSocket.getLocalPort() + path;
+    }
+
+    private SSLContext createServerContext() throws Exception
+    {
+        keyStoreFile = File.createTempFile("nloopback", ".p12");
+        return createSelfSignedContext(keyStoreFile);
+    }
+
+    /**
+     * Makes a server context with a self-signed certificate for 127.0.0.1 and localhost, the
+     * key store is written into the file, which the caller shall delete.
+     */
+    public static SSLContext createSelfSignedContext(File keyStoreFile) throws Exception
+    {
+        keyStoreFile.delete(); // keytool refuses to write into an empty file
+
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "loopback",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "3650",
+                "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1,dns:localhost",
+                "-storetype", "PKCS12", "-keystore", keyStoreFile.getAbsolutePath(),
+                "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD, "-noprompt")
+                .redirectErrorStream(true).start();
+        drain(process.getInputStream());
+        if (process.waitFor() != 0) {
+            throw new IOException("Fail to create self-signed certificate by keytool!");
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream input = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(input, STORE_PASSWORD.toCharArray());
+        } finally {
+            input.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, STORE_PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private void startAcceptor(final ServerSocket serverSocket, String name)
+    {
+        Thread acceptor = new Thread(new Runnable() {
+            public void run()
+            {
+                while (isRunning) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread worker = new Thread(new Runnable() {
+                            public void run()
+                            {
+                                serve(socket);
+                            }
+                        });
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        // socket closed by stop()
+                    }
+                }
+            }
+        }, name);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket)
+    {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream(), 16384);
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 16384);
+            while (isRunning && serveRequest(input, output)) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            // client gone
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Returns false when the client has closed the connection or asked to close it.
+     */
+    private boolean serveRequest(InputStream input, OutputStream output) throws IOException
+    {
+        String requestLine = readLine(input);
+        while (requestLine != null && requestLine.length() == 0) {
+            requestLine = readLine(input);
+        }
+        if (requestLine == null) {
+            return false;
+        }
+
+        long contentLength = -1;
+        boolean isChunked = false;
+        boolean isClose = false;
+        String line;
+        while ((line = readLine(input)) != null && line.length() > 0) {
+            int place = line.indexOf(':');
+            if (place <= 0) {
+                continue;
+            }
+            String name = line.substring(0, place).trim();
+            String value = line.substring(place + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = Long.parseLong(value);
+            }
+            else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                isChunked = "chunked".equalsIgnoreCase(value);
+            }
+            else if ("Connection".equalsIgnoreCase(name)) {
+                isClose = "close".equalsIgnoreCase(value);
+            }
+        }
+        if (line == null) {
+            return false;
+        }
+
+        long requestBodyLength = 0;
+        if (isChunked) {
+            requestBodyLength = skipChunkedBody(input);
+        }
+        else if (contentLength > 0) {
+            requestBodyLength = skip(input, contentLength);
+        }
+
+        String[] parts = requestLine.split(" ");
+        String target = (parts.length > 1) ? parts[1] : "/";
+        String path = target;
+        int size = 0;
+        int place = target.indexOf('?');
+        if (place >= 0) {
+            path = target.substring(0, place);
+            String query = target.substring(place + 1);
+            if (query.startsWith("n=")) {
+                size = Integer.parseInt(query.substring(2));
+            }
+        }
+
+        if ("/len".equals(path)) {
+            writeBody(output, getBody(size), null, isClose);
+        }
+        else if ("/gzip".equals(path)) {
+            writeBody(output, getGzipBody(size), "gzip", isClose);
+        }
+        else if ("/chunk".equals(path)) {
+            writeChunkedBody(output, getBody(size), isClose);
+        }
+        else if ("/upload".equals(path)) {
+            writeBody(output, String.valueOf(requestBodyLength).getBytes(ASCII), null, isClose);
+        }
+        else {
+            output.write(("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n").getBytes(ASCII));
+        }
+        return ! isClose;
+    }
+
+    private void writeBody(OutputStream output, byte[] body, String encoding, boolean isClose) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 200 OK\r\n");
+        sb.append("Content-Type: application/octet-stream\r\n");
+        if (encoding != null) {
+            sb.append("Content-Encoding: ").append(encoding).append("\r\n");
+        }
+        if (isClose) {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        output.write(sb.toString().getBytes(ASCII));
+        output.write(body);
+    }
+
+    private void writeChunkedBody(OutputStream output, byte[] body, boolean isClose) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 200 OK\r\n");
+        sb.append("Content-Type: application/octet-stream\r\n");
+        if (isClose) {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("Transfer-Encoding: chunked\r\n\r\n");
+        output.write(sb.toString().getBytes(ASCII));
+        for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, body.length - offset);
+            output.write((Integer.toHexString(len) + "\r\n").getBytes(ASCII));
+            output.write(body, offset, len);
+            output.write('\r');
+            output.write('\n');
+        }
+        output.write("0\r\n\r\n".getBytes(ASCII));
+    }
+
+    private byte[] getBody(int size)
+    {
+        String key = "plain:" + size;
+        byte[] body = bodyCache.get(key);
+        if (body == null) {
+            // text like content, so gzip gets a realistic ratio
+            byte[] text = "The quick brown fox jumps over the lazy dog 0123456789.\n".getBytes(ASCII);
+            body = new byte[size];
+            for (int i = 0; i < size; i++) {
+                body[i] = text[(i + i / text.length) % text.length];
+            }
+            bodyCache.put(key, body);
+        }
+        return body;
+    }
+
+    private byte[] getGzipBody(int size) throws IOException
+    {
+        String key = "gzip:" + size;
+        byte[] body = bodyCache.get(key);
+        if (body == null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(getBody(size));
+            gzip.close();
+            body = baos.toByteArray();
+            bodyCache.put(key, body);
+        }
+        return body;
+    }
+
+    private static long skipChunkedBody(InputStream input) throws IOException
+    {
+        long total = 0;
+        while (true) {
+            String line = readLine(input);
+            if (line == null) {
+                throw new IOException("Unexpected end of chunked body!");
+            }
+            int place = line.indexOf(';');
+            long size = Long.parseLong((place >= 0 ? line.substring(0, place) : line).trim(), 16);
+            if (size == 0) {
+                // trailers end with an empty line
+                while ((line = readLine(input)) != null && line.length() > 0) {
+                }
+                return total;
+            }
+            total += skip(input, size);
+            readLine(input);
+        }
+    }
+
+    private static long skip(InputStream input, long count) throws IOException
+    {
+        long remain = count;
+        while (remain > 0) {
+            long len = input.skip(remain);
+            if (len <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("Unexpected end of request body!");
+                }
+                len = 1;
+            }
+            remain -= len;
+        }
+        return count;
+    }
+
+    private static String readLine(InputStream input) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = input.read()) >= 0) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
+    private static void drain(InputStream input) throws IOException
+    {
+        byte[] buf = new byte[1024];
+        while (input.read(buf) >= 0) {
+        }
+        input.close();
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.easycrab.util.nio.NBlockingSocketConnection;
+import net.easycrab.util.nio.NIOConnection;
+import net.easycrab.util.nio.NSSLSocketConnection;
+import net.easycrab.util.nio.NSocketConnection;
+
+/**
+ * Request and response round trip on the raw transports, without the HTTP layer. One
+ * keep-alive connection per thread, the response is found by its known length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark
+{
+    private static final byte[] HEADER_END = new byte[] { '\r', '\n', '\r', '\n' };
+
+    @Param({ "socket", "ssl", "blocking", "blocking-ssl" })
+    public String               transport;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int                  size;
+
+    private NIOConnection       conn;
+    private byte[]              request;
+    private byte[]              buffer = new byte[65536];
+
+    @Setup(Level.Trial)
+    public void setup(LoopbackServerState state) throws Exception
+    {
+        if ("socket".equals(transport)) {
+            conn = new NSocketConnection(state.server.getHttpAddress());
+        }
+        else if ("ssl".equals(transport)) {
+            conn = new NSSLSocketConnection(state.server.getHttpsAddress(), state.tlsConfig);
+        }
+        else if ("blocking".equals(transport)) {
+            conn = new NBlockingSocketConnection(state.server.getHttpAddress());
+        }
+        else {
+            conn = new NBlockingSocketConnection(state.server.getHttpsAddress(), state.tlsConfig);
+        }
+        conn.connect(LoopbackServerState.TIMEOUT);
+        request = ("GET /len?n=" + size + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes(Charset.forName("us-ascii"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        conn.close();
+    }
+
+    @Benchmark
+    public long roundTrip() throws Exception
+    {
+        conn.write(LoopbackServerState.TIMEOUT, request, 0, request.length);
+
+        int matched = 0;
+        long bodyRemain = size;
+        boolean isInBody = false;
+        while (true) {
+            int len = conn.readAvailable(LoopbackServerState.TIMEOUT, buffer, 0, buffer.length);
+            if (len < 0) {
+                throw new IOException("Connection closed by server!");
+            }
+            int pos = 0;
+            while (! isInBody && pos < len) {
+                byte b = buffer[pos++];
+                if (b == HEADER_END[matched]) {
+                    matched++;
+                }
+                else {
+                    matched = (b == '\r') ? 1 : 0;
+                }
+                isInBody = (matched == HEADER_END.length);
+            }
+            if (isInBody) {
+                bodyRemain -= len - pos;
+                if (bodyRemain <= 0) {
+                    return size;
+                }
+            }
+        }
+    }
+
+}
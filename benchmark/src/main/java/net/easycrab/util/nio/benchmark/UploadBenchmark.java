@@ -0,0 +1,102 @@
+package net.easycrab.util.nio.benchmark;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.easycrab.util.nio.NConnectionPool;
+import net.easycrab.util.nio.NHttpConnection;
+import net.easycrab.util.nio.NHttpsConnection;
+
+/**
+ * POST through NHttpConnection with a body of known length or a chunked body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark
+{
+    @Param({ "http", "https" })
+    public String               scheme;
+
+    @Param({ "fixed", "chunked" })
+    public String               mode;
+
+    @Param({ "256", "65536", "1048576" })
+    public int                  size;
+
+    private final int           WRITE_SIZE = 4096; // 4K per write, like a serializer would do
+
+    private String              url;
+    private byte[]              body;
+    private NConnectionPool     pool;
+    private CountingOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setup(LoopbackServerState state)
+    {
+        url = "https".equals(scheme) ? state.server.getHttpsUrl("/upload") : state.server.getHttpUrl("/upload");
+        body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        pool = new NConnectionPool();
+        output = new CountingOutputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        pool.closeAll();
+    }
+
+    @Benchmark
+    public long post(LoopbackServerState state) throws Exception
+    {
+        NHttpConnection conn;
+        if ("https".equals(scheme)) {
+            conn = new NHttpsConnection(url, true, LoopbackServerState.TIMEOUT);
+            conn.setTLSConfig(state.tlsConfig);
+        }
+        else {
+            conn = new NHttpConnection(url, true, LoopbackServerState.TIMEOUT);
+        }
+        conn.setConnectionPool(pool);
+        if ("fixed".equals(mode)) {
+            conn.prepareRequestHeader("Content-Length", String.valueOf(size));
+            conn.connect();
+            for (int offset = 0; offset < size; offset += WRITE_SIZE) {
+                conn.sendData(body, offset, Math.min(WRITE_SIZE, size - offset));
+            }
+        }
+        else {
+            conn.connect();
+            OutputStream chunked = conn.getChunkedOutputStream();
+            for (int offset = 0; offset < size; offset += WRITE_SIZE) {
+                chunked.write(body, offset, Math.min(WRITE_SIZE, size - offset));
+            }
+            chunked.close();
+        }
+        output.reset();
+        conn.readBody(output, false);
+        conn.close();
+        return output.getCount();
+    }
+
+}
@@ -0,0 +1,165 @@
+package net.easycrab.util.nio;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Examples of RFC 7541 Appendix C. The decoder drops pseudo fields other than :status, so
+ * only the regular fields of the requests are compared.
+ */
+public class NHpackTest
+{
+    private static final String[][] NONE = new String[0][];
+
+    private static final String     C3_1 = "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d";
+    private static final String     C3_2 = "8286 84be 5808 6e6f 2d63 6163 6865";
+    private static final String     C3_3 = "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65";
+
+    private static final String     C4_1 = "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff";
+    private static final String     C4_2 = "8286 84be 5886 a8eb 1064 9cbf";
+    private static final String     C4_3 = "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf";
+
+    private static final String     C5_1 = "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133"
+            + " 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d";
+    private static final String     C5_2 = "4803 3330 37c1 c0bf";
+    private static final String     C5_3 = "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d"
+            + " 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49"
+            + " 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31";
+
+    private static final String     C6_1 = "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"
+            + " 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3";
+    private static final String     C6_2 = "4883 640e ffc1 c0bf";
+    private static final String     C6_3 = "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab"
+            + " 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed"
+            + " 4ee5 b106 3d50 07";
+
+    private static final String[][] RESPONSE_1 = {
+        { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:21 GMT" },
+        { "location", "https://www.example.com" },
+    };
+    private static final String[][] RESPONSE_2 = RESPONSE_1;
+    private static final String[][] RESPONSE_3 = {
+        { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:22 GMT" },
+        { "location", "https://www.example.com" }, { "content-encoding", "gzip" },
+        { "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1" },
+    };
+
+    @Test
+    public void decodesFieldRepresentations() throws Exception
+    {
+        NHpackDecoder decoder = new NHpackDecoder(NHpackEncoder.DEFAULT_TABLE_SIZE);
+        // C.2.1 literal with indexing, C.2.2 without, C.2.3 never indexed, C.2.4 indexed
+        assertDecoded(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572", -1,
+                new String[][] { { "custom-key", "custom-header" } });
+        assertDecoded(decoder, "040c 2f73 616d 706c 652f 7061 7468", -1, NONE);
+        assertDecoded(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74", -1,
+                new String[][] { { "password", "secret" } });
+        assertDecoded(decoder, "82", -1, NONE);
+    }
+
+    @Test
+    public void decodesRequests() throws Exception
+    {
+        String[][] cacheControl = { { "cache-control", "no-cache" } };
+        String[][] customKey = { { "custom-key", "custom-value" } };
+
+        NHpackDecoder decoder = new NHpackDecoder(NHpackEncoder.DEFAULT_TABLE_SIZE);
+        assertDecoded(decoder, C3_1, -1, NONE);
+        assertDecoded(decoder, C3_2, -1, cacheControl);
+        assertDecoded(decoder, C3_3, -1, customKey);
+
+        decoder = new NHpackDecoder(NHpackEncoder.DEFAULT_TABLE_SIZE);
+        assertDecoded(decoder, C4_1, -1, NONE);
+        assertDecoded(decoder, C4_2, -1, cacheControl);
+        assertDecoded(decoder, C4_3, -1, customKey);
+    }
+
+    @Test
+    public void decodesResponsesWithEviction() throws Exception
+    {
+        NHpackDecoder decoder = new NHpackDecoder(256);
+        assertDecoded(decoder, C5_1, 302, RESPONSE_1);
+        assertDecoded(decoder, C5_2, 307, RESPONSE_2);
+        assertDecoded(decoder, C5_3, 200, RESPONSE_3);
+
+        decoder = new NHpackDecoder(256);
+        assertDecoded(decoder, C6_1, 302, RESPONSE_1);
+        assertDecoded(decoder, C6_2, 307, RESPONSE_2);
+        assertDecoded(decoder, C6_3, 200, RESPONSE_3);
+    }
+
+    @Test
+    public void encodesRequestsWithHuffman()
+    {
+        NHpackEncoder encoder = new NHpackEncoder();
+        assertEncoded(encoder, C4_1, new String[][] {
+            { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" },
+        });
+        assertEncoded(encoder, C4_2, new String[][] {
+            { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" },
+            { "cache-control", "no-cache" },
+        });
+        assertEncoded(encoder, C4_3, new String[][] {
+            { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" },
+            { ":authority", "www.example.com" }, { "custom-key", "custom-value" },
+        });
+    }
+
+    @Test
+    public void encodesResponsesWithEviction()
+    {
+        NHpackEncoder encoder = new NHpackEncoder();
+        encoder.setMaxTableSize(256);
+        // the first block starts with the size update to 256
+        assertEncoded(encoder, "3fe1 01" + C6_1, withStatus("302", RESPONSE_1));
+        // "307" is no shorter in Huffman code, so it is sent as is like in C.5.2
+        assertEncoded(encoder, C5_2, withStatus("307", RESPONSE_2));
+        assertEncoded(encoder, C6_3, withStatus("200", RESPONSE_3));
+    }
+
+    private static void assertDecoded(NHpackDecoder decoder, String hex, int status, String[][] fields)
+            throws Exception
+    {
+        byte[] block = parseHex(hex);
+        NHttpHeaders headers = new NHttpHeaders();
+        assertEquals(status, decoder.decode(block, 0, block.length, headers));
+        assertEquals(fields.length, headers.size());
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(fields[i][0], headers.getName(i));
+            assertEquals(fields[i][1], headers.getValue(i));
+        }
+    }
+
+    private static void assertEncoded(NHpackEncoder encoder, String hex, String[][] fields)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.beginBlock(out);
+        for (String[] field : fields) {
+            encoder.encode(field[0], field[1], out);
+        }
+        assertArrayEquals(parseHex(hex), out.toByteArray());
+    }
+
+    private static String[][] withStatus(String status, String[][] fields)
+    {
+        String[][] all = new String[fields.length + 1][];
+        all[0] = new String[] { ":status", status };
+        System.arraycopy(fields, 0, all, 1, fields.length);
+        return all;
+    }
+
+    private static byte[] parseHex(String hex)
+    {
+        String digits = hex.replace(" ", "");
+        byte[] data = new byte[digits.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,273 @@
+package net.easycrab.util.nio;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import net.easycrab.util.nio.benchmark.NLoopbackServer;
+
+/**
+ * NHttp2Connection against NLoopbackH2Server: streams shared by threads, uploads held back by
+ * flow control, slots limited by the server and GOAWAY.
+ */
+public class NHttp2ConnectionTest
+{
+    private static final long       TIMEOUT = 5000; // 5 seconds
+    private static final int        SERVER_WINDOW = 16384;
+
+    private static File             keyStoreFile;
+    private static NLoopbackH2Server    server;
+    private static NLoopbackH2Server    singleStreamServer;
+    private static NTLSClientConfig tlsConfig;
+
+    private NHttp2Connection        connection;
+
+    @BeforeAll
+    public static void startServers() throws Exception
+    {
+        keyStoreFile = File.createTempFile("nloopback-h2", ".p12");
+        SSLContext context = NLoopbackServer.createSelfSignedContext(keyStoreFile);
+        server = new NLoopbackH2Server(context, 0, SERVER_WINDOW);
+        server.start();
+        singleStreamServer = new NLoopbackH2Server(context, 1, SERVER_WINDOW);
+        singleStreamServer.start();
+        // the server certificate is self-signed
+        tlsConfig = NTLSClientConfig.createTrustAllConfig();
+    }
+
+    @AfterAll
+    public static void stopServers()
+    {
+        server.stop();
+        singleStreamServer.stop();
+        keyStoreFile.delete();
+    }
+
+    @AfterEach
+    public void closeConnection() throws Exception
+    {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    @Test
+    public void streamsOfManyThreadsShareOneConnection() throws Exception
+    {
+        connection = connect(server, TIMEOUT);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run()
+                {
+                    try {
+                        int[] sizes = { 0, 1, 16384, 100000 + index };
+                        for (int size : sizes) {
+                            NHttp2Stream stream = connection.newStream("GET", "/");
+                            stream.prepareRequestHeader("X-Len", Integer.toString(size));
+                            ByteArrayOutputStream body = new ByteArrayOutputStream();
+                            assertEquals(200, stream.getResponseStatusCode());
+                            assertEquals(size, stream.getContentLength());
+                            stream.readBody(body, false);
+                            assertArrayEquals(NLoopbackH2Server.createBody(size), body.toByteArray());
+                            stream.close();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(0, connection.getActiveStreamCount());
+        assertTrue(connection.isAlive());
+    }
+
+    @Test
+    public void uploadsWaitForWindowUpdate() throws Exception
+    {
+        connection = connect(server, TIMEOUT);
+        final int uploadLen = 200000;
+        final byte[] upload = NLoopbackH2Server.createBody(uploadLen);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        int stallsBefore = server.getWindowStallCount();
+
+        // the uploads compete for the connection window as well
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run()
+                {
+                    try {
+                        NHttp2Stream stream = connection.newStream("POST", "/upload");
+                        stream.prepareContentLength(uploadLen);
+                        for (int offset = 0; offset < uploadLen; offset += 10000) {
+                            stream.sendData(upload, offset, Math.min(10000, uploadLen - offset));
+                        }
+                        assertEquals(200, stream.getResponseStatusCode());
+                        assertEquals(Integer.toString(uploadLen), stream.getResponseHeaderFields().get("X-Received"));
+                        stream.close();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(server.getWindowStallCount() - stallsBefore >= uploadLen / SERVER_WINDOW);
+        assertEquals(0, server.getFlowControlErrorCount());
+        assertEquals(0, server.getEmptyDataCount());
+    }
+
+    @Test
+    public void slotWaiterIsWokenByStreamClose() throws Exception
+    {
+        connection = connect(singleStreamServer, TIMEOUT);
+        // the limit is known once the settings of the server are read
+        NHttp2Stream first = connection.newStream("GET", "/first");
+        first.readBody(new ByteArrayOutputStream(), false);
+        first.close();
+        assertEquals(1, connection.getMaxConcurrentStreams());
+
+        NHttp2Stream held = connection.newStream("GET", "/held");
+        held.prepareRequestHeader("X-Hold", "1");
+        held.prepareRequestHeader("X-Delay", "300");
+        held.endRequest();
+
+        // waits for the only slot while the held stream is open
+        final long[] elapsed = new long[1];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread waiter = new Thread(new Runnable() {
+            public void run()
+            {
+                long start = System.nanoTime();
+                try {
+                    NHttp2Stream stream = connection.newStream("GET", "/next");
+                    stream.prepareRequestHeader("X-Len", "10");
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    stream.readBody(body, false);
+                    assertEquals(10, body.size());
+                    stream.close();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+                elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+
+        assertEquals(200, held.getResponseStatusCode());
+        held.close();
+        waiter.join();
+        assertEquals(Collections.emptyList(), errors);
+        // far less than the timeout, the waiter was not blocked in a read
+        assertTrue(elapsed[0] < TIMEOUT / 2, "slot waited " + elapsed[0] + "ms");
+    }
+
+    @Test
+    public void waiterTimesOutAtItsOwnDeadline() throws Exception
+    {
+        final long timeout = 1000;
+        connection = connect(server, timeout);
+        final NHttp2Stream first = connection.newStream("GET", "/first");
+        first.prepareRequestHeader("X-Delay", "700");
+        first.endRequest();
+        NHttp2Stream never = connection.newStream("GET", "/never");
+        never.prepareRequestHeader("X-Delay", "60000");
+        never.endRequest();
+
+        Thread reader = new Thread(new Runnable() {
+            public void run()
+            {
+                try {
+                    first.getResponseStatusCode();
+                } catch (Exception e) {
+                    // checked by the stream state below
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+
+        // it reads after the first stream got its header, for no longer than its own deadline
+        long start = System.nanoTime();
+        IOException e = assertThrows(IOException.class, statusOf(never));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        reader.join();
+        assertEquals("Wait for HTTP/2 stream timeout!", e.getMessage());
+        assertTrue(elapsed < timeout + 300, "timed out after " + elapsed + "ms");
+        assertEquals(200, first.getResponseStatusCode());
+        assertTrue(connection.isAlive());
+    }
+
+    @Test
+    public void goAwayRefusesLaterStreams() throws Exception
+    {
+        connection = connect(server, TIMEOUT);
+        NHttp2Stream last = connection.newStream("GET", "/last");
+        last.prepareRequestHeader("X-Len", "1000");
+        last.prepareRequestHeader("X-GoAway", "1");
+        last.endRequest();
+        NHttp2Stream refused = connection.newStream("GET", "/refused");
+        refused.endRequest();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        assertEquals(1000, last.readBody(body, false));
+        last.close();
+
+        IOException e = assertThrows(IOException.class, statusOf(refused));
+        assertTrue(e.getMessage().contains("GOAWAY"), e.getMessage());
+        assertFalse(connection.isAlive());
+        e = assertThrows(IOException.class, statusOf(connection.newStream("GET", "/late")));
+        assertEquals("Server is going away, no new stream can be created!", e.getMessage());
+    }
+
+    private static NHttp2Connection connect(NLoopbackH2Server target, long timeout) throws Exception
+    {
+        NHttp2Connection conn = new NHttp2Connection("127.0.0.1", target.getPort(), timeout);
+        conn.setTLSConfig(tlsConfig);
+        conn.connect();
+        return conn;
+    }
+
+    private static Executable statusOf(final NHttp2Stream stream)
+    {
+        return new Executable() {
+            public void execute() throws Throwable
+            {
+                stream.getResponseStatusCode();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,428 @@
+package net.easycrab.util.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * HTTP/2 stand-in server on 127.0.0.1 for tests, TLS with "h2" by ALPN. One thread reads the
+ * frames of each connection. It does not keep to the flow control windows of the client, the
+ * response bodies shall fit in them. What a request gets is told by its fields:
+ * <pre>
+ *     x-len: N         N bytes of body, byte i is (i % 251)
+ *     x-delay: MS      the response is sent MS milliseconds after the request has ended
+ *     x-hold: 1        only the header is sent, the stream is left open
+ *     x-goaway: 1      a GOAWAY naming this stream as the last follows the response
+ * </pre>
+ * A request body is counted and answered in "x-received". Its window is given back only when
+ * it is used up and after a short stall, so an upload keeps running into a closed window.
+ */
+class NLoopbackH2Server
+{
+    static final int            STALL_MILLIS = 20;
+
+    private static final int    TYPE_DATA = 0x0;
+    private static final int    TYPE_HEADERS = 0x1;
+    private static final int    TYPE_RST_STREAM = 0x3;
+    private static final int    TYPE_SETTINGS = 0x4;
+    private static final int    TYPE_PING = 0x6;
+    private static final int    TYPE_GOAWAY = 0x7;
+    private static final int    TYPE_WINDOW_UPDATE = 0x8;
+    private static final int    TYPE_CONTINUATION = 0x9;
+
+    private static final int    FLAG_END_STREAM = 0x1;
+    private static final int    FLAG_ACK = 0x1;
+    private static final int    FLAG_END_HEADERS = 0x4;
+
+    private static final int    DEFAULT_WINDOW = 65535;
+    private static final int    MAX_FRAME_SIZE = 16384;
+
+    private SSLContext          context;
+    private int                 maxConcurrentStreams;
+    private int                 initialWindow;
+    private ServerSocket        serverSocket;
+    private volatile boolean    isRunning;
+
+    private AtomicInteger       windowStallCount = new AtomicInteger();
+    private AtomicInteger       emptyDataCount = new AtomicInteger();
+    private AtomicInteger       flowControlErrorCount = new AtomicInteger();
+
+    // maxConcurrentStreams 0 means no limit is sent
+    NLoopbackH2Server(SSLContext context, int maxConcurrentStreams, int initialWindow)
+    {
+        this.context = context;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.initialWindow = initialWindow;
+    }
+
+    void start() throws IOException
+    {
+        SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 64,
+                InetAddress.getByName("127.0.0.1"));
+        SSLParameters params = socket.getSSLParameters();
+        params.setApplicationProtocols(new String[] { NHttp2Connection.PROTOCOL });
+        socket.setSSLParameters(params);
+        serverSocket = socket;
+        isRunning = true;
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run()
+            {
+                while (isRunning) {
+                    try {
+                        final Socket peer = serverSocket.accept();
+                        Thread worker = new Thread(new Runnable() {
+                            public void run()
+                            {
+                                new Session(peer).serve();
+                            }
+                        }, "NLoopbackH2Server-session");
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        // closed by stop()
+                    }
+                }
+            }
+        }, "NLoopbackH2Server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void stop()
+    {
+        isRunning = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    // times an upload used up a window of the stream or the connection
+    int getWindowStallCount()
+    {
+        return windowStallCount.get();
+    }
+
+    // DATA frames without data which do not end the stream, a client shall not waste them
+    int getEmptyDataCount()
+    {
+        return emptyDataCount.get();
+    }
+
+    // DATA beyond a window which was given to the client
+    int getFlowControlErrorCount()
+    {
+        return flowControlErrorCount.get();
+    }
+
+    static byte[] createBody(int len)
+    {
+        byte[] body = new byte[len];
+        for (int i = 0; i < len; i++) {
+            body[i] = (byte) (i % 251);
+        }
+        return body;
+    }
+
+    private static class Request
+    {
+        int             streamId;
+        NHttpHeaders    headers;
+        long            receivedLen;
+        int             window;
+    }
+
+    private class Session
+    {
+        private Socket              socket;
+        private DataInputStream     input;
+        private OutputStream        output;
+
+        // the decoder is used by the reading thread only, the encoder under the lock of output
+        private NHpackDecoder       decoder = new NHpackDecoder(NHpackEncoder.DEFAULT_TABLE_SIZE);
+        private NHpackEncoder       encoder = new NHpackEncoder();
+        private HashMap<Integer, Request>   requests = new HashMap<Integer, Request>();
+        private ByteArrayOutputStream       headerBlock = new ByteArrayOutputStream();
+        private boolean             isHeaderEndStream;
+        private int                 connectionWindow = DEFAULT_WINDOW;
+        private boolean             isSettingsAcked;
+        private volatile int        lastStreamId = Integer.MAX_VALUE;
+
+        Session(Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        void serve()
+        {
+            try {
+                input = new DataInputStream(socket.getInputStream());
+                output = socket.getOutputStream();
+                byte[] preface = new byte[24];
+                input.readFully(preface);
+                if (! new String(preface, "us-ascii").equals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")) {
+                    throw new IOException("Invalid HTTP/2 preface!");
+                }
+                ByteArrayOutputStream settings = new ByteArrayOutputStream();
+                if (maxConcurrentStreams > 0) {
+                    writeSetting(settings, 0x3, maxConcurrentStreams);
+                }
+                writeSetting(settings, 0x4, initialWindow);
+                writeFrame(TYPE_SETTINGS, 0, 0, settings.toByteArray());
+
+                byte[] header = new byte[9];
+                while (true) {
+                    input.readFully(header);
+                    int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                    int type = header[3] & 0xff;
+                    int flags = header[4] & 0xff;
+                    int streamId = getInt(header, 5) & 0x7fffffff;
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    if (type == TYPE_GOAWAY) {
+                        break;
+                    }
+                    processFrame(type, flags, streamId, payload);
+                }
+            } catch (Exception e) {
+                // the client has gone
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void processFrame(int type, int flags, int streamId, byte[] payload) throws Exception
+        {
+            switch (type) {
+            case TYPE_SETTINGS:
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+                }
+                else if (! isSettingsAcked) {
+                    // the client may use the default window until it has taken the settings
+                    isSettingsAcked = true;
+                    for (Request request : requests.values()) {
+                        request.window += initialWindow - DEFAULT_WINDOW;
+                        if (request.window <= 0) {
+                            writeWindowUpdate(request.streamId, initialWindow - request.window);
+                            request.window = initialWindow;
+                        }
+                    }
+                }
+                break;
+            case TYPE_PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                }
+                break;
+            case TYPE_HEADERS:
+                // the client sends neither padding nor priority
+                headerBlock.reset();
+                isHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+                processHeaderBlock(flags, streamId, payload);
+                break;
+            case TYPE_CONTINUATION:
+                processHeaderBlock(flags, streamId, payload);
+                break;
+            case TYPE_DATA:
+                processData(flags, streamId, payload.length);
+                break;
+            case TYPE_RST_STREAM:
+                requests.remove(streamId);
+                break;
+            default:
+                // WINDOW_UPDATE and PRIORITY are not needed by the responses
+                break;
+            }
+        }
+
+        private void processHeaderBlock(int flags, int streamId, byte[] payload) throws Exception
+        {
+            headerBlock.write(payload, 0, payload.length);
+            if ((flags & FLAG_END_HEADERS) == 0) {
+                return;
+            }
+            Request request = new Request();
+            request.streamId = streamId;
+            request.headers = new NHttpHeaders();
+            request.window = isSettingsAcked ? initialWindow : DEFAULT_WINDOW;
+            byte[] block = headerBlock.toByteArray();
+            decoder.decode(block, 0, block.length, request.headers);
+            requests.put(streamId, request);
+            if (isHeaderEndStream) {
+                respond(request);
+            }
+        }
+
+        private void processData(int flags, int streamId, int length) throws Exception
+        {
+            Request request = requests.get(streamId);
+            boolean isEndStream = (flags & FLAG_END_STREAM) != 0;
+            if (length == 0 && ! isEndStream) {
+                emptyDataCount.incrementAndGet();
+            }
+            connectionWindow -= length;
+            if (connectionWindow < 0 || (request != null && request.window < length)) {
+                flowControlErrorCount.incrementAndGet();
+            }
+            if (request == null) {
+                return;
+            }
+            request.window -= length;
+            request.receivedLen += length;
+
+            // the windows are opened to their full size again
+            boolean isStreamStalled = (request.window <= 0 && ! isEndStream);
+            if (isStreamStalled || connectionWindow <= 0) {
+                windowStallCount.incrementAndGet();
+                Thread.sleep(STALL_MILLIS);
+            }
+            if (connectionWindow <= 0) {
+                writeWindowUpdate(0, DEFAULT_WINDOW - connectionWindow);
+                connectionWindow = DEFAULT_WINDOW;
+            }
+            if (isStreamStalled) {
+                int window = isSettingsAcked ? initialWindow : DEFAULT_WINDOW;
+                writeWindowUpdate(streamId, window - request.window);
+                request.window = window;
+            }
+            if (isEndStream) {
+                respond(request);
+            }
+        }
+
+        private void respond(final Request request) throws Exception
+        {
+            if (request.streamId > lastStreamId) {
+                // refused by the GOAWAY sent
+                requests.remove(request.streamId);
+                return;
+            }
+            long delay = request.headers.getLong("x-delay", 0);
+            if (delay <= 0) {
+                sendResponse(request);
+                return;
+            }
+            Thread responder = new Thread(new Runnable() {
+                public void run()
+                {
+                    try {
+                        Thread.sleep(request.headers.getLong("x-delay", 0));
+                        sendResponse(request);
+                    } catch (Exception e) {
+                        // the client has gone
+                    }
+                }
+            }, "NLoopbackH2Server-responder");
+            responder.setDaemon(true);
+            responder.start();
+        }
+
+        private void sendResponse(Request request) throws IOException
+        {
+            int len = (int) request.headers.getLong("x-len", 0);
+            boolean isHold = "1".equals(request.headers.get("x-hold"));
+            boolean hasBody = (len > 0 && ! isHold);
+            synchronized (output) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                encoder.beginBlock(block);
+                encoder.encode(":status", "200", block);
+                if (! isHold) {
+                    encoder.encode("content-length", Integer.toString(len), block);
+                }
+                if (request.receivedLen > 0) {
+                    encoder.encode("x-received", Long.toString(request.receivedLen), block);
+                }
+                int flags = FLAG_END_HEADERS | ((hasBody || isHold) ? 0 : FLAG_END_STREAM);
+                writeFrame(TYPE_HEADERS, flags, request.streamId, block.toByteArray());
+                if (isHold) {
+                    output.flush();
+                    return;
+                }
+
+                byte[] body = createBody(len);
+                for (int offset = 0; offset < len; offset += MAX_FRAME_SIZE) {
+                    int frameLen = Math.min(MAX_FRAME_SIZE, len - offset);
+                    writeFrame(TYPE_DATA, (offset + frameLen == len) ? FLAG_END_STREAM : 0, request.streamId,
+                            Arrays.copyOfRange(body, offset, offset + frameLen));
+                }
+                if ("1".equals(request.headers.get("x-goaway"))) {
+                    lastStreamId = request.streamId;
+                    byte[] goAway = new byte[8];
+                    putInt(goAway, 0, request.streamId);
+                    writeFrame(TYPE_GOAWAY, 0, 0, goAway);
+                }
+                output.flush();
+            }
+        }
+
+        private void writeWindowUpdate(int streamId, int increment) throws IOException
+        {
+            byte[] data = new byte[4];
+            putInt(data, 0, increment);
+            writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, data);
+        }
+
+        private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException
+        {
+            byte[] frame = new byte[9 + payload.length];
+            frame[0] = (byte) (payload.length >>> 16);
+            frame[1] = (byte) (payload.length >>> 8);
+            frame[2] = (byte) payload.length;
+            frame[3] = (byte) type;
+            frame[4] = (byte) flags;
+            putInt(frame, 5, streamId);
+            System.arraycopy(payload, 0, frame, 9, payload.length);
+            synchronized (output) {
+                output.write(frame);
+                output.flush();
+            }
+        }
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value)
+    {
+        out.write(id >>> 8);
+        out.write(id);
+        byte[] data = new byte[4];
+        putInt(data, 0, value);
+        out.write(data, 0, data.length);
+    }
+
+    private static void putInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+}
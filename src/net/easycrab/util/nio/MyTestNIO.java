@@ -77,47 +77,19 @@ public class MyTestNIO
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             int targetGetLen;
             String content;
-            if (conn.isChunked()) {
-                conn.readAllChunk(baos);
-                System.out.println(getTimestamp() + " Total Chunk Size = " + baos.size());
-                
-                if (conn.isGzipContent()) {
-                    System.out.println(getTimestamp() + " response body is GZIP, need decompress first");
-                    byte[] gzipData = baos.toByteArray();
-                    baos.reset();
-                    conn.decompressGzipData(gzipData, baos);
-                }
-                
-                System.out.println(getTimestamp() + " Response Body Data Length: " + baos.size());
-                
-                targetGetLen = (baos.size() > 1024) ? 1024 : baos.size();
-                content = new String(baos.toByteArray(), 0, targetGetLen, "utf-8");
-                System.out.println(content);
-
-            
+            if (conn.isGzipContent()) {
+                System.out.println(getTimestamp() + " response body is GZIP, decompress while receiving");
             }
-            else if (contentLen > 0) {
-                byte[] body = new byte[contentLen];
-                System.out.println(getTimestamp() + " Try to receive connection body ...");
-                conn.readData(body, 0, contentLen);
-                if (conn.isGzipContent()) {
-                    System.out.println(getTimestamp() + " response body is GZIP, need decompress first");
-                    conn.decompressGzipData(body, baos);
-
-                    targetGetLen = (baos.size() > 1024) ? 1024 : baos.size();
-                    content = new String(baos.toByteArray(), 0, targetGetLen, "utf-8");
-                    System.out.println(content);
-                }
-                else {
-                    targetGetLen = (contentLen > 1024) ? 1024 : contentLen;
-                    content = new String(body, 0, targetGetLen, "utf-8");
-                    System.out.println(content);
-                }
-
-                
-                System.out.println(getTimestamp() + " Done!");
+            // chunked or not, the body is streamed and GZIP decoded on the fly
+            long bodyLen = conn.readBody(baos, true);
+            System.out.println(getTimestamp() + " Response Body Data Length: " + bodyLen);
+            
+            targetGetLen = (baos.size() > 1024) ? 1024 : baos.size();
+            content = new String(baos.toByteArray(), 0, targetGetLen, "utf-8");
+            System.out.println(content);
+            
+            System.out.println(getTimestamp() + " Done!");
 
-            }
 //          */
             System.out.println(getTimestamp() + " Try to close the connection ...");
             conn.close();
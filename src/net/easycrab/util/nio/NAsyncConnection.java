@@ -0,0 +1,548 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Non-blocking connection driven by an NIOEventLoop. Operations return at once and report
+ * completion through NIOCallback on the event loop thread. At most one read and one write
+ * can be pending at the same time. If an SSLEngine is given, the TLS handshake is done as
+ * part of connect().
+ */
+public class NAsyncConnection implements NIOEventHandler
+{
+    private static final int    STATE_INIT = 0;
+    private static final int    STATE_CONNECTING = 1;
+    private static final int    STATE_HANDSHAKING = 2;
+    private static final int    STATE_OPEN = 3;
+    private static final int    STATE_CLOSED = 4;
+
+    private final int           BUFFER_CAPACITY = 16384;
+
+    private NIOEventLoop        eventLoop;
+    private InetSocketAddress   hostAddr;
+    private SSLEngine           sslEngine;
+
+    private SocketChannel       channel;
+    private SelectionKey        selectionKey;
+    private int                 state = STATE_INIT;
+
+    private ByteBuffer          readNetBuffer;  // fill mode, TLS only
+    private ByteBuffer          readAppBuffer;  // read mode, data not taken by reader yet
+    private ByteBuffer          writeNetBuffer; // read mode, TLS only
+    private ByteBuffer          dummyBuffer = ByteBuffer.allocate(0);
+    private NIOBufferAllocator  bufferAllocator;
+
+    private NIOCallback<NAsyncConnection>   connectCallback;
+    private NTimerWheel.Timer               connectTimer;
+
+    private NIOCallback<Integer>            writeCallback;
+    private ByteBuffer                      writeSource;
+    private int                             writeLength;
+    private NTimerWheel.Timer               writeTimer;
+
+    private NIOCallback<ByteBuffer>         readCallback;
+    private NTimerWheel.Timer               readTimer;
+
+    public NAsyncConnection(NIOEventLoop loop, InetSocketAddress address, SSLEngine engine)
+    {
+        eventLoop = loop;
+        hostAddr = address;
+        sslEngine = engine;
+    }
+
+    public NIOEventLoop getEventLoop()
+    {
+        return eventLoop;
+    }
+
+    public InetSocketAddress getRemoteAddress()
+    {
+        return hostAddr;
+    }
+
+    public boolean isSecure()
+    {
+        return sslEngine != null;
+    }
+
+    public boolean isOpen()
+    {
+        return state == STATE_OPEN;
+    }
+
+    // set it before connect, NBufferPool.getDefault() is used if not set
+    public void setBufferAllocator(NIOBufferAllocator allocator)
+    {
+        bufferAllocator = allocator;
+    }
+
+    public void connect(final long timeout, final NIOCallback<NAsyncConnection> callback)
+    {
+        eventLoop.execute(new Runnable() {
+            public void run()
+            {
+                if (state != STATE_INIT) {
+                    callback.failed(new IOException("Connection was already started!"));
+                    return;
+                }
+                connectCallback = callback;
+                connectTimer = scheduleTimeout(timeout, "Connect to " + hostAddr.toString() + " timeout!");
+                try {
+                    doConnect();
+                } catch (Exception e) {
+                    handleError(e);
+                }
+            }
+        });
+    }
+
+    public void write(byte[] data, int offset, int len, long timeout, NIOCallback<Integer> callback)
+    {
+        write(ByteBuffer.wrap(data, offset, len), timeout, callback);
+    }
+
+    // the buffer shall not be touched by caller until the callback is called
+    public void write(final ByteBuffer src, final long timeout, final NIOCallback<Integer> callback)
+    {
+        eventLoop.execute(new Runnable() {
+            public void run()
+            {
+                if (state != STATE_OPEN) {
+                    callback.failed(new IOException("Connection is not open for writing!"));
+                    return;
+                }
+                if (writeCallback != null) {
+                    callback.failed(new IOException("Another write is still pending!"));
+                    return;
+                }
+                writeCallback = callback;
+                writeSource = src;
+                writeLength = src.remaining();
+                writeTimer = scheduleTimeout(timeout, "Wait for connection writable timeout!");
+                try {
+                    progressWrite();
+                    updateInterest();
+                } catch (Exception e) {
+                    handleError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads some data. The callback gets the internal buffer in read mode and shall consume
+     * what it needs before returning, the remaining data is kept for the next read. A null
+     * buffer means the peer has closed the connection.
+     */
+    public void read(final long timeout, final NIOCallback<ByteBuffer> callback)
+    {
+        eventLoop.execute(new Runnable() {
+            public void run()
+            {
+                if (state != STATE_OPEN) {
+                    callback.failed(new IOException("Connection is not open for reading!"));
+                    return;
+                }
+                if (readCallback != null) {
+                    callback.failed(new IOException("Another read is still pending!"));
+                    return;
+                }
+                readCallback = callback;
+                readTimer = scheduleTimeout(timeout, "Wait for connection readable timeout!");
+                try {
+                    progressRead();
+                    updateInterest();
+                } catch (Exception e) {
+                    handleError(e);
+                }
+            }
+        });
+    }
+
+    public void close()
+    {
+        eventLoop.execute(new Runnable() {
+            public void run()
+            {
+                closeWithError(new IOException("Connection was closed!"));
+            }
+        });
+    }
+
+    public void handleEvent(SelectionKey key) throws Exception
+    {
+        if (state == STATE_CONNECTING) {
+            if (key.isConnectable() && channel.finishConnect()) {
+                onConnected();
+            }
+        }
+        else if (state == STATE_HANDSHAKING) {
+            progressHandshake();
+        }
+        else if (state == STATE_OPEN) {
+            if (key.isWritable()) {
+                progressWrite();
+            }
+            if (key.isReadable()) {
+                progressRead();
+            }
+        }
+        updateInterest();
+    }
+
+    public void handleError(Exception e)
+    {
+        closeWithError(e);
+    }
+
+    private void doConnect() throws Exception
+    {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        selectionKey = eventLoop.register(channel, 0, this);
+
+        if (channel.connect(hostAddr)) {
+            onConnected();
+        }
+        else {
+            state = STATE_CONNECTING;
+        }
+        updateInterest();
+    }
+
+    private void onConnected() throws Exception
+    {
+        if (bufferAllocator == null) {
+            bufferAllocator = NBufferPool.getDefault();
+        }
+        if (sslEngine == null) {
+            readAppBuffer = bufferAllocator.allocate(BUFFER_CAPACITY);
+            readAppBuffer.flip(); // nothing read yet
+            state = STATE_OPEN;
+            completeConnect();
+        }
+        else {
+            SSLSession session = sslEngine.getSession();
+            readAppBuffer = bufferAllocator.allocate(session.getApplicationBufferSize());
+            readAppBuffer.flip();
+            readNetBuffer = bufferAllocator.allocate(session.getPacketBufferSize());
+            writeNetBuffer = bufferAllocator.allocate(session.getPacketBufferSize());
+            writeNetBuffer.flip();
+            state = STATE_HANDSHAKING;
+            sslEngine.beginHandshake();
+            progressHandshake();
+        }
+    }
+
+    private void progressHandshake() throws Exception
+    {
+        SSLEngineResult result;
+        while (state == STATE_HANDSHAKING) {
+            if (writeNetBuffer.hasRemaining()) {
+                channel.write(writeNetBuffer);
+                if (writeNetBuffer.hasRemaining()) {
+                    return; // wait for writable
+                }
+            }
+
+            HandshakeStatus hsStatus = sslEngine.getHandshakeStatus();
+            if (hsStatus == HandshakeStatus.NEED_WRAP) {
+                writeNetBuffer.clear();
+                result = sslEngine.wrap(dummyBuffer, writeNetBuffer);
+                writeNetBuffer.flip();
+                if (result.getStatus() != Status.OK) {
+                    throw new IOException("Handshake: wrap to outbound (" + result.getStatus() + ")");
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    state = STATE_OPEN;
+                }
+            }
+            else if (hsStatus == HandshakeStatus.NEED_UNWRAP) {
+                readNetBuffer.flip();
+                readAppBuffer.clear();
+                result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
+                readNetBuffer.compact();
+                readAppBuffer.flip();
+                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    state = STATE_OPEN;
+                }
+                if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+                    int readLen = channel.read(readNetBuffer);
+                    if (readLen < 0) {
+                        throw new IOException("Handshake: No data is read for unwrap!");
+                    }
+                    if (readLen == 0) {
+                        return; // wait for readable
+                    }
+                }
+                else if (result.getStatus() != Status.OK) {
+                    throw new IOException("Handshake: unwrap from inbound (" + result.getStatus() + ")");
+                }
+            }
+            else if (hsStatus == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            else {
+                // FINISHED or NOT_HANDSHAKING
+                state = STATE_OPEN;
+            }
+        }
+
+        if (state == STATE_OPEN) {
+            // the last handshake record may still wait in writeNetBuffer, progressWrite() flushes it
+            completeConnect();
+        }
+    }
+
+    private void progressWrite() throws Exception
+    {
+        if (sslEngine == null) {
+            if (writeSource != null) {
+                channel.write(writeSource);
+                if (! writeSource.hasRemaining()) {
+                    completeWrite();
+                }
+            }
+            return;
+        }
+
+        SSLEngineResult result;
+        while (true) {
+            if (writeNetBuffer.hasRemaining()) {
+                channel.write(writeNetBuffer);
+                if (writeNetBuffer.hasRemaining()) {
+                    return; // wait for writable
+                }
+            }
+            if (writeSource == null) {
+                return;
+            }
+            if (! writeSource.hasRemaining()) {
+                completeWrite();
+                return;
+            }
+            writeNetBuffer.clear();
+            result = sslEngine.wrap(writeSource, writeNetBuffer);
+            writeNetBuffer.flip();
+            if (result.getStatus() != Status.OK) {
+                throw new IOException("Unexpected status for wrap outbound data: " + result.getStatus());
+            }
+        }
+    }
+
+    private void progressRead() throws Exception
+    {
+        if (readCallback == null) {
+            return;
+        }
+        if (! readAppBuffer.hasRemaining()) {
+            int readLen;
+            if (sslEngine == null) {
+                readAppBuffer.clear();
+                readLen = channel.read(readAppBuffer);
+                readAppBuffer.flip();
+            }
+            else {
+                readLen = unwrapInboundData();
+            }
+            if (readLen < 0) {
+                completeRead(null);
+                return;
+            }
+            if (readLen == 0) {
+                return; // wait for readable
+            }
+        }
+        completeRead(readAppBuffer);
+    }
+
+    // returns count of application bytes unwrapped, 0 if more data is needed, -1 for end of stream
+    private int unwrapInboundData() throws Exception
+    {
+        readAppBuffer.clear();
+        try {
+            boolean needReadMore = (readNetBuffer.position() == 0);
+            while (readAppBuffer.position() == 0) {
+                if (needReadMore) {
+                    int readLen = channel.read(readNetBuffer);
+                    if (readLen <= 0) {
+                        return readLen;
+                    }
+                }
+                readNetBuffer.flip();
+                SSLEngineResult result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
+                readNetBuffer.compact();
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+
+                Status status = result.getStatus();
+                if (status == Status.BUFFER_UNDERFLOW) {
+                    needReadMore = true;
+                }
+                else if (status == Status.OK) {
+                    needReadMore = (readNetBuffer.position() == 0);
+                }
+                else if (status == Status.CLOSED) {
+                    return -1;
+                }
+                else {
+                    throw new IOException("Unexpected status for unwrap inbound data: " + status);
+                }
+            }
+            return readAppBuffer.position();
+        } finally {
+            readAppBuffer.flip();
+        }
+    }
+
+    private void updateInterest()
+    {
+        if (state == STATE_CLOSED || selectionKey == null || ! selectionKey.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (state == STATE_CONNECTING) {
+            ops = SelectionKey.OP_CONNECT;
+        }
+        else if (state == STATE_HANDSHAKING) {
+            ops = writeNetBuffer.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        }
+        else if (state == STATE_OPEN) {
+            if (writeCallback != null || (writeNetBuffer != null && writeNetBuffer.hasRemaining())) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (readCallback != null) {
+                ops |= SelectionKey.OP_READ;
+            }
+        }
+        selectionKey.interestOps(ops);
+    }
+
+    private void runDelegatedTasks()
+    {
+        Runnable runnable;
+        while ((runnable = sslEngine.getDelegatedTask()) != null) {
+            runnable.run();
+        }
+    }
+
+    private void completeConnect()
+    {
+        NIOCallback<NAsyncConnection> callback = connectCallback;
+        connectCallback = null;
+        connectTimer = cancelTimer(connectTimer);
+        if (callback != null) {
+            callback.completed(this);
+        }
+    }
+
+    private void completeWrite()
+    {
+        NIOCallback<Integer> callback = writeCallback;
+        writeCallback = null;
+        writeSource = null;
+        writeTimer = cancelTimer(writeTimer);
+        if (callback != null) {
+            callback.completed(writeLength);
+        }
+    }
+
+    private void completeRead(ByteBuffer data)
+    {
+        NIOCallback<ByteBuffer> callback = readCallback;
+        readCallback = null;
+        readTimer = cancelTimer(readTimer);
+        if (callback != null) {
+            callback.completed(data);
+        }
+    }
+
+    private void closeWithError(Exception e)
+    {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+        state = STATE_CLOSED;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+        releaseBuffers();
+
+        NIOCallback<NAsyncConnection> cbConnect = connectCallback;
+        NIOCallback<Integer> cbWrite = writeCallback;
+        NIOCallback<ByteBuffer> cbRead = readCallback;
+        connectCallback = null;
+        writeCallback = null;
+        writeSource = null;
+        readCallback = null;
+        connectTimer = cancelTimer(connectTimer);
+        writeTimer = cancelTimer(writeTimer);
+        readTimer = cancelTimer(readTimer);
+        if (cbConnect != null) {
+            cbConnect.failed(e);
+        }
+        if (cbWrite != null) {
+            cbWrite.failed(e);
+        }
+        if (cbRead != null) {
+            cbRead.failed(e);
+        }
+    }
+
+    private void releaseBuffers()
+    {
+        if (readAppBuffer != null) {
+            bufferAllocator.release(readAppBuffer);
+            readAppBuffer = null;
+        }
+        if (readNetBuffer != null) {
+            bufferAllocator.release(readNetBuffer);
+            readNetBuffer = null;
+        }
+        if (writeNetBuffer != null) {
+            bufferAllocator.release(writeNetBuffer);
+            writeNetBuffer = null;
+        }
+    }
+
+    // the whole connection fails when an operation times out, as its state is unknown then
+    private NTimerWheel.Timer scheduleTimeout(long timeout, final String message)
+    {
+        if (timeout <= 0) {
+            return null;
+        }
+        return eventLoop.schedule(new Runnable() {
+            public void run()
+            {
+                closeWithError(new IOException(message));
+            }
+        }, timeout);
+    }
+
+    private static NTimerWheel.Timer cancelTimer(NTimerWheel.Timer timer)
+    {
+        if (timer != null) {
+            timer.cancel();
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,666 @@
+package net.easycrab.util.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * HTTP client on top of NIOReactor. Requests are sent and answered on the event loops, so
+ * a few threads can keep a large number of requests in flight. The returned future is
+ * completed on an event loop thread, dependent actions shall not block it.
+ * <pre>
+ *     NAsyncHttpClient client = new NAsyncHttpClient();
+ *     client.execute(new NHttpRequest("http://host/path")).thenAccept(...);
+ * </pre>
+ * Keep-alive connections are reused for later requests to the same host. Those left idle
+ * longer than the idle timeout are closed by a sweep on a timer of one of the event loops.
+ */
+public class NAsyncHttpClient
+{
+    private static final Charset    UTF8 = Charset.forName("utf-8");
+    private static final String     HTTP_PROTOCOL = "HTTP/1.1";
+
+    private final int               READ_CHUNK_SIZE = 8192; // 8K
+
+    private NIOReactor              reactor;
+    private boolean                 isOwnReactor;
+    private NTLSClientConfig        tlsConfig;
+    private NIOResolver             resolver;
+    private Executor                resolveExecutor;
+    private ExecutorService         ownResolveExecutor;
+    private int                     maxIdlePerHost = 8;
+    private long                    idleTimeout = 30000; // 30 seconds
+
+    private ConcurrentHashMap<String, ConcurrentLinkedDeque<IdleConnection>>    idleConnections;
+    private boolean                 isSweepScheduled;
+    private boolean                 isClosed;
+
+    private static class IdleConnection
+    {
+        NAsyncConnection    connection;
+        long                idleSince;
+
+        IdleConnection(NAsyncConnection connection)
+        {
+            this.connection = connection;
+            idleSince = System.nanoTime();
+        }
+    }
+
+    public NAsyncHttpClient() throws IOException
+    {
+        this(new NIOReactor());
+        isOwnReactor = true;
+    }
+
+    public NAsyncHttpClient(NIOReactor reactor)
+    {
+        this.reactor = reactor;
+        idleConnections = new ConcurrentHashMap<String, ConcurrentLinkedDeque<IdleConnection>>();
+    }
+
+    // NTLSClientConfig.getDefault() is used if not set
+    public void setTLSConfig(NTLSClientConfig config)
+    {
+        tlsConfig = config;
+    }
+
+    // NDnsCache.getDefault() is used if not set
+    public void setResolver(NIOResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Runs the host name lookups which are not answered from NDnsCache at once, so they
+     * block neither the caller nor an event loop. A pool of daemon threads is made if not set.
+     */
+    public void setResolveExecutor(Executor executor)
+    {
+        resolveExecutor = executor;
+    }
+
+    public void setMaxIdlePerHost(int count)
+    {
+        maxIdlePerHost = count;
+    }
+
+    public void setIdleTimeout(long timeout)
+    {
+        idleTimeout = timeout;
+    }
+
+    /**
+     * Sends the request, the future gets the response with the whole body.
+     */
+    public CompletableFuture<NHttpResponse> execute(NHttpRequest request)
+    {
+        return execute(request, null);
+    }
+
+    /**
+     * Sends the request and writes the response body into the output as it arrives, on the
+     * event loop thread. The future is completed after the whole body is written, the body
+     * of the response is null then. The output is not closed.
+     */
+    public CompletableFuture<NHttpResponse> execute(NHttpRequest request, OutputStream bodyOutput)
+    {
+        CompletableFuture<NHttpResponse> future = new CompletableFuture<NHttpResponse>();
+        try {
+            Exchange exchange = new Exchange(request, bodyOutput, future);
+            exchange.start();
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Closes the idle connections, and stops the event loops if they were created by this client.
+     */
+    public void close()
+    {
+        synchronized (this) {
+            isClosed = true;
+        }
+        Iterator<ConcurrentLinkedDeque<IdleConnection>> lists = idleConnections.values().iterator();
+        while (lists.hasNext()) {
+            IdleConnection idle;
+            ConcurrentLinkedDeque<IdleConnection> list = lists.next();
+            while ((idle = list.poll()) != null) {
+                idle.connection.close();
+            }
+        }
+        if (isOwnReactor) {
+            reactor.shutdown();
+        }
+        synchronized (this) {
+            if (ownResolveExecutor != null) {
+                ownResolveExecutor.shutdown();
+                ownResolveExecutor = null;
+            }
+        }
+    }
+
+    private synchronized Executor getResolveExecutor()
+    {
+        if (resolveExecutor != null) {
+            return resolveExecutor;
+        }
+        if (ownResolveExecutor == null) {
+            ownResolveExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task, "NAsyncHttpClient-resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return ownResolveExecutor;
+    }
+
+    private NAsyncConnection acquireConnection(String poolKey)
+    {
+        ConcurrentLinkedDeque<IdleConnection> list = idleConnections.get(poolKey);
+        if (list == null) {
+            return null;
+        }
+        long tsNow = System.nanoTime();
+        IdleConnection idle;
+        // most recently used first, it is the least likely to be closed by server
+        while ((idle = list.pollFirst()) != null) {
+            if (idle.connection.isOpen() && tsNow - idle.idleSince < idleTimeout * NDeadline.NANOS_PER_MILLI) {
+                return idle.connection;
+            }
+            idle.connection.close();
+        }
+        return null;
+    }
+
+    private void releaseConnection(String poolKey, NAsyncConnection conn)
+    {
+        ConcurrentLinkedDeque<IdleConnection> list = idleConnections.get(poolKey);
+        if (list == null) {
+            list = new ConcurrentLinkedDeque<IdleConnection>();
+            ConcurrentLinkedDeque<IdleConnection> existing = idleConnections.putIfAbsent(poolKey, list);
+            if (existing != null) {
+                list = existing;
+            }
+        }
+        list.offerFirst(new IdleConnection(conn));
+        while (list.size() > maxIdlePerHost) {
+            IdleConnection oldest = list.pollLast();
+            if (oldest == null) {
+                break;
+            }
+            oldest.connection.close();
+        }
+        synchronized (this) {
+            if (! isSweepScheduled && ! isClosed) {
+                isSweepScheduled = true;
+                scheduleSweep(reactor.next());
+            }
+        }
+    }
+
+    // timers can only be added on the loop thread
+    private void scheduleSweep(final NIOEventLoop loop)
+    {
+        if (! loop.inEventLoop()) {
+            loop.execute(new Runnable() {
+                public void run()
+                {
+                    scheduleSweep(loop);
+                }
+            });
+            return;
+        }
+        loop.schedule(new Runnable() {
+            public void run()
+            {
+                sweepIdleConnections(loop);
+            }
+        }, Math.max(idleTimeout / 2, NTimerWheel.DEFAULT_TICK));
+    }
+
+    /**
+     * Closes the connections idle longer than the idle timeout of all hosts, and runs again
+     * while any connection is left idle.
+     */
+    private void sweepIdleConnections(NIOEventLoop loop)
+    {
+        long tsExpired = System.nanoTime() - idleTimeout * NDeadline.NANOS_PER_MILLI;
+        Iterator<ConcurrentLinkedDeque<IdleConnection>> lists = idleConnections.values().iterator();
+        while (lists.hasNext()) {
+            // oldest at the tail, the removal keeps acquireConnection() from taking it as well
+            ConcurrentLinkedDeque<IdleConnection> list = lists.next();
+            IdleConnection idle;
+            while ((idle = list.peekLast()) != null
+                    && (! idle.connection.isOpen() || idle.idleSince - tsExpired <= 0)) {
+                if (list.removeLastOccurrence(idle)) {
+                    idle.connection.close();
+                }
+            }
+        }
+
+        synchronized (this) {
+            boolean hasIdle = false;
+            lists = idleConnections.values().iterator();
+            while (lists.hasNext() && ! hasIdle) {
+                hasIdle = ! lists.next().isEmpty();
+            }
+            if (hasIdle && ! isClosed) {
+                scheduleSweep(loop);
+            }
+            else {
+                isSweepScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * State of one request and its response, all callbacks run on the event loop of the connection.
+     */
+    private class Exchange implements NIOCallback<ByteBuffer>
+    {
+        private static final int    BODY_NONE = 0;
+        private static final int    BODY_LENGTH = 1;
+        private static final int    BODY_CHUNKED = 2;
+        private static final int    BODY_UNTIL_CLOSE = 3;
+
+        private NHttpRequest        request;
+        private OutputStream        bodyOutput;
+        private CompletableFuture<NHttpResponse>    future;
+
+        private boolean             isSecure;
+        private String              host;
+        private int                 port;
+        private String              poolKey;
+        private byte[]              requestData;
+
+        private NAsyncConnection    connection;
+        private boolean             isReusedConnection;
+        private boolean             hasResponseData;
+
+        private NHttpResponseParser parser;
+        private byte[]              readChunk;
+        private int                 bodyMode;
+        private long                bodyRemaining;
+        private boolean             isKeepAlive;
+        private OutputStream        bodySink;
+        private ByteArrayOutputStream           bodyBuffer;
+        private NGzipDecodingOutputStream       gzipStream;
+        private long                bodyLength;
+        private NChunkedDecoder     chunkedDecoder;
+
+        Exchange(NHttpRequest request, OutputStream bodyOutput, CompletableFuture<NHttpResponse> future)
+                throws Exception
+        {
+            this.request = request;
+            this.bodyOutput = bodyOutput;
+            this.future = future;
+
+            URI uri = new URI(request.getUrl());
+            String scheme = uri.getScheme();
+            if ("https".equalsIgnoreCase(scheme)) {
+                isSecure = true;
+            }
+            else if (! "http".equalsIgnoreCase(scheme)) {
+                throw new IOException("Unaccepted Protocol [" + scheme + "]");
+            }
+            host = uri.getHost();
+            if (host == null) {
+                throw new IOException("Invalid URL, no host is given!");
+            }
+            port = uri.getPort();
+            int defaultPort = isSecure ? 443 : 80;
+            if (port <= 0) {
+                port = defaultPort;
+            }
+            poolKey = (isSecure ? "https://" : "http://") + host + ":" + port;
+
+            String path = uri.getRawPath();
+            if (path == null || path.length() == 0) {
+                path = "/";
+            }
+            if (uri.getRawQuery() != null) {
+                path = path + "?" + uri.getRawQuery();
+            }
+            requestData = buildRequestData(path, (port == defaultPort) ? host : host + ":" + port);
+        }
+
+        void start() throws Exception
+        {
+            NAsyncConnection conn = acquireConnection(poolKey);
+            if (conn != null) {
+                isReusedConnection = true;
+                sendRequest(conn);
+            }
+            else {
+                connectNew();
+            }
+        }
+
+        private void sendRequest(NAsyncConnection conn)
+        {
+            connection = conn;
+            parser = new NHttpResponseParser();
+            hasResponseData = false;
+            conn.write(requestData, 0, requestData.length, request.getTimeout(), new NIOCallback<Integer>() {
+                public void completed(Integer result)
+                {
+                    connection.read(request.getTimeout(), Exchange.this);
+                }
+
+                public void failed(Exception e)
+                {
+                    fail(e);
+                }
+            });
+        }
+
+        public void completed(ByteBuffer data)
+        {
+            if (future.isDone()) {
+                // cancelled by caller
+                connection.close();
+                return;
+            }
+            try {
+                if (data == null) {
+                    onEndOfStream();
+                    return;
+                }
+                if (readChunk == null) {
+                    readChunk = new byte[READ_CHUNK_SIZE];
+                }
+                while (data.hasRemaining()) {
+                    int len = Math.min(data.remaining(), readChunk.length);
+                    data.get(readChunk, 0, len);
+                    hasResponseData = true;
+                    if (processData(readChunk, 0, len)) {
+                        finish(data.hasRemaining());
+                        return;
+                    }
+                }
+                connection.read(request.getTimeout(), this);
+            } catch (Exception e) {
+                connection.close();
+                fail(e);
+            }
+        }
+
+        public void failed(Exception e)
+        {
+            fail(e);
+        }
+
+        private void fail(Exception e)
+        {
+            if (connection != null) {
+                connection.close();
+            }
+            if (isReusedConnection && ! hasResponseData && request.isIdempotent() && ! future.isDone()) {
+                // the idle connection was closed by server, try again on a new one
+                isReusedConnection = false;
+                connection = null;
+                connectNew();
+                return;
+            }
+            future.completeExceptionally(e);
+        }
+
+        private void connectNew()
+        {
+            final NIOResolver hostResolver = (resolver != null) ? resolver : NDnsCache.getDefault();
+            if (hostResolver instanceof NDnsCache) {
+                InetAddress[] addresses = ((NDnsCache) hostResolver).getCached(host);
+                if (addresses != null) {
+                    connectTo(addresses[0]);
+                    return;
+                }
+            }
+            // a lookup may block for seconds, it shall not stall the caller or an event loop
+            try {
+                getResolveExecutor().execute(new Runnable() {
+                    public void run()
+                    {
+                        InetAddress address;
+                        try {
+                            address = hostResolver.resolve(host)[0];
+                        } catch (Exception e) {
+                            fail(e);
+                            return;
+                        }
+                        connectTo(address);
+                    }
+                });
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void connectTo(InetAddress address)
+        {
+            // only the preferred address is tried, NAsyncConnection does not race
+            InetSocketAddress addr = new InetSocketAddress(address, port);
+            NAsyncConnection conn;
+            try {
+                if (isSecure) {
+                    NTLSClientConfig config = (tlsConfig != null) ? tlsConfig : NTLSClientConfig.getDefault();
+                    conn = reactor.createConnection(addr, config);
+                }
+                else {
+                    conn = reactor.createConnection(addr);
+                }
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            conn.connect(request.getTimeout(), new NIOCallback<NAsyncConnection>() {
+                public void completed(NAsyncConnection result)
+                {
+                    sendRequest(result);
+                }
+
+                public void failed(Exception e)
+                {
+                    fail(e);
+                }
+            });
+        }
+
+        private void onEndOfStream() throws Exception
+        {
+            if (parser.isComplete() && bodyMode == BODY_UNTIL_CLOSE) {
+                isKeepAlive = false;
+                finish(false);
+                return;
+            }
+            throw new IOException("Connection closed by peer before response was complete!");
+        }
+
+        /**
+         * Returns true when the response is complete.
+         */
+        private boolean processData(byte[] data, int offset, int len) throws Exception
+        {
+            int end = offset + len;
+            int pos = offset;
+            while (! parser.isComplete()) {
+                if (pos == end) {
+                    return false;
+                }
+                pos += parser.parse(data, pos, end - pos);
+                if (parser.isComplete()) {
+                    if (parser.getStatusCode() / 100 == 1) {
+                        // skip interim response, the final one follows
+                        parser.reset();
+                        continue;
+                    }
+                    prepareBody();
+                }
+            }
+
+            switch (bodyMode) {
+            case BODY_NONE:
+                break;
+            case BODY_LENGTH:
+                int count = (int) Math.min(bodyRemaining, end - pos);
+                writeBody(data, pos, count);
+                pos += count;
+                bodyRemaining -= count;
+                break;
+            case BODY_CHUNKED:
+                long decodedLen = chunkedDecoder.getBodyLength();
+                pos = chunkedDecoder.decode(data, pos, end, bodySink);
+                bodyLength += chunkedDecoder.getBodyLength() - decodedLen;
+                break;
+            default:
+                writeBody(data, pos, end - pos);
+                pos = end;
+                break;
+            }
+            if (pos < end) {
+                // more data than the response, the connection cannot be reused
+                isKeepAlive = false;
+            }
+            return isBodyDone();
+        }
+
+        private void prepareBody() throws Exception
+        {
+            int statusCode = parser.getStatusCode();
+            NHttpHeaders headers = parser.getHeaders();
+
+            if (HTTP_PROTOCOL.equalsIgnoreCase(parser.getProtocol())) {
+                isKeepAlive = ! headers.valueEquals("Connection", "close");
+            }
+            else {
+                isKeepAlive = headers.valueEquals("Connection", "keep-alive");
+            }
+
+            if ("HEAD".equals(request.getMethod()) || statusCode == 204 || statusCode == 304) {
+                bodyMode = BODY_NONE;
+            }
+            else if (headers.valueEquals("Transfer-Encoding", "chunked")) {
+                bodyMode = BODY_CHUNKED;
+                chunkedDecoder = new NChunkedDecoder();
+            }
+            else if (headers.contains("Content-Length")) {
+                try {
+                    bodyRemaining = headers.getLong("Content-Length", 0);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length [" + headers.get("Content-Length") + "]");
+                }
+                bodyMode = (bodyRemaining > 0) ? BODY_LENGTH : BODY_NONE;
+            }
+            else {
+                bodyMode = BODY_UNTIL_CLOSE;
+                isKeepAlive = false;
+            }
+
+            if (bodyOutput == null) {
+                bodyBuffer = new ByteArrayOutputStream();
+                bodySink = bodyBuffer;
+            }
+            else {
+                bodySink = bodyOutput;
+            }
+            if (request.isDecodeGzip() && headers.valueEquals("Content-Encoding", "gzip")) {
+                gzipStream = new NGzipDecodingOutputStream(bodySink);
+                bodySink = gzipStream;
+            }
+        }
+
+        private boolean isBodyDone()
+        {
+            switch (bodyMode) {
+            case BODY_NONE:
+                return true;
+            case BODY_LENGTH:
+                return bodyRemaining == 0;
+            case BODY_CHUNKED:
+                return chunkedDecoder.isDone();
+            default:
+                return false;
+            }
+        }
+
+        private void writeBody(byte[] data, int offset, int len) throws IOException
+        {
+            if (len > 0) {
+                bodySink.write(data, offset, len);
+                bodyLength += len;
+            }
+        }
+
+        private void finish(boolean hasExtraData) throws Exception
+        {
+            if (gzipStream != null) {
+                gzipStream.finish();
+            }
+            NHttpResponse response = new NHttpResponse(parser.getStatusCode(), parser.getStatusText(),
+                    parser.getHeaders());
+            long length = (gzipStream != null) ? gzipStream.getDecodedLength() : bodyLength;
+            response.setBody((bodyBuffer != null) ? bodyBuffer.toByteArray() : null, length);
+
+            if (isKeepAlive && ! hasExtraData) {
+                releaseConnection(poolKey, connection);
+            }
+            else {
+                connection.close();
+            }
+            future.complete(response);
+        }
+
+        private byte[] buildRequestData(String path, String hostHeader)
+        {
+            HashMap<String, String> headers = request.getHeaders();
+            byte[] body = request.getBody();
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(request.getMethod()).append(' ').append(path).append(' ').append(HTTP_PROTOCOL);
+            sb.append("\r\nHost: ").append(hostHeader).append("\r\n");
+            Iterator<Entry<String, String>> entries = headers.entrySet().iterator();
+            while (entries.hasNext()) {
+                Entry<String, String> entry = entries.next();
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+            if (body != null && ! headers.containsKey("Content-Length")) {
+                sb.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            if (request.isDecodeGzip() && ! headers.containsKey("Accept-Encoding")) {
+                sb.append("Accept-Encoding: gzip\r\n");
+            }
+            sb.append("\r\n");
+
+            byte[] header = sb.toString().getBytes(UTF8);
+            if (body == null || body.length == 0) {
+                return header;
+            }
+            byte[] data = new byte[header.length + body.length];
+            System.arraycopy(header, 0, data, 0, header.length);
+            System.arraycopy(body, 0, data, header.length, body.length);
+            return data;
+        }
+
+    }
+
+}
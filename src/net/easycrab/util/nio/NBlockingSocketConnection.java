@@ -0,0 +1,431 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Connection doing plain blocking socket I/O, meant for virtual threads: no selector is
+ * opened, a blocked read only parks the calling thread. Read timeouts keep the meaning of
+ * setTimeoutMode(), they are applied as socket read timeout computed from a deadline when
+ * the whole operation is limited. A socket write cannot time out, so a shared watchdog
+ * thread closes the socket when a write blocks past its limit. TLS is done with an SSLSocket
+ * from the NTLSClientConfig, so sessions are shared with the selector based connections.
+ */
+public class NBlockingSocketConnection implements NIOConnection
+{
+    private final int           TRANSFER_BUFFER_SIZE = 65536; // 64K
+
+    private static ScheduledThreadPoolExecutor  writeWatchdog;
+
+    private InetSocketAddress   hostAddr;
+    private InetSocketAddress[] hostAddrs;
+    private boolean             isSecure;
+    private NTLSClientConfig    tlsConfig;
+
+    private Socket              socket;
+    private Socket              plainSocket;    // under the SSLSocket, closed by the watchdog
+    private boolean             isClosed;
+    private volatile boolean    isWriteTimedOut;
+    private Runnable            writeTimeoutTask;
+    private InputStream         input;
+    private OutputStream        output;
+    private int                 soTimeout = -1;
+    private byte[]              transferBuf;
+    private boolean             onlyCheckBlockTime = true;
+    private NConnectionListener listener;
+    private NConnectionStats    stats;
+
+    public NBlockingSocketConnection(InetSocketAddress address)
+    {
+        hostAddr = address;
+        hostAddrs = new InetSocketAddress[] { address };
+    }
+
+    // TLS connection, the shared default config is used if config is null
+    public NBlockingSocketConnection(InetSocketAddress address, NTLSClientConfig config)
+    {
+        this(new InetSocketAddress[] { address }, true, config);
+    }
+
+    /**
+     * All addresses of one host, tried one after another. Blocking connects cannot race,
+     * so each address but the last gets only its share of the remaining timeout.
+     */
+    public NBlockingSocketConnection(InetSocketAddress[] addresses, boolean isSecure, NTLSClientConfig config)
+    {
+        hostAddr = addresses[0];
+        hostAddrs = addresses;
+        this.isSecure = isSecure;
+        tlsConfig = config;
+    }
+
+    public void connect(long timeout) throws Exception
+    {
+        long deadline = NDeadline.start(timeout);
+        long tsStart = 0;
+        if (listener != null) {
+            tsStart = System.nanoTime();
+            listener.connectStart(hostAddr);
+        }
+        plainSocket = null;
+        isClosed = false;
+        isWriteTimedOut = false;
+        writeTimeoutTask = null;
+        for (int i = 0; plainSocket == null; i++) {
+            long attemptTimeout = timeout;
+            if (timeout > 0) {
+                long remainNanos = deadline - System.nanoTime();
+                if (remainNanos <= 0) {
+                    throw connectFailed(tsStart, new IOException("Connect to " + hostAddr.toString() + " timeout!"));
+                }
+                attemptTimeout = Math.max(1, remainNanos / NDeadline.NANOS_PER_MILLI / (hostAddrs.length - i));
+            }
+            
+            Socket attempt = new Socket();
+            try {
+                attempt.setTcpNoDelay(true);
+                attempt.connect(hostAddrs[i], toSoTimeout(attemptTimeout));
+                plainSocket = attempt;
+                hostAddr = hostAddrs[i];
+            } catch (SocketTimeoutException e) {
+                attempt.close();
+                if (i == hostAddrs.length - 1) {
+                    throw connectFailed(tsStart, new IOException("Connect to " + hostAddrs[i].toString() + " timeout!"));
+                }
+            } catch (IOException e) {
+                attempt.close();
+                if (i == hostAddrs.length - 1) {
+                    throw connectFailed(tsStart, new IOException("Fail to connect to " + hostAddrs[i].toString() + " !"));
+                }
+            }
+        }
+        if (listener != null) {
+            listener.connectEnd(hostAddr, System.nanoTime() - tsStart);
+            tsStart = System.nanoTime();
+        }
+
+        if (isSecure) {
+            NTLSClientConfig config = (tlsConfig != null) ? tlsConfig : NTLSClientConfig.getDefault();
+            SSLSocket sslSocket = config.createSocket(plainSocket, hostAddr.getHostString(), hostAddr.getPort());
+            socket = sslSocket;
+            if (listener != null) {
+                listener.handshakeStart(hostAddr);
+            }
+            try {
+                setReadTimeout(timeout, deadline);
+                sslSocket.startHandshake();
+            } catch (SocketTimeoutException e) {
+                sslSocket.close();
+                throw new IOException("Handshake with " + hostAddr.toString() + " timeout!");
+            } catch (IOException e) {
+                sslSocket.close();
+                throw e;
+            }
+            if (listener != null) {
+                listener.handshakeEnd(sslSocket.getSession(), System.nanoTime() - tsStart);
+            }
+        }
+        else {
+            socket = plainSocket;
+        }
+        input = socket.getInputStream();
+        output = socket.getOutputStream();
+    }
+
+    public void close() throws Exception
+    {
+        // the watchdog may have closed the socket already, the close is still reported
+        if (socket != null && ! isClosed) {
+            isClosed = true;
+            socket.close();
+            if (listener != null) {
+                listener.connectionClosed(hostAddr, stats);
+            }
+        }
+    }
+
+    public void setTimeoutMode(boolean isOnlyCheckBlockTime)
+    {
+        onlyCheckBlockTime = isOnlyCheckBlockTime;
+    }
+
+    public void setBufferAllocator(NIOBufferAllocator allocator)
+    {
+        // socket streams do their own buffering, nothing to allocate here
+    }
+    
+    public void setListener(NConnectionListener listener)
+    {
+        this.listener = listener;
+        if (listener != null && stats == null) {
+            stats = new NConnectionStats();
+        }
+    }
+    
+    public InetSocketAddress getRemoteAddress()
+    {
+        return hostAddr;
+    }
+
+    // counted on the stream, so for TLS the bytes are application data and no record is seen
+    public NConnectionStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Probes the socket with a read of 1 millisecond, as a blocking socket cannot be polled.
+     */
+    public boolean isAlive()
+    {
+        if (socket == null || socket.isClosed() || ! socket.isConnected()) {
+            return false;
+        }
+        try {
+            if (input.available() > 0) {
+                // unconsumed data from previous response
+                return false;
+            }
+            socket.setSoTimeout(1);
+            soTimeout = 1;
+            // -1 means the peer has closed, any data means the stream is out of sync
+            input.read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void write(long timeout, byte[] data, int offset, int len) throws Exception
+    {
+        writeStream(timeout, NDeadline.start(timeout), data, offset, len);
+    }
+
+    public void write(long timeout, ByteBuffer[] srcs) throws Exception
+    {
+        // streams cannot gather, so small data is joined to go out in one piece
+        long deadline = NDeadline.start(timeout);
+        byte[] buf = getTransferBuffer();
+        int bufLen = 0;
+        for (ByteBuffer src : srcs) {
+            while (src.hasRemaining()) {
+                if (bufLen == buf.length) {
+                    writeStream(timeout, deadline, buf, 0, bufLen);
+                    bufLen = 0;
+                }
+                int len = Math.min(src.remaining(), buf.length - bufLen);
+                src.get(buf, bufLen, len);
+                bufLen += len;
+            }
+        }
+        if (bufLen > 0) {
+            writeStream(timeout, deadline, buf, 0, bufLen);
+        }
+    }
+
+    public int read(long timeout, byte[] data, int offset, int len) throws Exception
+    {
+        long deadline = NDeadline.start(timeout);
+        int totalReadLen = 0;
+        while (totalReadLen < len) {
+            int readLen = readSome(timeout, deadline, data, offset + totalReadLen, len - totalReadLen);
+            if (readLen < 0) {
+                throw new IOException("Cannot read more from the connection!");
+            }
+            totalReadLen += readLen;
+        }
+        return totalReadLen;
+    }
+
+    public int readAvailable(long timeout, byte[] data, int offset, int len) throws Exception
+    {
+        if (len == 0) {
+            return 0;
+        }
+        return readSome(timeout, NDeadline.start(timeout), data, offset, len);
+    }
+
+    public int readAvailable(long timeout, ByteBuffer dst) throws Exception
+    {
+        if (! dst.hasRemaining()) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int readLen = readSome(timeout, NDeadline.start(timeout), dst.array(),
+                    dst.arrayOffset() + dst.position(), dst.remaining());
+            if (readLen > 0) {
+                dst.position(dst.position() + readLen);
+            }
+            return readLen;
+        }
+
+        byte[] buf = getTransferBuffer();
+        int readLen = readSome(timeout, NDeadline.start(timeout), buf, 0, Math.min(buf.length, dst.remaining()));
+        if (readLen > 0) {
+            dst.put(buf, 0, readLen);
+        }
+        return readLen;
+    }
+
+    public long transferTo(long timeout, FileChannel target, long position, long count) throws Exception
+    {
+        long deadline = NDeadline.start(timeout);
+        byte[] buf = getTransferBuffer();
+        long transferLen = 0;
+        while (transferLen < count) {
+            int readLen = readSome(timeout, deadline, buf, 0, (int) Math.min(buf.length, count - transferLen));
+            if (readLen < 0) {
+                break;
+            }
+            ByteBuffer src = ByteBuffer.wrap(buf, 0, readLen);
+            while (src.hasRemaining()) {
+                transferLen += target.write(src, position + transferLen);
+            }
+        }
+        return transferLen;
+    }
+
+    public void transferFrom(long timeout, FileChannel src, long position, long count) throws Exception
+    {
+        long deadline = NDeadline.start(timeout);
+        byte[] buf = getTransferBuffer();
+        long sentLen = 0;
+        while (sentLen < count) {
+            ByteBuffer dst = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, count - sentLen));
+            while (dst.hasRemaining()) {
+                if (src.read(dst, position + sentLen + dst.position()) < 0) {
+                    throw new IOException("File ends before " + count + " bytes are sent!");
+                }
+            }
+            writeStream(timeout, deadline, buf, 0, dst.position());
+            sentLen += dst.position();
+        }
+    }
+    
+    private int readSome(long timeout, long deadline, byte[] data, int offset, int len) throws Exception
+    {
+        setReadTimeout(timeout, deadline);
+        try {
+            int readLen = input.read(data, offset, len);
+            if (stats != null) {
+                stats.onRead(readLen);
+            }
+            return readLen;
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Wait for connection readable timeout!");
+        }
+    }
+    
+    private void writeStream(long timeout, long deadline, byte[] data, int offset, int len) throws IOException
+    {
+        long waitTime = NDeadline.waitTime(timeout, deadline, onlyCheckBlockTime,
+                "Wait for connection writable timeout!");
+        ScheduledFuture<?> timer = null;
+        if (waitTime > 0) {
+            timer = getWriteWatchdog().schedule(getWriteTimeoutTask(), waitTime, TimeUnit.MILLISECONDS);
+        }
+        try {
+            output.write(data, offset, len);
+        } catch (IOException e) {
+            if (isWriteTimedOut) {
+                throw new IOException("Wait for connection writable timeout!");
+            }
+            throw e;
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        if (isWriteTimedOut) {
+            // fired just as the write completed, the socket is closed anyway
+            throw new IOException("Wait for connection writable timeout!");
+        }
+        if (stats != null) {
+            stats.onWrite(len);
+        }
+    }
+    
+    private IOException connectFailed(long tsStart, IOException e)
+    {
+        if (listener != null) {
+            listener.connectFailed(hostAddr, System.nanoTime() - tsStart, e);
+        }
+        return e;
+    }
+
+    private void setReadTimeout(long timeout, long deadline) throws IOException
+    {
+        int newTimeout = toSoTimeout(NDeadline.waitTime(timeout, deadline, onlyCheckBlockTime,
+                "Wait for connection readable timeout!"));
+        if (newTimeout != soTimeout) {
+            socket.setSoTimeout(newTimeout);
+            soTimeout = newTimeout;
+        }
+    }
+
+    // closes the plain socket, closing an SSLSocket would wait for the blocked writer
+    private Runnable getWriteTimeoutTask()
+    {
+        if (writeTimeoutTask == null) {
+            final Socket target = plainSocket;
+            writeTimeoutTask = new Runnable() {
+                public void run()
+                {
+                    isWriteTimedOut = true;
+                    try {
+                        target.close();
+                    } catch (IOException e) {
+                        // nothing more can be done, the writer fails anyway
+                    }
+                }
+            };
+        }
+        return writeTimeoutTask;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getWriteWatchdog()
+    {
+        if (writeWatchdog == null) {
+            writeWatchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "NBlockingSocketConnection-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // most writes finish in time, their timers shall not pile up in the queue
+            writeWatchdog.setRemoveOnCancelPolicy(true);
+        }
+        return writeWatchdog;
+    }
+
+    private byte[] getTransferBuffer()
+    {
+        if (transferBuf == null) {
+            transferBuf = new byte[TRANSFER_BUFFER_SIZE];
+        }
+        return transferBuf;
+    }
+
+    private static int toSoTimeout(long timeout)
+    {
+        // 0 means no limit for socket
+        return (timeout > 0) ? (int) Math.min(timeout, Integer.MAX_VALUE) : 0;
+    }
+
+}
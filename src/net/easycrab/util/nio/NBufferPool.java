@@ -0,0 +1,175 @@
+package net.easycrab.util.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct (or heap) buffers in size classes of 4K up to 64K. Each thread keeps a few
+ * released buffers for itself, the rest go to queues shared by all threads. Larger buffers
+ * are not pooled. Direct buffers let channels do I/O without the temporary direct copy the
+ * JDK makes for heap buffers, and pooling saves their costly allocation per connection.
+ */
+public class NBufferPool implements NIOBufferAllocator
+{
+    public static final long        DEFAULT_MAX_POOLED_BYTES = 32L * 1024 * 1024; // 32M
+    public static final int         DEFAULT_THREAD_CACHE_BYTES = 256 * 1024; // 256K
+
+    private static final int        SIZE_CLASS_UNIT = 4096; // 4K
+    private static final int        SIZE_CLASS_COUNT = 16;
+    private static final int        THREAD_CACHE_SLOTS = 8; // per size class
+
+    private static NBufferPool      defaultPool;
+
+    private boolean                 isDirect;
+    private long                    maxPooledBytes;
+    private int                     threadCacheBytes;
+
+    private ConcurrentLinkedQueue<ByteBuffer>[] sharedQueues;
+    private AtomicLong              pooledBytes;
+    private ThreadLocal<ThreadCache>            threadCache;
+
+    private static class ThreadCache
+    {
+        ByteBuffer[][]  buffers = new ByteBuffer[SIZE_CLASS_COUNT][THREAD_CACHE_SLOTS];
+        int[]           counts = new int[SIZE_CLASS_COUNT];
+        int             bytes;
+    }
+
+    public NBufferPool()
+    {
+        this(true, DEFAULT_MAX_POOLED_BYTES, DEFAULT_THREAD_CACHE_BYTES);
+    }
+
+    /**
+     * maxPooledBytes limits the buffers kept in shared queues, threadCacheBytes limits the
+     * buffers kept by each thread, 0 turns thread caches off (e.g. for many short threads).
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public NBufferPool(boolean isDirect, long maxPooledBytes, int threadCacheBytes)
+    {
+        this.isDirect = isDirect;
+        this.maxPooledBytes = maxPooledBytes;
+        this.threadCacheBytes = threadCacheBytes;
+        sharedQueues = new ConcurrentLinkedQueue[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            sharedQueues[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+        pooledBytes = new AtomicLong();
+        threadCache = new ThreadLocal<ThreadCache>() {
+            protected ThreadCache initialValue()
+            {
+                return new ThreadCache();
+            }
+        };
+    }
+
+    /**
+     * The allocator used by connections which are not given one.
+     */
+    public static synchronized NBufferPool getDefault()
+    {
+        if (defaultPool == null) {
+            defaultPool = new NBufferPool();
+        }
+        return defaultPool;
+    }
+
+    public static synchronized void setDefault(NBufferPool pool)
+    {
+        defaultPool = pool;
+    }
+
+    public boolean isDirect()
+    {
+        return isDirect;
+    }
+
+    // bytes kept in shared queues, thread caches are not counted
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+
+    public ByteBuffer allocate(int capacity)
+    {
+        int index = getSizeClass(capacity);
+        if (index < 0) {
+            return newBuffer(capacity);
+        }
+
+        ByteBuffer buffer = null;
+        if (threadCacheBytes > 0) {
+            ThreadCache cache = threadCache.get();
+            int count = cache.counts[index];
+            if (count > 0) {
+                count--;
+                buffer = cache.buffers[index][count];
+                cache.buffers[index][count] = null;
+                cache.counts[index] = count;
+                cache.bytes -= buffer.capacity();
+            }
+        }
+        if (buffer == null) {
+            buffer = sharedQueues[index].poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(- buffer.capacity());
+            }
+            else {
+                buffer = newBuffer((index + 1) * SIZE_CLASS_UNIT);
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Only buffers got from allocate() shall be released here, others are ignored if possible.
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.isDirect() != isDirect || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity % SIZE_CLASS_UNIT != 0 || capacity > SIZE_CLASS_UNIT * SIZE_CLASS_COUNT) {
+            // not allocated by pool, left to GC
+            return;
+        }
+        int index = capacity / SIZE_CLASS_UNIT - 1;
+
+        if (threadCacheBytes > 0) {
+            ThreadCache cache = threadCache.get();
+            int count = cache.counts[index];
+            if (count < THREAD_CACHE_SLOTS && cache.bytes + capacity <= threadCacheBytes) {
+                cache.buffers[index][count] = buffer;
+                cache.counts[index] = count + 1;
+                cache.bytes += capacity;
+                return;
+            }
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            // pool is full, left to GC
+            pooledBytes.addAndGet(- capacity);
+            return;
+        }
+        sharedQueues[index].offer(buffer);
+    }
+
+    private ByteBuffer newBuffer(int capacity)
+    {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int getSizeClass(int capacity)
+    {
+        if (capacity > SIZE_CLASS_UNIT * SIZE_CLASS_COUNT) {
+            return -1;
+        }
+        if (capacity <= SIZE_CLASS_UNIT) {
+            return 0;
+        }
+        return (capacity + SIZE_CLASS_UNIT - 1) / SIZE_CLASS_UNIT - 1;
+    }
+
+}
@@ -0,0 +1,192 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Byte level decoder of a chunked message body. It keeps its state between calls, so data
+ * may be fed in pieces split anywhere, e.g. as they come from a non-blocking read. Sizes are
+ * parsed from the bytes directly, extensions and trailers are skipped where they are, and
+ * the body is passed on as slices of the fed data without copying.
+ * <p>
+ * decode() with a sink handles all in one call. A caller which moves body data by itself,
+ * e.g. straight from socket to file, calls skipFraming() to reach body data, takes at most
+ * getChunkRemaining() bytes and reports them by consumeData().
+ */
+public class NChunkedDecoder
+{
+    private static final int    CHUNK_SIZE = 0;
+    private static final int    CHUNK_EXTENSION = 1;
+    private static final int    CHUNK_SIZE_LF = 2;
+    private static final int    CHUNK_DATA = 3;
+    private static final int    CHUNK_DATA_END = 4;
+    private static final int    CHUNK_TRAILER = 5;
+    private static final int    CHUNK_DONE = 6;
+
+    private int                 state;
+    private long                chunkRemaining;
+    private int                 chunkSizeDigits;
+    private int                 trailerLineLen;
+    private long                bodyLength;
+
+    public void reset()
+    {
+        state = CHUNK_SIZE;
+        chunkRemaining = 0;
+        chunkSizeDigits = 0;
+        trailerLineLen = 0;
+        bodyLength = 0;
+    }
+
+    // the last chunk and the trailer have been read
+    public boolean isDone()
+    {
+        return state == CHUNK_DONE;
+    }
+
+    // count of body bytes decoded so far
+    public long getBodyLength()
+    {
+        return bodyLength;
+    }
+
+    // body bytes of the current chunk which directly follow, 0 while framing is expected
+    public long getChunkRemaining()
+    {
+        return (state == CHUNK_DATA) ? chunkRemaining : 0;
+    }
+
+    /**
+     * Decodes data[offset, end) and writes the body bytes to the sink, which may be null to
+     * drop them. Returns the position where decoding stopped, it is less than end only if
+     * the body is done and the rest does not belong to it.
+     */
+    public int decode(byte[] data, int offset, int end, OutputStream sink) throws IOException
+    {
+        int pos = offset;
+        while (pos < end && state != CHUNK_DONE) {
+            pos = skipFraming(data, pos, end);
+            int len = (int) Math.min(getChunkRemaining(), end - pos);
+            if (len > 0) {
+                if (sink != null) {
+                    sink.write(data, pos, len);
+                }
+                consumeData(len);
+                pos += len;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Parses size lines, chunk ends and trailers from data[offset, end) until body data is
+     * reached or the body is done. Returns the position where it stopped.
+     */
+    public int skipFraming(byte[] data, int offset, int end) throws IOException
+    {
+        int pos = offset;
+        while (pos < end && state != CHUNK_DATA && state != CHUNK_DONE) {
+            byte b = data[pos++];
+            switch (state) {
+            case CHUNK_SIZE:
+                int digit = hexDigit(b);
+                if (digit >= 0) {
+                    if (chunkRemaining > (Long.MAX_VALUE >> 4)) {
+                        throw new IOException("Too large chunk size!");
+                    }
+                    chunkRemaining = (chunkRemaining << 4) + digit;
+                    chunkSizeDigits++;
+                }
+                else if (b == ';' || b == ' ' || b == '\t') {
+                    state = CHUNK_EXTENSION;
+                }
+                else if (b == '\r') {
+                    state = CHUNK_SIZE_LF;
+                }
+                else if (b == '\n') {
+                    onChunkSizeDone();
+                }
+                else {
+                    throw new IOException("Invalid chunk size line!");
+                }
+                break;
+            case CHUNK_EXTENSION:
+                // extensions are ignored
+                if (b == '\n') {
+                    onChunkSizeDone();
+                }
+                break;
+            case CHUNK_SIZE_LF:
+                if (b != '\n') {
+                    throw new IOException("Invalid chunk size line!");
+                }
+                onChunkSizeDone();
+                break;
+            case CHUNK_DATA_END:
+                if (b == '\n') {
+                    state = CHUNK_SIZE;
+                    chunkSizeDigits = 0;
+                }
+                else if (b != '\r') {
+                    throw new IOException("The Terminate CRLF expected for end of chunk body!");
+                }
+                break;
+            default:
+                // trailer lines are ignored, an empty line ends the body
+                if (b == '\n') {
+                    if (trailerLineLen == 0) {
+                        state = CHUNK_DONE;
+                    }
+                    trailerLineLen = 0;
+                }
+                else if (b != '\r') {
+                    trailerLineLen++;
+                }
+                break;
+            }
+        }
+        return pos;
+    }
+
+    // len body bytes of the current chunk have been taken by the caller
+    public void consumeData(long len) throws IOException
+    {
+        if (len > getChunkRemaining()) {
+            throw new IOException("Data beyond the end of chunk!");
+        }
+        chunkRemaining -= len;
+        bodyLength += len;
+        if (chunkRemaining == 0) {
+            state = CHUNK_DATA_END;
+        }
+    }
+
+    private void onChunkSizeDone() throws IOException
+    {
+        if (chunkSizeDigits == 0) {
+            throw new IOException("Invalid chunk size line!");
+        }
+        if (chunkRemaining == 0) {
+            state = CHUNK_TRAILER;
+            trailerLineLen = 0;
+        }
+        else {
+            state = CHUNK_DATA;
+        }
+    }
+
+    private static int hexDigit(byte b)
+    {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,177 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Request body sent with chunked transfer encoding, got from NHttpConnection.getChunkedOutputStream().
+ * Written data is collected in a buffer and goes out as one chunk whenever the buffer is full
+ * or flush() is called. finish() sends the last chunk with optional trailers, it is called by
+ * the connection before the response is read if caller has not done it.
+ */
+public class NChunkedOutputStream extends OutputStream
+{
+    private static final Charset    ASCII = Charset.forName("us-ascii");
+    private static final byte[]     CRLF = new byte[] { '\r', '\n' };
+
+    private NHttpConnection     httpConn;
+    private byte[]              buffer;
+    private int                 bufferLen;
+    private byte[]              sizeLine = new byte[10]; // up to 8 hex digits and CRLF
+    private long                totalLength;
+    private boolean             isFinished;
+
+    NChunkedOutputStream(NHttpConnection connection, int bufferSize)
+    {
+        httpConn = connection;
+        buffer = new byte[bufferSize];
+    }
+
+    // count of body bytes written, framing not included
+    public long getTotalLength()
+    {
+        return totalLength;
+    }
+
+    public boolean isFinished()
+    {
+        return isFinished;
+    }
+
+    public void write(int b) throws IOException
+    {
+        checkNotFinished();
+        if (bufferLen == buffer.length) {
+            sendChunk(buffer, 0, bufferLen);
+            bufferLen = 0;
+        }
+        buffer[bufferLen++] = (byte) b;
+        totalLength++;
+    }
+
+    public void write(byte[] data, int offset, int len) throws IOException
+    {
+        checkNotFinished();
+        totalLength += len;
+        while (len > 0) {
+            if (bufferLen == 0 && len >= buffer.length) {
+                // large data goes out as a chunk at once, no need to copy it
+                sendChunk(data, offset, len);
+                return;
+            }
+            int copyLen = Math.min(len, buffer.length - bufferLen);
+            System.arraycopy(data, offset, buffer, bufferLen, copyLen);
+            bufferLen += copyLen;
+            offset += copyLen;
+            len -= copyLen;
+            if (bufferLen == buffer.length) {
+                sendChunk(buffer, 0, bufferLen);
+                bufferLen = 0;
+            }
+        }
+    }
+
+    // send the buffered data as a chunk
+    public void flush() throws IOException
+    {
+        checkNotFinished();
+        if (bufferLen > 0) {
+            sendChunk(buffer, 0, bufferLen);
+            bufferLen = 0;
+        }
+    }
+
+    public void finish() throws IOException
+    {
+        finish(null);
+    }
+
+    /**
+     * Sends the buffered data and the last chunk followed by the trailers, if any. The
+     * trailer names may be announced in a "Trailer" request header.
+     */
+    public void finish(HashMap<String, String> trailers) throws IOException
+    {
+        if (isFinished) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("0\r\n");
+        if (trailers != null) {
+            Iterator<Entry<String, String>> entries = trailers.entrySet().iterator();
+            while (entries.hasNext()) {
+                Entry<String, String> entry = entries.next();
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        byte[] lastChunk = sb.toString().getBytes(ASCII);
+
+        // the last data chunk and the end go out together
+        ByteBuffer[] data;
+        if (bufferLen > 0) {
+            data = new ByteBuffer[] { ByteBuffer.wrap(sizeLine, 0, fillSizeLine(bufferLen)),
+                    ByteBuffer.wrap(buffer, 0, bufferLen), ByteBuffer.wrap(CRLF), ByteBuffer.wrap(lastChunk) };
+        }
+        else {
+            data = new ByteBuffer[] { ByteBuffer.wrap(lastChunk) };
+        }
+        bufferLen = 0;
+        isFinished = true;
+        send(data);
+    }
+
+    /**
+     * Finishes the body, the connection is not closed.
+     */
+    public void close() throws IOException
+    {
+        finish(null);
+    }
+
+    private void sendChunk(byte[] data, int offset, int len) throws IOException
+    {
+        send(new ByteBuffer[] { ByteBuffer.wrap(sizeLine, 0, fillSizeLine(len)),
+                ByteBuffer.wrap(data, offset, len), ByteBuffer.wrap(CRLF) });
+    }
+
+    private void send(ByteBuffer[] data) throws IOException
+    {
+        try {
+            httpConn.sendBuffers(data);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Fail to send chunk! " + e.getMessage());
+        }
+    }
+
+    private int fillSizeLine(int len)
+    {
+        // an int has at most 8 hex digits, and a shift by 32 would not shift at all
+        int digits = 1;
+        while (digits < 8 && (len >>> (digits * 4)) != 0) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            sizeLine[i] = (byte) Character.forDigit(len & 0xf, 16);
+            len >>>= 4;
+        }
+        sizeLine[digits] = '\r';
+        sizeLine[digits + 1] = '\n';
+        return digits + 2;
+    }
+
+    private void checkNotFinished() throws IOException
+    {
+        if (isFinished) {
+            throw new IOException("Chunked body was already finished!");
+        }
+    }
+
+}
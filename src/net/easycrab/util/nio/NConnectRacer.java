@@ -0,0 +1,136 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Opens a socket channel to the first address which answers (Happy Eyeballs, RFC 8305).
+ * The addresses are tried in order, the next attempt starts when the previous one failed
+ * or did not finish within the attempt delay, all attempts go on in parallel until one is
+ * connected. So a dead address costs the attempt delay instead of the whole timeout.
+ */
+class NConnectRacer
+{
+    // as recommended by RFC 8305
+    static final long   ATTEMPT_DELAY = 250; // 250 ms
+
+    /**
+     * Returns the connected channel in non-blocking mode, the winner is the address of it.
+     */
+    static SocketChannel connect(InetSocketAddress[] addresses, long timeout, NConnectionStats stats)
+            throws IOException
+    {
+        long deadline = NDeadline.start(timeout);
+        ArrayList<SocketChannel> attempts = new ArrayList<SocketChannel>();
+        SocketChannel winner = null;
+        IOException lastError = null;
+        int next = 0;
+
+        Selector selector = Selector.open();
+        try {
+            while (winner == null) {
+                if (next < addresses.length) {
+                    SocketChannel channel = SocketChannel.open();
+                    attempts.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(addresses[next++])) {
+                            winner = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT);
+                    } catch (IOException e) {
+                        lastError = e;
+                        attempts.remove(channel);
+                        channel.close();
+                        continue;
+                    }
+                }
+                else if (attempts.isEmpty()) {
+                    break;
+                }
+
+                // wait for the next attempt to start, or only for the running ones at last
+                long waitTime = (next < addresses.length) ? ATTEMPT_DELAY : 0;
+                if (timeout > 0) {
+                    long remainTime = NDeadline.waitTime(timeout, deadline, false,
+                            "Connect to " + addresses[0].toString() + " timeout!");
+                    if (waitTime == 0 || remainTime < waitTime) {
+                        waitTime = remainTime;
+                    }
+                }
+                if (stats != null) {
+                    stats.onSelect();
+                }
+                if (waitTime > 0) {
+                    selector.select(waitTime);
+                }
+                else {
+                    selector.select();
+                }
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (winner == null && keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                        }
+                    } catch (IOException e) {
+                        // refused or unreachable, the next address is tried at once
+                        lastError = e;
+                        key.cancel();
+                        attempts.remove(channel);
+                        channel.close();
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+            for (SocketChannel channel : attempts) {
+                if (channel != winner) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        if (winner == null) {
+            if (lastError != null) {
+                throw lastError;
+            }
+            throw new IOException("Fail to connect to " + addresses[0].toString() + " !");
+        }
+        // requests are small writes, waiting for the ACK of the previous one only adds latency
+        winner.socket().setTcpNoDelay(true);
+        return winner;
+    }
+
+    // the given address the channel is connected to, which keeps the host name
+    static InetSocketAddress getConnectedAddress(SocketChannel channel, InetSocketAddress[] addresses)
+    {
+        Object remote = channel.socket().getRemoteSocketAddress();
+        for (InetSocketAddress address : addresses) {
+            if (address.equals(remote)) {
+                return address;
+            }
+        }
+        return addresses[0];
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package net.easycrab.util.nio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Receives the phases of requests and connections, with times in nanoseconds. All methods do
+ * nothing here, so a listener only overrides what it needs. The calls are made on the thread
+ * doing the I/O and shall return fast. Without a listener no time or counter is taken.
+ * <pre>
+ *     callStart
+ *       dnsStart, dnsEnd                  (not for pooled connection)
+ *       connectStart, connectEnd          (not for pooled connection)
+ *       handshakeStart, handshakeEnd      (https only)
+ *       connectionAcquired
+ *       requestHeaderSent
+ *       responseHeaderEnd
+ *     callEnd or callFailed
+ *     connectionClosed                    (when the connection is closed, not pooled)
+ * </pre>
+ */
+public abstract class NConnectionListener
+{
+
+    public void callStart(String url)
+    {
+    }
+
+    public void dnsStart(String host)
+    {
+    }
+
+    // addresses in the order they are tried
+    public void dnsEnd(String host, InetAddress[] addresses, long elapsedNanos)
+    {
+    }
+
+    public void connectStart(InetSocketAddress address)
+    {
+    }
+
+    public void connectEnd(InetSocketAddress address, long elapsedNanos)
+    {
+    }
+
+    public void connectFailed(InetSocketAddress address, long elapsedNanos, Exception e)
+    {
+    }
+
+    public void handshakeStart(InetSocketAddress address)
+    {
+    }
+
+    public void handshakeEnd(SSLSession session, long elapsedNanos)
+    {
+    }
+
+    public void connectionAcquired(boolean isReused)
+    {
+    }
+
+    public void requestHeaderSent(long byteCount)
+    {
+    }
+
+    /**
+     * firstByteNanos is the time from the request header sent to the first response byte
+     * received, elapsedNanos runs until the whole header is parsed.
+     */
+    public void responseHeaderEnd(int statusCode, long firstByteNanos, long elapsedNanos)
+    {
+    }
+
+    /**
+     * Called when NHttpConnection is closed. bodyByteCount is the count of body bytes read
+     * by caller, stats are the I/O counts of this request only (null if not known).
+     */
+    public void callEnd(long bodyByteCount, long elapsedNanos, NConnectionStats stats)
+    {
+    }
+
+    public void callFailed(Exception e, long elapsedNanos)
+    {
+    }
+
+    // stats of the whole life of the connection
+    public void connectionClosed(InetSocketAddress address, NConnectionStats stats)
+    {
+    }
+
+}
@@ -0,0 +1,231 @@
+package net.easycrab.util.nio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps idle keep-alive connections, keyed by "scheme://host:port", so that later
+ * requests to the same server can skip the TCP connect and TLS handshake.
+ */
+public class NConnectionPool
+{
+    public static final int     DEFAULT_MAX_IDLE_PER_HOST = 8;
+    public static final int     DEFAULT_MAX_IDLE_TOTAL = 64;
+    public static final long    DEFAULT_IDLE_TIMEOUT = 30000; // 30 seconds
+
+    private int                 maxIdlePerHost;
+    private int                 maxIdleTotal;
+    private long                idleTimeout;
+
+    // per host idle connections, the most recently released one at the end
+    private HashMap<String, LinkedList<IdleEntry>>  idleMap;
+    // all idle connections in release order, used to drop the oldest one first
+    private LinkedList<IdleEntry>                   idleQueue;
+
+    private static class IdleEntry
+    {
+        String          key;
+        NIOConnection   connection;
+        long            idleSince;  // System.nanoTime()
+
+        IdleEntry(String key, NIOConnection connection, long idleSince)
+        {
+            this.key = key;
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+
+    public NConnectionPool()
+    {
+        this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_MAX_IDLE_TOTAL, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public NConnectionPool(int maxIdlePerHost, int maxIdleTotal, long idleTimeout)
+    {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxIdleTotal = maxIdleTotal;
+        this.idleTimeout = idleTimeout;
+        idleMap = new HashMap<String, LinkedList<IdleEntry>>();
+        idleQueue = new LinkedList<IdleEntry>();
+    }
+
+    /**
+     * Returns a live idle connection for the key, or null if the caller shall open a new one.
+     */
+    public NIOConnection acquire(String key)
+    {
+        ArrayList<NIOConnection> toClose = new ArrayList<NIOConnection>();
+        NIOConnection found = null;
+
+        synchronized (this) {
+            collectExpired(System.nanoTime(), toClose);
+
+            LinkedList<IdleEntry> entries = idleMap.get(key);
+            while (found == null && entries != null && ! entries.isEmpty()) {
+                // take the most recently used one, it is the least likely to be closed by server
+                IdleEntry entry = entries.removeLast();
+                idleQueue.remove(entry);
+                if (entry.connection.isAlive()) {
+                    found = entry.connection;
+                }
+                else {
+                    toClose.add(entry.connection);
+                }
+            }
+            if (entries != null && entries.isEmpty()) {
+                idleMap.remove(key);
+            }
+        }
+
+        closeQuietly(toClose);
+        return found;
+    }
+
+    /**
+     * Parks a connection whose response has been fully consumed. The connection is closed
+     * instead if it is no longer alive or the pool is full.
+     */
+    public void release(String key, NIOConnection connection)
+    {
+        ArrayList<NIOConnection> toClose = new ArrayList<NIOConnection>();
+
+        synchronized (this) {
+            long tsNow = System.nanoTime();
+            collectExpired(tsNow, toClose);
+
+            if (maxIdlePerHost <= 0 || maxIdleTotal <= 0 || ! connection.isAlive()) {
+                toClose.add(connection);
+            }
+            else {
+                LinkedList<IdleEntry> entries = idleMap.get(key);
+                if (entries != null && entries.size() >= maxIdlePerHost) {
+                    IdleEntry oldest = entries.removeFirst();
+                    idleQueue.remove(oldest);
+                    toClose.add(oldest.connection);
+                }
+                if (idleQueue.size() >= maxIdleTotal) {
+                    IdleEntry oldest = idleQueue.removeFirst();
+                    removeFromHost(oldest);
+                    toClose.add(oldest.connection);
+                }
+
+                // looked up again, dropping the oldest one may have removed the list of the key
+                entries = idleMap.get(key);
+                if (entries == null) {
+                    entries = new LinkedList<IdleEntry>();
+                    idleMap.put(key, entries);
+                }
+                IdleEntry entry = new IdleEntry(key, connection, tsNow);
+                entries.addLast(entry);
+                idleQueue.addLast(entry);
+            }
+        }
+
+        closeQuietly(toClose);
+    }
+
+    /**
+     * Closes the idle connections which passed the idle timeout or were closed by server.
+     * Returns the count of closed connections.
+     */
+    public int evictIdleConnections()
+    {
+        ArrayList<NIOConnection> toClose = new ArrayList<NIOConnection>();
+
+        synchronized (this) {
+            collectExpired(System.nanoTime(), toClose);
+
+            Iterator<IdleEntry> iterator = idleQueue.iterator();
+            while (iterator.hasNext()) {
+                IdleEntry entry = iterator.next();
+                if (! entry.connection.isAlive()) {
+                    iterator.remove();
+                    removeFromHost(entry);
+                    toClose.add(entry.connection);
+                }
+            }
+        }
+
+        closeQuietly(toClose);
+        return toClose.size();
+    }
+
+    public void closeAll()
+    {
+        ArrayList<NIOConnection> toClose = new ArrayList<NIOConnection>();
+
+        synchronized (this) {
+            for (IdleEntry entry : idleQueue) {
+                toClose.add(entry.connection);
+            }
+            idleQueue.clear();
+            idleMap.clear();
+        }
+
+        closeQuietly(toClose);
+    }
+
+    public synchronized int getIdleCount()
+    {
+        return idleQueue.size();
+    }
+
+    public synchronized int getIdleCount(String key)
+    {
+        LinkedList<IdleEntry> entries = idleMap.get(key);
+        return (entries == null) ? 0 : entries.size();
+    }
+
+    public int getMaxIdlePerHost()
+    {
+        return maxIdlePerHost;
+    }
+
+    public int getMaxIdleTotal()
+    {
+        return maxIdleTotal;
+    }
+
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    private void collectExpired(long tsNow, ArrayList<NIOConnection> toClose)
+    {
+        if (idleTimeout <= 0) {
+            return;
+        }
+        // idleQueue is in release order, so expired entries are all at the head
+        while (! idleQueue.isEmpty() && tsNow - idleQueue.getFirst().idleSince >= idleTimeout * NDeadline.NANOS_PER_MILLI) {
+            IdleEntry entry = idleQueue.removeFirst();
+            removeFromHost(entry);
+            toClose.add(entry.connection);
+        }
+    }
+
+    private void removeFromHost(IdleEntry entry)
+    {
+        LinkedList<IdleEntry> entries = idleMap.get(entry.key);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                idleMap.remove(entry.key);
+            }
+        }
+    }
+
+    private void closeQuietly(ArrayList<NIOConnection> toClose)
+    {
+        for (NIOConnection connection : toClose) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                // ignore, the connection is dropped anyway
+            }
+        }
+    }
+}
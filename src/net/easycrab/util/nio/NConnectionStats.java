@@ -0,0 +1,120 @@
+package net.easycrab.util.nio;
+
+/**
+ * I/O counters of a connection, kept only when a listener is attached. For TLS connections
+ * the bytes are counted on the network side, i.e. with record overhead.
+ */
+public class NConnectionStats
+{
+    private long        bytesRead;
+    private long        bytesWritten;
+    private long        readCalls;
+    private long        writeCalls;
+    private long        selectCalls;
+    private long        tlsRecordsRead;
+    private long        tlsRecordsWritten;
+
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    // read system calls on the channel, including those which got nothing
+    public long getReadCalls()
+    {
+        return readCalls;
+    }
+
+    public long getWriteCalls()
+    {
+        return writeCalls;
+    }
+
+    public long getSelectCalls()
+    {
+        return selectCalls;
+    }
+
+    public long getTLSRecordsRead()
+    {
+        return tlsRecordsRead;
+    }
+
+    public long getTLSRecordsWritten()
+    {
+        return tlsRecordsWritten;
+    }
+
+    public NConnectionStats copy()
+    {
+        NConnectionStats stats = new NConnectionStats();
+        stats.bytesRead = bytesRead;
+        stats.bytesWritten = bytesWritten;
+        stats.readCalls = readCalls;
+        stats.writeCalls = writeCalls;
+        stats.selectCalls = selectCalls;
+        stats.tlsRecordsRead = tlsRecordsRead;
+        stats.tlsRecordsWritten = tlsRecordsWritten;
+        return stats;
+    }
+
+    // the counts since the earlier copy, e.g. of one request on a pooled connection
+    public NConnectionStats since(NConnectionStats earlier)
+    {
+        NConnectionStats stats = copy();
+        if (earlier != null) {
+            stats.bytesRead -= earlier.bytesRead;
+            stats.bytesWritten -= earlier.bytesWritten;
+            stats.readCalls -= earlier.readCalls;
+            stats.writeCalls -= earlier.writeCalls;
+            stats.selectCalls -= earlier.selectCalls;
+            stats.tlsRecordsRead -= earlier.tlsRecordsRead;
+            stats.tlsRecordsWritten -= earlier.tlsRecordsWritten;
+        }
+        return stats;
+    }
+
+    public String toString()
+    {
+        return "bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten + ", readCalls=" + readCalls
+                + ", writeCalls=" + writeCalls + ", selectCalls=" + selectCalls
+                + ", tlsRecordsRead=" + tlsRecordsRead + ", tlsRecordsWritten=" + tlsRecordsWritten;
+    }
+
+    void onRead(long len)
+    {
+        readCalls++;
+        if (len > 0) {
+            bytesRead += len;
+        }
+    }
+
+    void onWrite(long len)
+    {
+        writeCalls++;
+        if (len > 0) {
+            bytesWritten += len;
+        }
+    }
+
+    void onSelect()
+    {
+        selectCalls++;
+    }
+
+    void onRecordRead()
+    {
+        tlsRecordsRead++;
+    }
+
+    void onRecordWritten()
+    {
+        tlsRecordsWritten++;
+    }
+
+}
@@ -0,0 +1,61 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+ * Timeouts of blocking operations on the monotonic clock (System.nanoTime()), so a change
+ * of the wall clock can neither fire nor hide a timeout. An operation takes its deadline
+ * once at start; in block time mode (see NIOConnection.setTimeoutMode()) every wait gets
+ * the whole timeout instead and the deadline is not used.
+ */
+class NDeadline
+{
+    static final long   NANOS_PER_MILLI = 1000000;
+
+    // only meaningful when timeout > 0
+    static long start(long timeout)
+    {
+        return (timeout > 0) ? System.nanoTime() + timeout * NANOS_PER_MILLI : 0;
+    }
+
+    /**
+     * Returns milliseconds the next wait may block, 0 for no limit. Throws with the message
+     * if the deadline has passed.
+     */
+    static long waitTime(long timeout, long deadline, boolean onlyCheckBlockTime, String message)
+            throws IOException
+    {
+        if (timeout <= 0) {
+            return 0;
+        }
+        if (onlyCheckBlockTime) {
+            return timeout;
+        }
+        long remainNanos = deadline - System.nanoTime();
+        if (remainNanos <= 0) {
+            throw new IOException(message);
+        }
+        return (remainNanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Waits on the selector at most waitTime milliseconds, 0 for no limit. Throws with the
+     * message if nothing was selected in time. Selected keys are cleared.
+     */
+    static void select(Selector selector, long waitTime, String message) throws IOException
+    {
+        if (waitTime <= 0) {
+            selector.select();
+        }
+        else {
+            long tsStart = System.nanoTime();
+            if (selector.select(waitTime) == 0
+                    && System.nanoTime() - tsStart >= waitTime * NANOS_PER_MILLI) {
+                throw new IOException(message);
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+}
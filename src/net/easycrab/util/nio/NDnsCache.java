@@ -0,0 +1,196 @@
+package net.easycrab.util.nio;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolver keeping all addresses of a host for a time to live, so a request does not wait
+ * for name lookup again. The addresses are ordered IPv6 and IPv4 in turn, so a connect race
+ * tries both families early; an address reported as connected first is moved to the front.
+ * If a lookup fails after the entry expired, the old addresses are used for a while longer
+ * rather than failing the request.
+ */
+public class NDnsCache implements NIOResolver
+{
+    public static final long    DEFAULT_TTL = 60000; // 1 minute
+    public static final int     DEFAULT_MAX_HOSTS = 1024;
+
+    private final long          STALE_RETRY_TIME = 5000; // 5 seconds
+
+    private static NDnsCache    defaultCache;
+
+    private NIOResolver         source;
+    private long                ttl;
+
+    // least recently used host first
+    private LinkedHashMap<String, CacheEntry>   entries;
+
+    private static class CacheEntry
+    {
+        InetAddress[]   addresses;
+        long            expireTime; // System.nanoTime()
+
+        CacheEntry(InetAddress[] addresses, long expireTime)
+        {
+            this.addresses = addresses;
+            this.expireTime = expireTime;
+        }
+    }
+
+    // asks the system resolver, i.e. InetAddress.getAllByName()
+    public static final NIOResolver SYSTEM = new NIOResolver() {
+        public InetAddress[] resolve(String host) throws UnknownHostException
+        {
+            return InetAddress.getAllByName(host);
+        }
+
+        public void reportConnected(String host, InetAddress address)
+        {
+        }
+    };
+
+    public NDnsCache()
+    {
+        this(SYSTEM, DEFAULT_TTL, DEFAULT_MAX_HOSTS);
+    }
+
+    /**
+     * Source is asked on a miss, e.g. a fixed table for tests.
+     */
+    public NDnsCache(NIOResolver source, long ttl, final int maxHosts)
+    {
+        this.source = source;
+        this.ttl = ttl;
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+            {
+                return size() > maxHosts;
+            }
+        };
+    }
+
+    public static synchronized NDnsCache getDefault()
+    {
+        if (defaultCache == null) {
+            defaultCache = new NDnsCache();
+        }
+        return defaultCache;
+    }
+
+    public static synchronized void setDefault(NDnsCache cache)
+    {
+        defaultCache = cache;
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException
+    {
+        String key = host.toLowerCase();
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expireTime - System.nanoTime() > 0) {
+                return entry.addresses.clone();
+            }
+        }
+
+        // looked up without lock, a slow name shall not block others
+        InetAddress[] addresses;
+        try {
+            addresses = interleave(source.resolve(host));
+        } catch (UnknownHostException e) {
+            if (entry == null) {
+                throw e;
+            }
+            synchronized (this) {
+                entry.expireTime = System.nanoTime() + STALE_RETRY_TIME * NDeadline.NANOS_PER_MILLI;
+            }
+            return entry.addresses.clone();
+        }
+        if (addresses.length == 0) {
+            throw new UnknownHostException("No address is found for " + host + "!");
+        }
+
+        synchronized (this) {
+            entries.put(key, new CacheEntry(addresses, System.nanoTime() + ttl * NDeadline.NANOS_PER_MILLI));
+        }
+        return addresses.clone();
+    }
+
+    // addresses of the host if they are cached and not expired, null instead of a lookup
+    public synchronized InetAddress[] getCached(String host)
+    {
+        CacheEntry entry = entries.get(host.toLowerCase());
+        if (entry != null && entry.expireTime - System.nanoTime() > 0) {
+            return entry.addresses.clone();
+        }
+        return null;
+    }
+
+    public synchronized void reportConnected(String host, InetAddress address)
+    {
+        CacheEntry entry = entries.get(host.toLowerCase());
+        if (entry == null || entry.addresses[0].equals(address)) {
+            return;
+        }
+        InetAddress[] addresses = entry.addresses;
+        for (int i = 1; i < addresses.length; i++) {
+            if (addresses[i].equals(address)) {
+                // the array may be read by others, so change a copy
+                InetAddress[] newAddresses = new InetAddress[addresses.length];
+                newAddresses[0] = addresses[i];
+                System.arraycopy(addresses, 0, newAddresses, 1, i);
+                System.arraycopy(addresses, i + 1, newAddresses, i + 1, addresses.length - i - 1);
+                entry.addresses = newAddresses;
+                return;
+            }
+        }
+    }
+
+    public synchronized void remove(String host)
+    {
+        entries.remove(host.toLowerCase());
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    // families in turn, starting with the family of the first address as the source prefers it
+    private static InetAddress[] interleave(InetAddress[] addresses)
+    {
+        if (addresses.length <= 1) {
+            return addresses;
+        }
+        boolean isFirstV6 = (addresses[0] instanceof Inet6Address);
+        ArrayList<InetAddress> first = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == isFirstV6) {
+                first.add(address);
+            }
+            else {
+                second.add(address);
+            }
+        }
+
+        InetAddress[] result = new InetAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; i < first.size() || i < second.size(); i++) {
+            if (i < first.size()) {
+                result[index++] = first.get(i);
+            }
+            if (i < second.size()) {
+                result[index++] = second.get(i);
+            }
+        }
+        return result;
+    }
+
+}
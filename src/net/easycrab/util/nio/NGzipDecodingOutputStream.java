@@ -0,0 +1,250 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes gzip data written into it and passes the decompressed bytes to the target stream.
+ * Compressed data can be written in pieces of any size as it arrives from network, only a
+ * fixed size output buffer is kept. Concatenated gzip members are supported.
+ */
+public class NGzipDecodingOutputStream extends OutputStream
+{
+    private static final int    STATE_HEADER = 0;
+    private static final int    STATE_EXTRA_LEN = 1;
+    private static final int    STATE_EXTRA = 2;
+    private static final int    STATE_NAME = 3;
+    private static final int    STATE_COMMENT = 4;
+    private static final int    STATE_HEADER_CRC = 5;
+    private static final int    STATE_DATA = 6;
+    private static final int    STATE_TRAILER = 7;
+    private static final int    STATE_MEMBER_END = 8;
+
+    private static final int    FLAG_HCRC = 2;
+    private static final int    FLAG_EXTRA = 4;
+    private static final int    FLAG_NAME = 8;
+    private static final int    FLAG_COMMENT = 16;
+
+    private final int           OUTPUT_BUFFER_SIZE = 8192; // 8K
+
+    private OutputStream        output;
+    private Inflater            inflater;
+    private CRC32               crc;
+    private byte[]              outBuffer;
+
+    private int                 state = STATE_HEADER;
+    private byte[]              fieldBuf = new byte[10];   // fixed header or trailer fields
+    private int                 fieldLen;
+    private int                 flags;
+    private int                 skipLen;
+    private long                memberSize;
+    private long                decodedLength;
+    private boolean             isFinished;
+
+    public NGzipDecodingOutputStream(OutputStream target)
+    {
+        output = target;
+        inflater = new Inflater(true); // raw deflate, the gzip wrapper is parsed here
+        crc = new CRC32();
+        outBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    }
+
+    public long getDecodedLength()
+    {
+        return decodedLength;
+    }
+
+    public void write(int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] data, int offset, int len) throws IOException
+    {
+        if (isFinished) {
+            throw new IOException("Gzip stream was already finished!");
+        }
+        int end = offset + len;
+        int pos = offset;
+        while (pos < end) {
+            if (state == STATE_DATA) {
+                pos = inflateData(data, pos, end);
+            }
+            else {
+                pos = parseWrapper(data, pos, end);
+            }
+        }
+    }
+
+    /**
+     * Checks that the whole gzip stream was received. The target stream is not closed.
+     */
+    public void finish() throws IOException
+    {
+        if (isFinished) {
+            return;
+        }
+        isFinished = true;
+        inflater.end();
+        // nothing at all written is taken as an empty body
+        if (state != STATE_MEMBER_END && ! (state == STATE_HEADER && fieldLen == 0)) {
+            throw new IOException("Unexpected end of gzip data!");
+        }
+        output.flush();
+    }
+
+    public void flush() throws IOException
+    {
+        output.flush();
+    }
+
+    public void close() throws IOException
+    {
+        try {
+            finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    private int inflateData(byte[] data, int pos, int end) throws IOException
+    {
+        inflater.setInput(data, pos, end - pos);
+        try {
+            // consume all input here, the caller may reuse its array after write() returns
+            while (! inflater.finished()) {
+                int len = inflater.inflate(outBuffer, 0, outBuffer.length);
+                if (len > 0) {
+                    crc.update(outBuffer, 0, len);
+                    output.write(outBuffer, 0, len);
+                    memberSize += len;
+                    decodedLength += len;
+                }
+                else if (inflater.needsInput()) {
+                    return end;
+                }
+                else if (inflater.needsDictionary()) {
+                    throw new IOException("Invalid gzip data, preset dictionary is not supported!");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid gzip data! " + e.getMessage());
+        }
+
+        // deflate stream ends, the remaining input is the trailer
+        state = STATE_TRAILER;
+        fieldLen = 0;
+        return end - inflater.getRemaining();
+    }
+
+    private int parseWrapper(byte[] data, int pos, int end) throws IOException
+    {
+        switch (state) {
+        case STATE_MEMBER_END:
+            // another gzip member follows
+            state = STATE_HEADER;
+            fieldLen = 0;
+            return pos;
+        case STATE_HEADER:
+            pos = fillField(data, pos, end, 10);
+            if (fieldLen == 10) {
+                if ((fieldBuf[0] & 0xff) != 0x1f || (fieldBuf[1] & 0xff) != 0x8b || fieldBuf[2] != 8) {
+                    throw new IOException("Invalid gzip header!");
+                }
+                flags = fieldBuf[3] & 0xff;
+                fieldLen = 0;
+                state = STATE_EXTRA_LEN;
+            }
+            return pos;
+        case STATE_EXTRA_LEN:
+            if ((flags & FLAG_EXTRA) == 0) {
+                state = STATE_NAME;
+                return pos;
+            }
+            pos = fillField(data, pos, end, 2);
+            if (fieldLen == 2) {
+                skipLen = (fieldBuf[0] & 0xff) | ((fieldBuf[1] & 0xff) << 8);
+                fieldLen = 0;
+                state = STATE_EXTRA;
+            }
+            return pos;
+        case STATE_EXTRA:
+            int len = Math.min(skipLen, end - pos);
+            skipLen -= len;
+            if (skipLen == 0) {
+                state = STATE_NAME;
+            }
+            return pos + len;
+        case STATE_NAME:
+            if ((flags & FLAG_NAME) == 0) {
+                state = STATE_COMMENT;
+                return pos;
+            }
+            return skipZeroTerminated(data, pos, end, STATE_COMMENT);
+        case STATE_COMMENT:
+            if ((flags & FLAG_COMMENT) == 0) {
+                state = STATE_HEADER_CRC;
+                return pos;
+            }
+            return skipZeroTerminated(data, pos, end, STATE_HEADER_CRC);
+        case STATE_HEADER_CRC:
+            if ((flags & FLAG_HCRC) != 0) {
+                pos = fillField(data, pos, end, 2);
+                if (fieldLen < 2) {
+                    return pos;
+                }
+            }
+            fieldLen = 0;
+            inflater.reset();
+            crc.reset();
+            memberSize = 0;
+            state = STATE_DATA;
+            return pos;
+        case STATE_TRAILER:
+            pos = fillField(data, pos, end, 8);
+            if (fieldLen == 8) {
+                if (readInt(0) != (int) crc.getValue()) {
+                    throw new IOException("Corrupt gzip data, CRC mismatch!");
+                }
+                if (readInt(4) != (int) memberSize) {
+                    throw new IOException("Corrupt gzip data, size mismatch!");
+                }
+                fieldLen = 0;
+                state = STATE_MEMBER_END;
+            }
+            return pos;
+        default:
+            throw new IOException("Invalid gzip decoder state!");
+        }
+    }
+
+    private int fillField(byte[] data, int pos, int end, int targetLen)
+    {
+        int len = Math.min(targetLen - fieldLen, end - pos);
+        System.arraycopy(data, pos, fieldBuf, fieldLen, len);
+        fieldLen += len;
+        return pos + len;
+    }
+
+    private int skipZeroTerminated(byte[] data, int pos, int end, int nextState)
+    {
+        while (pos < end) {
+            if (data[pos++] == 0) {
+                state = nextState;
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private int readInt(int offset)
+    {
+        // little endian
+        return (fieldBuf[offset] & 0xff) | ((fieldBuf[offset + 1] & 0xff) << 8)
+                | ((fieldBuf[offset + 2] & 0xff) << 16) | ((fieldBuf[offset + 3] & 0xff) << 24);
+    }
+
+}
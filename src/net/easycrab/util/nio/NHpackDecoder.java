@@ -0,0 +1,313 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * HPACK header block decoder (RFC 7541) of one HTTP/2 connection. Fields go into an
+ * NHttpHeaders as bytes, so nothing is decoded to String here. Blocks shall be decoded in
+ * the order they were received, as they change the dynamic table.
+ */
+class NHpackDecoder
+{
+    private static final Charset    UTF8 = Charset.forName("utf-8");
+
+    static final String[][]         STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" },
+        { ":status", "200" }, { ":status", "204" }, { ":status", "206" }, { ":status", "304" },
+        { ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+        { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+        { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+        { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" },
+        { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+        { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+        { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" },
+        { "last-modified", "" }, { "link", "" }, { "location", "" }, { "max-forwards", "" },
+        { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+        { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" },
+        { "set-cookie", "" }, { "strict-transport-security", "" }, { "transfer-encoding", "" },
+        { "user-agent", "" }, { "vary", "" }, { "via", "" }, { "www-authenticate", "" },
+    };
+
+    private static final byte[][]   STATIC_NAMES = new byte[STATIC_TABLE.length][];
+    private static final byte[][]   STATIC_VALUES = new byte[STATIC_TABLE.length][];
+    private static final byte[]     STATUS = ":status".getBytes(UTF8);
+
+    static {
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            STATIC_NAMES[i] = STATIC_TABLE[i][0].getBytes(UTF8);
+            STATIC_VALUES[i] = STATIC_TABLE[i][1].getBytes(UTF8);
+        }
+    }
+
+    // dynamic table as a ring, the newest entry at first
+    private byte[][]                names = new byte[16][];
+    private byte[][]                values = new byte[16][];
+    private int                     first;
+    private int                     count;
+    private int                     tableSize;
+    private int                     capacity;
+    private int                     maxCapacity;
+
+    // block being decoded
+    private byte[]                  data;
+    private int                     pos;
+    private int                     end;
+
+    // a string just read, either in data or in one of the buffers if it was Huffman coded
+    private byte[]                  stringData;
+    private int                     stringStart;
+    private int                     stringLen;
+    private byte[]                  nameBuf = new byte[64];
+    private byte[]                  valueBuf = new byte[256];
+
+    // maxCapacity is the SETTINGS_HEADER_TABLE_SIZE sent to the peer
+    NHpackDecoder(int maxCapacity)
+    {
+        this.maxCapacity = maxCapacity;
+        capacity = maxCapacity;
+    }
+
+    /**
+     * Decodes one complete block into the headers and returns the value of :status, or -1
+     * if there is none. Other pseudo fields are dropped.
+     */
+    int decode(byte[] block, int offset, int len, NHttpHeaders headers) throws IOException
+    {
+        data = block;
+        pos = offset;
+        end = offset + len;
+        int status = -1;
+        boolean isFieldFound = false;
+        while (pos < end) {
+            int b = data[pos] & 0xff;
+            byte[] nameData;
+            int nameStart;
+            int nameLen;
+            byte[] valueData;
+            int valueStart;
+            int valueLen;
+            boolean isIndexing = false;
+
+            if ((b & 0x80) != 0) {
+                int index = readInt(7);
+                nameData = getName(index);
+                nameStart = 0;
+                nameLen = nameData.length;
+                valueData = getValue(index);
+                valueStart = 0;
+                valueLen = valueData.length;
+            }
+            else if ((b & 0xe0) == 0x20) {
+                if (isFieldFound) {
+                    throw new IOException("HPACK table size update after a header field!");
+                }
+                int size = readInt(5);
+                if (size > maxCapacity) {
+                    throw new IOException("HPACK table size update beyond the limit!");
+                }
+                capacity = size;
+                evict(0);
+                continue;
+            }
+            else {
+                int prefix = ((b & 0xc0) == 0x40) ? 6 : 4;
+                isIndexing = (prefix == 6);
+                int index = readInt(prefix);
+                if (index > 0) {
+                    nameData = getName(index);
+                    nameStart = 0;
+                    nameLen = nameData.length;
+                }
+                else {
+                    readString(true);
+                    nameData = stringData;
+                    nameStart = stringStart;
+                    nameLen = stringLen;
+                }
+                readString(false);
+                valueData = stringData;
+                valueStart = stringStart;
+                valueLen = stringLen;
+            }
+            isFieldFound = true;
+
+            if (nameLen > 0 && nameData[nameStart] == ':') {
+                if (equals(nameData, nameStart, nameLen, STATUS)) {
+                    status = parseStatus(valueData, valueStart, valueLen);
+                }
+            }
+            else {
+                headers.add(nameData, nameStart, nameStart + nameLen, valueData, valueStart, valueStart + valueLen);
+            }
+            if (isIndexing) {
+                addEntry(Arrays.copyOfRange(nameData, nameStart, nameStart + nameLen),
+                        Arrays.copyOfRange(valueData, valueStart, valueStart + valueLen));
+            }
+        }
+        data = null;
+        return status;
+    }
+
+    private int readInt(int prefixBits) throws IOException
+    {
+        int mask = (1 << prefixBits) - 1;
+        int value = data[pos++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (pos == end) {
+                throw new IOException("Truncated integer in HPACK block!");
+            }
+            int b = data[pos++] & 0xff;
+            if (shift > 21) {
+                throw new IOException("Too large integer in HPACK block!");
+            }
+            value += (b & 0x7f) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private void readString(boolean isName) throws IOException
+    {
+        if (pos == end) {
+            throw new IOException("Truncated string in HPACK block!");
+        }
+        boolean isHuffman = (data[pos] & 0x80) != 0;
+        int len = readInt(7);
+        if (len > end - pos) {
+            throw new IOException("Truncated string in HPACK block!");
+        }
+        if (! isHuffman) {
+            stringData = data;
+            stringStart = pos;
+            stringLen = len;
+        }
+        else {
+            byte[] buf = isName ? nameBuf : valueBuf;
+            if (buf.length < len * 8 / 5 + 1) {
+                buf = new byte[len * 8 / 5 + 1];
+                if (isName) {
+                    nameBuf = buf;
+                }
+                else {
+                    valueBuf = buf;
+                }
+            }
+            stringData = buf;
+            stringStart = 0;
+            stringLen = NHpackHuffman.decode(data, pos, len, buf);
+        }
+        pos += len;
+    }
+
+    private byte[] getName(int index) throws IOException
+    {
+        if (index <= STATIC_TABLE.length) {
+            checkIndex(index);
+            return STATIC_NAMES[index - 1];
+        }
+        return names[dynamicSlot(index)];
+    }
+
+    private byte[] getValue(int index) throws IOException
+    {
+        if (index <= STATIC_TABLE.length) {
+            checkIndex(index);
+            return STATIC_VALUES[index - 1];
+        }
+        return values[dynamicSlot(index)];
+    }
+
+    private void checkIndex(int index) throws IOException
+    {
+        if (index == 0) {
+            throw new IOException("Invalid index 0 in HPACK block!");
+        }
+    }
+
+    private int dynamicSlot(int index) throws IOException
+    {
+        int i = index - STATIC_TABLE.length - 1;
+        if (i >= count) {
+            throw new IOException("Invalid index " + index + " in HPACK block!");
+        }
+        return (first + i) & (names.length - 1);
+    }
+
+    private void addEntry(byte[] name, byte[] value)
+    {
+        int size = name.length + value.length + 32;
+        evict(size);
+        if (size > capacity) {
+            // too large entry empties the table and is not added
+            return;
+        }
+        if (count == names.length) {
+            byte[][] newNames = new byte[names.length * 2][];
+            byte[][] newValues = new byte[names.length * 2][];
+            for (int i = 0; i < count; i++) {
+                newNames[i] = names[(first + i) & (names.length - 1)];
+                newValues[i] = values[(first + i) & (names.length - 1)];
+            }
+            names = newNames;
+            values = newValues;
+            first = 0;
+        }
+        first = (first - 1) & (names.length - 1);
+        names[first] = name;
+        values[first] = value;
+        count++;
+        tableSize += size;
+    }
+
+    // evicts the oldest entries until the size to add fits
+    private void evict(int sizeToAdd)
+    {
+        while (count > 0 && tableSize + sizeToAdd > capacity) {
+            int last = (first + count - 1) & (names.length - 1);
+            tableSize -= names[last].length + values[last].length + 32;
+            names[last] = null;
+            values[last] = null;
+            count--;
+        }
+    }
+
+    private static boolean equals(byte[] data, int start, int len, byte[] target)
+    {
+        if (len != target.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (data[start + i] != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseStatus(byte[] data, int start, int len) throws IOException
+    {
+        if (len != 3) {
+            throw new IOException("Invalid :status in response!");
+        }
+        int code = 0;
+        for (int i = start; i < start + len; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                throw new IOException("Invalid :status in response!");
+            }
+            code = code * 10 + (data[i] - '0');
+        }
+        return code;
+    }
+
+}
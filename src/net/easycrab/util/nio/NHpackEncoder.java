@@ -0,0 +1,174 @@
+package net.easycrab.util.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * HPACK header block encoder (RFC 7541) of one HTTP/2 connection. A field already in the
+ * static or dynamic table is sent as its index, others are added to the dynamic table, so
+ * the same request shape costs a few bytes after the first time. Strings are Huffman coded
+ * when it makes them shorter. Blocks shall be sent in the order they were encoded.
+ */
+class NHpackEncoder
+{
+    static final int                DEFAULT_TABLE_SIZE = 4096;
+
+    private static final Charset    UTF8 = Charset.forName("utf-8");
+    private static final int        STATIC_COUNT = NHpackDecoder.STATIC_TABLE.length;
+
+    // dynamic table as a ring, the newest entry at first
+    private String[]                names = new String[16];
+    private String[]                values = new String[16];
+    private int[]                   sizes = new int[16];
+    private int                     first;
+    private int                     count;
+    private int                     tableSize;
+    private int                     capacity = DEFAULT_TABLE_SIZE;
+
+    // smallest capacity since the last block and the capacity to report, -1 if unchanged
+    private int                     minCapacity = -1;
+    private int                     newCapacity = -1;
+
+    /**
+     * Takes the SETTINGS_HEADER_TABLE_SIZE of the peer, the table never grows beyond the
+     * default. The change is reported at the start of the next block.
+     */
+    void setMaxTableSize(int size)
+    {
+        int target = Math.min(size, DEFAULT_TABLE_SIZE);
+        if (target == capacity) {
+            return;
+        }
+        capacity = target;
+        minCapacity = (minCapacity < 0) ? target : Math.min(minCapacity, target);
+        newCapacity = target;
+        evict(0);
+    }
+
+    void beginBlock(ByteArrayOutputStream out)
+    {
+        if (newCapacity >= 0) {
+            if (minCapacity < newCapacity) {
+                writeInt(out, 0x20, 5, minCapacity);
+            }
+            writeInt(out, 0x20, 5, newCapacity);
+            minCapacity = -1;
+            newCapacity = -1;
+        }
+    }
+
+    // the name shall be in lower case
+    void encode(String name, String value, ByteArrayOutputStream out)
+    {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC_COUNT; i++) {
+            if (NHpackDecoder.STATIC_TABLE[i][0].equals(name)) {
+                if (NHpackDecoder.STATIC_TABLE[i][1].equals(value)) {
+                    writeInt(out, 0x80, 7, i + 1);
+                    return;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = i + 1;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = (first + i) & (names.length - 1);
+            if (names[slot].equals(name)) {
+                if (values[slot].equals(value)) {
+                    writeInt(out, 0x80, 7, STATIC_COUNT + i + 1);
+                    return;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = STATIC_COUNT + i + 1;
+                }
+            }
+        }
+
+        byte[] nameBytes = name.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        int size = nameBytes.length + valueBytes.length + 32;
+        if ("authorization".equals(name) || "proxy-authorization".equals(name)) {
+            // credentials are never indexed, not even by intermediaries
+            writeInt(out, 0x10, 4, nameIndex);
+        }
+        else if (size <= capacity) {
+            writeInt(out, 0x40, 6, nameIndex);
+            addEntry(name, value, size);
+        }
+        else {
+            writeInt(out, 0x00, 4, nameIndex);
+        }
+        if (nameIndex == 0) {
+            writeString(out, nameBytes);
+        }
+        writeString(out, valueBytes);
+    }
+
+    private void writeString(ByteArrayOutputStream out, byte[] data)
+    {
+        int huffmanLen = NHpackHuffman.encodedLength(data);
+        if (huffmanLen < data.length) {
+            writeInt(out, 0x80, 7, huffmanLen);
+            NHpackHuffman.encode(data, out);
+        }
+        else {
+            writeInt(out, 0x00, 7, data.length);
+            out.write(data, 0, data.length);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value)
+    {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void addEntry(String name, String value, int size)
+    {
+        evict(size);
+        if (count == names.length) {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[names.length * 2];
+            int[] newSizes = new int[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) & (names.length - 1);
+                newNames[i] = names[slot];
+                newValues[i] = values[slot];
+                newSizes[i] = sizes[slot];
+            }
+            names = newNames;
+            values = newValues;
+            sizes = newSizes;
+            first = 0;
+        }
+        first = (first - 1) & (names.length - 1);
+        names[first] = name;
+        values[first] = value;
+        sizes[first] = size;
+        count++;
+        tableSize += size;
+    }
+
+    private void evict(int sizeToAdd)
+    {
+        while (count > 0 && tableSize + sizeToAdd > capacity) {
+            int last = (first + count - 1) & (names.length - 1);
+            tableSize -= sizes[last];
+            names[last] = null;
+            values[last] = null;
+            count--;
+        }
+    }
+
+}
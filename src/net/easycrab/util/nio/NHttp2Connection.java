@@ -0,0 +1,904 @@
+package net.easycrab.util.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * HTTP/2 client connection (RFC 7540) over TLS, the protocol is agreed on by ALPN. Many
+ * streams, i.e. request and response pairs, share the one connection, so a few connections
+ * serve the concurrency which took a connection per request with HTTP/1.1.
+ * <p>
+ * Streams may be used by different threads. There is no reader thread: a thread which waits
+ * for its stream reads frames for all streams meanwhile, the others wait until the frames
+ * they need have been read. A thread waiting for a free stream slot never reads, a slot is
+ * freed by another thread closing its stream, which it could not see while blocked in a read.
+ * Writes of frames are serialized, so a frame is never split.
+ */
+public class NHttp2Connection
+{
+    public static final String  PROTOCOL = "h2";
+    public static final int     STREAM_WINDOW = 1048576; // 1M
+    public static final int     CONNECTION_WINDOW = 16777216; // 16M
+
+    static final int            WAIT_HEADERS = 0;
+    static final int            WAIT_DATA = 1;
+    static final int            WAIT_WINDOW = 2;
+    static final int            WAIT_SLOT = 3;
+
+    private static final int    TYPE_DATA = 0x0;
+    private static final int    TYPE_HEADERS = 0x1;
+    private static final int    TYPE_PRIORITY = 0x2;
+    private static final int    TYPE_RST_STREAM = 0x3;
+    private static final int    TYPE_SETTINGS = 0x4;
+    private static final int    TYPE_PUSH_PROMISE = 0x5;
+    private static final int    TYPE_PING = 0x6;
+    private static final int    TYPE_GOAWAY = 0x7;
+    private static final int    TYPE_WINDOW_UPDATE = 0x8;
+    private static final int    TYPE_CONTINUATION = 0x9;
+
+    private static final int    FLAG_END_STREAM = 0x1;
+    private static final int    FLAG_ACK = 0x1;
+    private static final int    FLAG_END_HEADERS = 0x4;
+    private static final int    FLAG_PADDED = 0x8;
+    private static final int    FLAG_PRIORITY = 0x20;
+
+    private static final int    SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int    SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int    SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int    SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int    SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int    ERROR_NO_ERROR = 0x0;
+    private static final int    ERROR_CANCEL = 0x8;
+
+    private static final int    DEFAULT_WINDOW = 65535;
+    private static final int    DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int    MAX_HEADER_BLOCK_SIZE = 1048576; // 1M
+
+    private static final byte[] PREFACE = {
+        'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+        '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n',
+    };
+
+    private String                  host;
+    private int                     port;
+    private String                  authority;
+    private long                    timeout;
+
+    private NTLSClientConfig        tlsConfig;
+    private NIOResolver             resolver;
+    private NIOBufferAllocator      bufferAllocator;
+    private NConnectionListener     listener;
+    private NSSLSocketConnection    connection;
+
+    // encoder state shall change in the order blocks are sent, so it is guarded by writeLock
+    private final Object             writeLock = new Object();
+    private NHpackEncoder           encoder = new NHpackEncoder();
+    private ByteArrayOutputStream   headerOut = new ByteArrayOutputStream();
+
+    // guarded by this
+    private HashMap<Integer, NHttp2Stream>  streams = new HashMap<Integer, NHttp2Stream>();
+    private int                     nextStreamId = 1;
+    private int                     streamCount;    // open streams and slots taken for new ones
+    private int                     peerMaxStreams = Integer.MAX_VALUE;
+    private int                     peerInitialWindow = DEFAULT_WINDOW;
+    private int                     peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long                    sendWindow = DEFAULT_WINDOW;
+    private int                     recvUnacked;    // bytes consumed but not given back to the peer
+    private int                     goAwayStreamId = Integer.MAX_VALUE;
+    private boolean                 isConnected;
+    private boolean                 isReading;
+    private IOException             failure;
+
+    // used by the reading thread only
+    private NHpackDecoder           decoder = new NHpackDecoder(NHpackEncoder.DEFAULT_TABLE_SIZE);
+    private byte[]                  frameHeader = new byte[9];
+    private byte[]                  payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private byte[]                  headerBlock = new byte[1024];
+    private int                     headerBlockLen;
+    private int                     headerStreamId; // stream whose CONTINUATION is expected, or 0
+    private boolean                 isHeaderEndStream;
+
+    public NHttp2Connection(String host, int port, long timeout)
+    {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        authority = (port == 443) ? host : host + ":" + port;
+    }
+
+    // the shared default config is used if not set
+    public void setTLSConfig(NTLSClientConfig config)
+    {
+        tlsConfig = config;
+    }
+
+    // NDnsCache.getDefault() is used if not set
+    public void setResolver(NIOResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    // NBufferPool.getDefault() is used if not set
+    public void setBufferAllocator(NIOBufferAllocator allocator)
+    {
+        bufferAllocator = allocator;
+    }
+
+    // gets the connect and handshake phases, set it before connect
+    public void setListener(NConnectionListener listener)
+    {
+        this.listener = listener;
+    }
+
+    public void connect() throws Exception
+    {
+        NIOResolver hostResolver = (resolver != null) ? resolver : NDnsCache.getDefault();
+        InetAddress[] addresses = hostResolver.resolve(host);
+        InetSocketAddress[] addrs = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            addrs[i] = new InetSocketAddress(addresses[i], port);
+        }
+
+        connection = new NSSLSocketConnection(addrs, tlsConfig);
+        connection.setApplicationProtocols(new String[] { PROTOCOL });
+        if (bufferAllocator != null) {
+            connection.setBufferAllocator(bufferAllocator);
+        }
+        connection.setListener(listener);
+        connection.connect(timeout);
+        if (addrs.length > 1) {
+            hostResolver.reportConnected(host, connection.getRemoteAddress().getAddress());
+        }
+        if (! PROTOCOL.equals(connection.getApplicationProtocol())) {
+            connection.close();
+            throw new IOException("Server does not accept HTTP/2 by ALPN!");
+        }
+
+        // no push, larger windows than the default so a fast response is not throttled
+        byte[] settings = new byte[12];
+        putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+        byte[] increment = new byte[4];
+        putInt(increment, 0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+        connection.write(timeout, new ByteBuffer[] {
+            ByteBuffer.wrap(PREFACE),
+            ByteBuffer.wrap(createFrameHeader(settings.length, TYPE_SETTINGS, 0, 0)),
+            ByteBuffer.wrap(settings),
+            ByteBuffer.wrap(createFrameHeader(increment.length, TYPE_WINDOW_UPDATE, 0, 0)),
+            ByteBuffer.wrap(increment),
+        });
+        synchronized (this) {
+            isConnected = true;
+        }
+    }
+
+    /**
+     * Creates a stream for one request, the path may contain a query. Nothing is sent until
+     * the stream sends its header.
+     */
+    public NHttp2Stream newStream(String method, String path) throws IOException
+    {
+        synchronized (this) {
+            checkFailure();
+            if (! isConnected) {
+                throw new IOException("Connection is not established yet before creating stream!");
+            }
+        }
+        return new NHttp2Stream(this, method.toUpperCase(), (path == null || path.length() == 0) ? "/" : path);
+    }
+
+    // false once it failed, was closed or the server is going away, new streams shall go elsewhere
+    public synchronized boolean isAlive()
+    {
+        return isConnected && failure == null && goAwayStreamId == Integer.MAX_VALUE;
+    }
+
+    public synchronized int getActiveStreamCount()
+    {
+        return streamCount;
+    }
+
+    // as the server allows, Integer.MAX_VALUE if it sets no limit
+    public synchronized int getMaxConcurrentStreams()
+    {
+        return peerMaxStreams;
+    }
+
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    public void close() throws Exception
+    {
+        synchronized (this) {
+            if (! isConnected) {
+                return;
+            }
+            isConnected = false;
+        }
+        try {
+            byte[] goAway = new byte[8];
+            putInt(goAway, 4, ERROR_NO_ERROR);
+            writeFrame(TYPE_GOAWAY, 0, 0, goAway, 0, goAway.length);
+        } catch (Exception e) {
+            // the connection is closed anyway
+        }
+        fail(new IOException("Connection was closed!"));
+    }
+
+    /**
+     * Sends the request header of the stream, a slot for the stream is waited for if the
+     * server allows no more concurrent streams.
+     */
+    void sendHeaders(NHttp2Stream stream, HashMap<String, String> headers, boolean isEndStream) throws Exception
+    {
+        await(stream, WAIT_SLOT, NDeadline.start(timeout));
+        synchronized (writeLock) {
+            int maxFrameSize;
+            synchronized (this) {
+                if (goAwayStreamId != Integer.MAX_VALUE || failure != null) {
+                    releaseSlot(stream);
+                    checkFailure();
+                    throw new IOException("Server is going away, no new stream can be created!");
+                }
+                stream.id = nextStreamId;
+                nextStreamId += 2;
+                stream.sendWindow = peerInitialWindow;
+                streams.put(stream.id, stream);
+                maxFrameSize = peerMaxFrameSize;
+            }
+
+            headerOut.reset();
+            encoder.beginBlock(headerOut);
+            encoder.encode(":method", stream.method, headerOut);
+            encoder.encode(":scheme", "https", headerOut);
+            encoder.encode(":authority", authority, headerOut);
+            encoder.encode(":path", stream.path, headerOut);
+            Iterator<Entry<String, String>> entries = headers.entrySet().iterator();
+            while (entries.hasNext()) {
+                Entry<String, String> entry = entries.next();
+                String name = entry.getKey().toLowerCase();
+                if (! isConnectionHeader(name)) {
+                    encoder.encode(name, entry.getValue(), headerOut);
+                }
+            }
+            byte[] block = headerOut.toByteArray();
+
+            // HEADERS and its CONTINUATION frames go out together, nothing may come between
+            int frameCount = Math.max(1, (block.length + maxFrameSize - 1) / maxFrameSize);
+            ByteBuffer[] data = new ByteBuffer[frameCount * 2];
+            for (int i = 0; i < frameCount; i++) {
+                int offset = i * maxFrameSize;
+                int len = Math.min(maxFrameSize, block.length - offset);
+                int type = (i == 0) ? TYPE_HEADERS : TYPE_CONTINUATION;
+                int flags = (i == frameCount - 1) ? FLAG_END_HEADERS : 0;
+                if (i == 0 && isEndStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                data[i * 2] = ByteBuffer.wrap(createFrameHeader(len, type, flags, stream.id));
+                data[i * 2 + 1] = ByteBuffer.wrap(block, offset, len);
+            }
+            try {
+                connection.write(timeout, data);
+            } catch (Exception e) {
+                fail(e);
+                throw e;
+            }
+        }
+        if (isEndStream) {
+            endLocal(stream);
+        }
+    }
+
+    /**
+     * Sends body data of the stream within the flow control windows, waiting for the server
+     * to open them if needed.
+     */
+    void sendData(NHttp2Stream stream, byte[] data, int offset, int len, boolean isEndStream) throws Exception
+    {
+        synchronized (this) {
+            if (stream.error != null) {
+                throw new IOException(stream.error.getMessage(), stream.error);
+            }
+        }
+        long deadline = NDeadline.start(timeout);
+        do {
+            boolean isSent = false;
+            // the window is checked, taken and used at once: other streams take from the same
+            // connection window, and the ACK of a smaller SETTINGS_INITIAL_WINDOW_SIZE may not
+            // go out between the take and the frame
+            synchronized (writeLock) {
+                int frameLen = 0;
+                if (len > 0) {
+                    synchronized (this) {
+                        if (stream.error == null && sendWindow > 0 && stream.sendWindow > 0) {
+                            frameLen = (int) Math.min(Math.min(len, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+                            sendWindow -= frameLen;
+                            stream.sendWindow -= frameLen;
+                        }
+                    }
+                }
+                if (len == 0 || frameLen > 0) {
+                    boolean isLast = isEndStream && frameLen == len;
+                    writeFrame(TYPE_DATA, isLast ? FLAG_END_STREAM : 0, stream.id, data, offset, frameLen);
+                    offset += frameLen;
+                    len -= frameLen;
+                    isSent = true;
+                }
+            }
+            if (! isSent) {
+                await(stream, WAIT_WINDOW, deadline);
+            }
+        } while (len > 0);
+        if (isEndStream) {
+            endLocal(stream);
+        }
+    }
+
+    /**
+     * Waits until the stream has what it waits for, reading frames meanwhile if no other
+     * thread does, unless it waits for a slot. Throws the error of the stream or the connection.
+     */
+    void await(NHttp2Stream stream, int what, long deadline) throws Exception
+    {
+        while (true) {
+            long waitTime;
+            synchronized (this) {
+                if (isReady(stream, what)) {
+                    if (stream.error != null) {
+                        throw new IOException(stream.error.getMessage(), stream.error);
+                    }
+                    return;
+                }
+                checkFailure();
+                waitTime = NDeadline.waitTime(timeout, deadline, false, "Wait for HTTP/2 stream timeout!");
+                if (isReading || what == WAIT_SLOT) {
+                    wait(waitTime);
+                    continue;
+                }
+                isReading = true;
+            }
+            try {
+                readFrame(waitTime, deadline);
+            } finally {
+                synchronized (this) {
+                    isReading = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // takes received data of the stream, -1 if the body is complete
+    synchronized int takeData(NHttp2Stream stream, byte[] data, int offset, int len)
+    {
+        int readLen = 0;
+        while (readLen < len && ! stream.dataQueue.isEmpty()) {
+            byte[] chunk = stream.dataQueue.get(0);
+            int count = Math.min(len - readLen, chunk.length - stream.dataOffset);
+            System.arraycopy(chunk, stream.dataOffset, data, offset + readLen, count);
+            readLen += count;
+            stream.dataOffset += count;
+            if (stream.dataOffset == chunk.length) {
+                stream.dataQueue.remove(0);
+                stream.dataOffset = 0;
+            }
+        }
+        stream.bufferedLen -= readLen;
+        if (readLen == 0 && stream.isRemoteEnded) {
+            return -1;
+        }
+        return readLen;
+    }
+
+    // gives consumed bytes back to the peer once half a window is consumed
+    void dataConsumed(NHttp2Stream stream, int len) throws Exception
+    {
+        int connectionIncrement = 0;
+        int streamIncrement = 0;
+        synchronized (this) {
+            recvUnacked += len;
+            if (recvUnacked >= CONNECTION_WINDOW / 2) {
+                connectionIncrement = recvUnacked;
+                recvUnacked = 0;
+            }
+            if (stream != null && ! stream.isRemoteEnded && streams.containsKey(stream.id)) {
+                stream.recvUnacked += len;
+                if (stream.recvUnacked >= STREAM_WINDOW / 2) {
+                    streamIncrement = stream.recvUnacked;
+                    stream.recvUnacked = 0;
+                }
+            }
+        }
+        if (connectionIncrement > 0) {
+            writeWindowUpdate(0, connectionIncrement);
+        }
+        if (streamIncrement > 0) {
+            writeWindowUpdate(stream.id, streamIncrement);
+        }
+    }
+
+    // the stream is dropped, the server is told to stop it if it is not complete
+    void closeStream(NHttp2Stream stream) throws Exception
+    {
+        boolean isOpen;
+        int discardedLen;
+        synchronized (this) {
+            isOpen = (stream.id > 0 && streams.remove(stream.id) != null && failure == null);
+            releaseSlot(stream);
+            discardedLen = stream.bufferedLen;
+            stream.dataQueue.clear();
+            stream.bufferedLen = 0;
+            if (stream.error == null) {
+                stream.error = new IOException("Stream was closed!");
+            }
+        }
+        if (isOpen) {
+            byte[] code = new byte[4];
+            putInt(code, 0, ERROR_CANCEL);
+            writeFrame(TYPE_RST_STREAM, 0, stream.id, code, 0, code.length);
+        }
+        if (discardedLen > 0) {
+            dataConsumed(null, discardedLen);
+        }
+    }
+
+    private boolean isReady(NHttp2Stream stream, int what)
+    {
+        if (stream.error != null) {
+            return true;
+        }
+        switch (what) {
+        case WAIT_HEADERS:
+            return stream.statusCode > 0;
+        case WAIT_DATA:
+            return stream.bufferedLen > 0 || stream.isRemoteEnded;
+        case WAIT_WINDOW:
+            return sendWindow > 0 && stream.sendWindow > 0;
+        default:
+            // a free slot is taken at once, so no other stream gets it
+            if (streamCount < peerMaxStreams || failure != null || goAwayStreamId != Integer.MAX_VALUE) {
+                streamCount++;
+                stream.hasSlot = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void endLocal(NHttp2Stream stream)
+    {
+        synchronized (this) {
+            stream.isLocalEnded = true;
+            if (stream.isRemoteEnded) {
+                finishStream(stream);
+            }
+        }
+    }
+
+    // both sides have ended, the stream keeps the data not read yet
+    private void finishStream(NHttp2Stream stream)
+    {
+        streams.remove(stream.id);
+        releaseSlot(stream);
+        notifyAll();
+    }
+
+    private void releaseSlot(NHttp2Stream stream)
+    {
+        if (stream.hasSlot) {
+            stream.hasSlot = false;
+            streamCount--;
+            notifyAll();
+        }
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+    }
+
+    private void fail(Exception e)
+    {
+        IOException error = (e instanceof IOException) ? (IOException) e : new IOException(e);
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = error;
+            for (NHttp2Stream stream : streams.values()) {
+                if (stream.error == null) {
+                    stream.error = error;
+                }
+            }
+            streams.clear();
+            notifyAll();
+        }
+        try {
+            connection.close();
+        } catch (Exception ex) {
+            // ignore
+        }
+    }
+
+    /**
+     * Reads and processes one frame. The wait for its first byte is bounded by the deadline of
+     * the reading thread, so a timeout there only ends that wait and leaves the connection usable.
+     */
+    private void readFrame(long waitTime, long deadline) throws Exception
+    {
+        int readLen;
+        try {
+            readLen = connection.readAvailable(waitTime, frameHeader, 0, frameHeader.length);
+        } catch (IOException e) {
+            if (timeout > 0 && deadline - System.nanoTime() <= 0) {
+                throw new IOException("Wait for HTTP/2 stream timeout!");
+            }
+            fail(e);
+            throw e;
+        }
+        try {
+            if (readLen < 0) {
+                throw new IOException("Connection was closed by server!");
+            }
+            if (readLen < frameHeader.length) {
+                connection.read(timeout, frameHeader, readLen, frameHeader.length - readLen);
+            }
+            int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            int type = frameHeader[3] & 0xff;
+            int flags = frameHeader[4] & 0xff;
+            int streamId = getInt(frameHeader, 5) & 0x7fffffff;
+            if (length > payload.length) {
+                throw new IOException("Too large HTTP/2 frame, size " + length + "!");
+            }
+            if (length > 0) {
+                connection.read(timeout, payload, 0, length);
+            }
+            if (headerStreamId != 0 && (type != TYPE_CONTINUATION || streamId != headerStreamId)) {
+                throw new IOException("CONTINUATION frame expected!");
+            }
+            processFrame(type, flags, streamId, length);
+        } catch (Exception e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    private void processFrame(int type, int flags, int streamId, int length) throws Exception
+    {
+        switch (type) {
+        case TYPE_DATA:
+            processData(flags, streamId, length);
+            break;
+        case TYPE_HEADERS:
+            int start = 0;
+            int end = length;
+            if ((flags & FLAG_PADDED) != 0) {
+                end -= checkPadding(length);
+                start++;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                start += 5;
+            }
+            if (streamId == 0 || start > end) {
+                throw new IOException("Invalid HEADERS frame!");
+            }
+            headerBlockLen = 0;
+            isHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+            appendHeaderBlock(start, end - start);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                processHeaders(streamId);
+            }
+            else {
+                headerStreamId = streamId;
+            }
+            break;
+        case TYPE_CONTINUATION:
+            if (headerStreamId == 0) {
+                throw new IOException("Unexpected CONTINUATION frame!");
+            }
+            appendHeaderBlock(0, length);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                headerStreamId = 0;
+                processHeaders(streamId);
+            }
+            break;
+        case TYPE_RST_STREAM:
+            if (length != 4 || streamId == 0) {
+                throw new IOException("Invalid RST_STREAM frame!");
+            }
+            synchronized (this) {
+                NHttp2Stream stream = streams.remove(streamId);
+                if (stream != null) {
+                    stream.error = new IOException("Stream was reset by server, error code "
+                            + getInt(payload, 0) + "!");
+                    releaseSlot(stream);
+                }
+            }
+            break;
+        case TYPE_SETTINGS:
+            processSettings(flags, streamId, length);
+            break;
+        case TYPE_PUSH_PROMISE:
+            throw new IOException("Server push was not enabled!");
+        case TYPE_PING:
+            if (length != 8 || streamId != 0) {
+                throw new IOException("Invalid PING frame!");
+            }
+            if ((flags & FLAG_ACK) == 0) {
+                writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, 8);
+            }
+            break;
+        case TYPE_GOAWAY:
+            if (length < 8 || streamId != 0) {
+                throw new IOException("Invalid GOAWAY frame!");
+            }
+            int lastStreamId = getInt(payload, 0) & 0x7fffffff;
+            int errorCode = getInt(payload, 4);
+            synchronized (this) {
+                goAwayStreamId = lastStreamId;
+                // streams the server has not taken may be sent again on another connection
+                ArrayList<Integer> refusedIds = new ArrayList<Integer>();
+                for (Integer id : streams.keySet()) {
+                    if (id > lastStreamId) {
+                        refusedIds.add(id);
+                    }
+                }
+                for (Integer id : refusedIds) {
+                    NHttp2Stream stream = streams.remove(id);
+                    stream.error = new IOException("Stream was refused by GOAWAY of server, error code "
+                            + errorCode + "!");
+                    releaseSlot(stream);
+                }
+                notifyAll();
+            }
+            break;
+        case TYPE_WINDOW_UPDATE:
+            if (length != 4) {
+                throw new IOException("Invalid WINDOW_UPDATE frame!");
+            }
+            int increment = getInt(payload, 0) & 0x7fffffff;
+            if (increment == 0) {
+                throw new IOException("Invalid WINDOW_UPDATE frame!");
+            }
+            synchronized (this) {
+                if (streamId == 0) {
+                    sendWindow += increment;
+                }
+                else {
+                    NHttp2Stream stream = streams.get(streamId);
+                    if (stream != null) {
+                        stream.sendWindow += increment;
+                    }
+                }
+            }
+            break;
+        default:
+            // PRIORITY and unknown frames are ignored
+            break;
+        }
+    }
+
+    private void processData(int flags, int streamId, int length) throws Exception
+    {
+        if (streamId == 0) {
+            throw new IOException("Invalid DATA frame!");
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= checkPadding(length);
+            start++;
+        }
+
+        // the whole frame counts for flow control, padding is given back at once
+        int creditLen = length - (end - start);
+        synchronized (this) {
+            NHttp2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                // stream was closed or reset, the data is dropped
+                creditLen = length;
+            }
+            else {
+                if (end > start) {
+                    byte[] chunk = new byte[end - start];
+                    System.arraycopy(payload, start, chunk, 0, chunk.length);
+                    stream.dataQueue.add(chunk);
+                    stream.bufferedLen += chunk.length;
+                }
+                if ((flags & FLAG_END_STREAM) != 0) {
+                    stream.isRemoteEnded = true;
+                    if (stream.isLocalEnded) {
+                        finishStream(stream);
+                    }
+                }
+            }
+        }
+        if (creditLen > 0) {
+            dataConsumed(null, creditLen);
+        }
+    }
+
+    private void processHeaders(int streamId) throws Exception
+    {
+        // the block is decoded even for a closed stream, it changes the decoder table
+        NHttpHeaders headers = new NHttpHeaders();
+        int status = decoder.decode(headerBlock, 0, headerBlockLen, headers);
+        synchronized (this) {
+            NHttp2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            if (stream.statusCode == 0) {
+                if (status < 0) {
+                    throw new IOException("No :status in response header!");
+                }
+                if (status / 100 == 1 && ! isHeaderEndStream) {
+                    // interim response, e.g. 100 Continue
+                    return;
+                }
+                stream.statusCode = status;
+                stream.responseHeaders = headers;
+            }
+            else {
+                stream.trailers = headers;
+            }
+            if (isHeaderEndStream) {
+                stream.isRemoteEnded = true;
+                if (stream.isLocalEnded) {
+                    finishStream(stream);
+                }
+            }
+        }
+    }
+
+    private void processSettings(int flags, int streamId, int length) throws Exception
+    {
+        if (streamId != 0 || length % 6 != 0) {
+            throw new IOException("Invalid SETTINGS frame!");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        int tableSize = -1;
+        synchronized (this) {
+            for (int i = 0; i < length; i += 6) {
+                int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int value = getInt(payload, i + 2);
+                switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    tableSize = value;
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxStreams = value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new IOException("Invalid SETTINGS_INITIAL_WINDOW_SIZE!");
+                    }
+                    // the change applies to the windows of all open streams
+                    for (NHttp2Stream stream : streams.values()) {
+                        stream.sendWindow += value - peerInitialWindow;
+                    }
+                    peerInitialWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 16777215) {
+                        throw new IOException("Invalid SETTINGS_MAX_FRAME_SIZE!");
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    break;
+                }
+            }
+            notifyAll();
+        }
+        synchronized (writeLock) {
+            if (tableSize >= 0) {
+                encoder.setMaxTableSize(tableSize);
+            }
+            writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+        }
+    }
+
+    private int checkPadding(int length) throws IOException
+    {
+        if (length < 1 || (payload[0] & 0xff) >= length) {
+            throw new IOException("Invalid padding of HTTP/2 frame!");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private void appendHeaderBlock(int offset, int len) throws IOException
+    {
+        if (headerBlockLen + len > MAX_HEADER_BLOCK_SIZE) {
+            throw new IOException("Too large response header!");
+        }
+        if (headerBlockLen + len > headerBlock.length) {
+            byte[] newBlock = new byte[Math.max(headerBlockLen + len, headerBlock.length * 2)];
+            System.arraycopy(headerBlock, 0, newBlock, 0, headerBlockLen);
+            headerBlock = newBlock;
+        }
+        System.arraycopy(payload, offset, headerBlock, headerBlockLen, len);
+        headerBlockLen += len;
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws Exception
+    {
+        byte[] data = new byte[4];
+        putInt(data, 0, increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, data, 0, data.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int offset, int len) throws Exception
+    {
+        ByteBuffer[] frame = new ByteBuffer[] {
+            ByteBuffer.wrap(createFrameHeader(len, type, flags, streamId)),
+            ByteBuffer.wrap(data, offset, len),
+        };
+        synchronized (writeLock) {
+            synchronized (this) {
+                checkFailure();
+            }
+            try {
+                connection.write(timeout, frame);
+            } catch (Exception e) {
+                fail(e);
+                throw e;
+            }
+        }
+    }
+
+    // connection specific fields are not allowed in HTTP/2, Host is sent as :authority
+    private static boolean isConnectionHeader(String name)
+    {
+        return "connection".equals(name) || "keep-alive".equals(name) || "proxy-connection".equals(name)
+                || "transfer-encoding".equals(name) || "upgrade".equals(name) || "host".equals(name);
+    }
+
+    private static byte[] createFrameHeader(int length, int type, int flags, int streamId)
+    {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        return header;
+    }
+
+    private static void putSetting(byte[] data, int offset, int id, int value)
+    {
+        data[offset] = (byte) (id >>> 8);
+        data[offset + 1] = (byte) id;
+        putInt(data, offset + 2, value);
+    }
+
+    private static void putInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,269 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * One request and its response on an NHttp2Connection, used like an NHttpConnection: prepare
+ * headers, send data if any, then read the response. The request ends when the response is
+ * first asked for. A stream is used by one thread at a time, streams of one connection may be
+ * used by different threads.
+ */
+public class NHttp2Stream
+{
+    private static final int        READ_BUFFER_SIZE = 16384;
+    private static final byte[]     EMPTY = new byte[0];
+
+    private NHttp2Connection        connection;
+    private HashMap<String, String> requestHeaders = new HashMap<String, String>();
+    private boolean                 hasReqHeaderSent;
+    private boolean                 isClosed;
+    private long                    bodyReadLength;
+
+    final String                    method;
+    final String                    path;
+
+    // below are guarded by the connection
+    int                             id;
+    boolean                         hasSlot;
+    long                            sendWindow;
+    int                             recvUnacked;
+    boolean                         isLocalEnded;
+    boolean                         isRemoteEnded;
+    int                             statusCode;
+    NHttpHeaders                    responseHeaders;
+    NHttpHeaders                    trailers;
+    IOException                     error;
+    ArrayList<byte[]>               dataQueue = new ArrayList<byte[]>();
+    int                             dataOffset;
+    int                             bufferedLen;
+
+    NHttp2Stream(NHttp2Connection connection, String method, String path)
+    {
+        this.connection = connection;
+        this.method = method;
+        this.path = path;
+        requestHeaders.put("Accept-Encoding", "gzip");
+    }
+
+    // 0 until the request header is sent
+    public int getStreamId()
+    {
+        synchronized (connection) {
+            return id;
+        }
+    }
+
+    public void prepareRequestHeader(String headerName, String headerVal)
+    {
+        if (headerName != null && headerName.length() > 0 && headerVal != null) {
+            requestHeaders.put(headerName, headerVal);
+        }
+    }
+
+    public void prepareContentLength(long length)
+    {
+        requestHeaders.put("Content-Length", Long.toString(length));
+    }
+
+    public HashMap<String, String> getRequestHeaders()
+    {
+        return requestHeaders;
+    }
+
+    public void sendData(byte[] data, int offset, int len) throws Exception
+    {
+        checkClosed();
+        if (! hasReqHeaderSent) {
+            sendHeader(false);
+        }
+        if (len > 0) {
+            connection.sendData(this, data, offset, len, false);
+        }
+    }
+
+    // ends the request, only needed before the response if the server shall see the end early
+    public void endRequest() throws Exception
+    {
+        checkClosed();
+        if (! hasReqHeaderSent) {
+            sendHeader(true);
+        }
+        else if (! isLocalEnded()) {
+            connection.sendData(this, EMPTY, 0, 0, true);
+        }
+    }
+
+    // a copy like that of NHttpConnection, the values of a repeated name are joined by comma
+    public HashMap<String, String> getResponseHeaders() throws Exception
+    {
+        ensureHeaderRead();
+        return responseHeaders.toMap();
+    }
+
+    public NHttpHeaders getResponseHeaderFields() throws Exception
+    {
+        ensureHeaderRead();
+        return responseHeaders;
+    }
+
+    // trailer fields after the body, null if there are none or the body is not read to the end
+    public NHttpHeaders getResponseTrailers()
+    {
+        synchronized (connection) {
+            return trailers;
+        }
+    }
+
+    public int getResponseStatusCode() throws Exception
+    {
+        ensureHeaderRead();
+        return statusCode;
+    }
+
+    // HTTP/2 has no reason phrase
+    public String getResponseStatusText() throws Exception
+    {
+        ensureHeaderRead();
+        return "";
+    }
+
+    public int getContentLength() throws Exception
+    {
+        ensureHeaderRead();
+        long len;
+        try {
+            len = responseHeaders.getLong("Content-Length", -1);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid header for Content-Length!");
+        }
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Invalid header for Content-Length!");
+        }
+        return (int) len;
+    }
+
+    public boolean isGzipContent() throws Exception
+    {
+        ensureHeaderRead();
+        return responseHeaders.valueEquals("Content-Encoding", "gzip");
+    }
+
+    public boolean isResponseBodyDone() throws Exception
+    {
+        synchronized (connection) {
+            return statusCode > 0 && isRemoteEnded && bufferedLen == 0;
+        }
+    }
+
+    /**
+     * Reads what has been received of the body, at most len bytes and at least one, waiting
+     * if nothing is there. Returns -1 at the end of the body.
+     */
+    public int readAvailable(byte[] data, int offset, int len) throws Exception
+    {
+        ensureHeaderRead();
+        if (len == 0) {
+            return 0;
+        }
+        connection.await(this, NHttp2Connection.WAIT_DATA, NDeadline.start(connection.getTimeout()));
+        int readLen = connection.takeData(this, data, offset, len);
+        if (readLen > 0) {
+            bodyReadLength += readLen;
+            connection.dataConsumed(this, readLen);
+        }
+        return readLen;
+    }
+
+    public void readData(byte[] data, int offset, int len) throws Exception
+    {
+        int readLen = 0;
+        while (readLen < len) {
+            int count = readAvailable(data, offset + readLen, len - readLen);
+            if (count < 0) {
+                throw new IOException("Response body ends before " + len + " bytes are read!");
+            }
+            readLen += count;
+        }
+    }
+
+    /**
+     * Writes the whole response body into the stream and returns the count of bytes written.
+     * A gzip body is decompressed on the fly if decodeGzip is set.
+     */
+    public long readBody(OutputStream output, boolean decodeGzip) throws Exception
+    {
+        ensureHeaderRead();
+
+        NGzipDecodingOutputStream gzipStream = null;
+        OutputStream target = output;
+        if (decodeGzip && isGzipContent()) {
+            gzipStream = new NGzipDecodingOutputStream(output);
+            target = gzipStream;
+        }
+
+        long totalLength = 0;
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int readLen;
+        while ((readLen = readAvailable(buffer, 0, buffer.length)) >= 0) {
+            target.write(buffer, 0, readLen);
+            totalLength += readLen;
+        }
+
+        if (gzipStream != null) {
+            gzipStream.finish();
+            totalLength = gzipStream.getDecodedLength();
+        }
+        return totalLength;
+    }
+
+    public long getBodyReadLength()
+    {
+        return bodyReadLength;
+    }
+
+    // a stream not complete is reset, so the server stops sending it
+    public void close() throws Exception
+    {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        connection.closeStream(this);
+    }
+
+    protected void ensureHeaderRead() throws Exception
+    {
+        checkClosed();
+        if (! hasReqHeaderSent) {
+            sendHeader(true);
+        }
+        else if (! isLocalEnded()) {
+            connection.sendData(this, EMPTY, 0, 0, true);
+        }
+        connection.await(this, NHttp2Connection.WAIT_HEADERS, NDeadline.start(connection.getTimeout()));
+    }
+
+    private void sendHeader(boolean isEndStream) throws Exception
+    {
+        hasReqHeaderSent = true;
+        connection.sendHeaders(this, requestHeaders, isEndStream);
+    }
+
+    private boolean isLocalEnded()
+    {
+        synchronized (connection) {
+            return isLocalEnded;
+        }
+    }
+
+    private void checkClosed() throws IOException
+    {
+        if (isClosed) {
+            throw new IOException("Stream was closed!");
+        }
+    }
+
+}
@@ -0,0 +1,562 @@
+package net.easycrab.util.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Client side cache of GET responses (RFC 7234, as a private cache). A fresh response by
+ * Cache-Control max-age or Expires is served without a request; a stale one is revalidated
+ * with If-None-Match / If-Modified-Since and served again on 304. Bodies are kept as they
+ * arrived, so a gzip body stays compressed in memory.
+ * <p>
+ * The cache is bounded by the total bytes of its entries. The least recently used entry is
+ * the eviction victim, but a new entry only replaces it if the URL is requested more often
+ * (TinyLFU admission), so a burst of one-off URLs does not flush the hot ones.
+ * <p>
+ * The headers of a returned response may be shared with the cache and shall not be changed.
+ */
+public class NHttpCache
+{
+    public static final long    DEFAULT_MAX_BYTES = 67108864; // 64M
+    public static final long    DEFAULT_TIMEOUT = 30000; // 30 seconds
+
+    // heuristic freshness by Last-Modified is at most one day
+    private static final long   MAX_HEURISTIC_LIFETIME = 86400000;
+    private static final int    ENTRY_OVERHEAD = 128;
+
+    private long                maxBytes;
+    private long                timeout;
+    private NConnectionPool     connectionPool;
+    private NTLSClientConfig    tlsConfig;
+    private NIOResolver         resolver;
+
+    // in access order, the least recently used entry at first
+    private LinkedHashMap<String, CacheEntry>   entries;
+    private FrequencySketch     sketch;
+    private long                totalBytes;
+
+    private long                requestCount;
+    private long                hitCount;
+    private long                revalidatedCount;
+    private long                missCount;
+    private long                bytesSaved;
+    private long                evictionCount;
+    private long                rejectedCount;
+
+    private static class CacheEntry
+    {
+        String          url;
+        int             statusCode;
+        String          statusText;
+        NHttpHeaders    headers;
+        byte[]          body;
+        long            size;
+        long            lifetime;       // freshness lifetime in milliseconds
+        long            initialAge;     // age in milliseconds when it was stored
+        long            tsStored;       // System.nanoTime()
+    }
+
+    public NHttpCache()
+    {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public NHttpCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        timeout = DEFAULT_TIMEOUT;
+        entries = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+        // about one counter per 4K cached, the sketch is a small fraction of the cache
+        long width = Math.max(1024, Math.min(1 << 20, maxBytes / 4096));
+        sketch = new FrequencySketch(Integer.highestOneBit((int) width));
+    }
+
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    public void setConnectionPool(NConnectionPool pool)
+    {
+        connectionPool = pool;
+    }
+
+    public void setTLSConfig(NTLSClientConfig config)
+    {
+        tlsConfig = config;
+    }
+
+    public void setResolver(NIOResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * GETs the URL through the cache. The request headers may be null; with Authorization
+     * or "Cache-Control: no-store" the cache is bypassed, with "Cache-Control: no-cache"
+     * a cached response is revalidated. The body is decompressed if it is gzip and
+     * decodeGzip is set.
+     */
+    public NHttpResponse get(String url, HashMap<String, String> headers, boolean decodeGzip) throws Exception
+    {
+        String requestCacheControl = findHeader(headers, "Cache-Control");
+        boolean isStorable = (findHeader(headers, "Authorization") == null
+                && getDirective(requestCacheControl, "no-store") == null);
+        boolean isRevalidating = (getDirective(requestCacheControl, "no-cache") != null
+                || "no-cache".equalsIgnoreCase(findHeader(headers, "Pragma")));
+
+        CacheEntry entry = null;
+        boolean isHit = false;
+        synchronized (this) {
+            requestCount++;
+            if (isStorable) {
+                sketch.increment(url);
+                entry = entries.get(url);
+            }
+            if (entry != null && ! isRevalidating && isFresh(entry)) {
+                hitCount++;
+                bytesSaved += entry.body.length;
+                isHit = true;
+            }
+            else if (entry != null && ! hasValidator(entry)) {
+                entry = null;
+            }
+        }
+        if (isHit) {
+            return createResponse(entry, decodeGzip);
+        }
+
+        NHttpConnection conn = createConnection(url);
+        if (headers != null) {
+            Iterator<Map.Entry<String, String>> it = headers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, String> header = it.next();
+                conn.prepareRequestHeader(header.getKey(), header.getValue());
+            }
+        }
+        if (entry != null) {
+            String etag = entry.headers.get("ETag");
+            String lastModified = entry.headers.get("Last-Modified");
+            if (etag != null) {
+                conn.prepareRequestHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                conn.prepareRequestHeader("If-Modified-Since", lastModified);
+            }
+        }
+
+        try {
+            conn.connect();
+            int statusCode = conn.getResponseStatusCode();
+            long tsResponse = System.currentTimeMillis();
+            if (statusCode == 304 && entry != null) {
+                conn.readBody(new ByteArrayOutputStream(), false);
+                CacheEntry updated = createEntry(url, entry.statusCode, entry.statusText,
+                        mergeHeaders(entry.headers, conn.getResponseHeaderFields()), entry.body, tsResponse);
+                synchronized (this) {
+                    revalidatedCount++;
+                    bytesSaved += entry.body.length;
+                }
+                if (updated != null) {
+                    store(updated);
+                }
+                else {
+                    invalidate(url);
+                }
+                return createResponse((updated != null) ? updated : entry, decodeGzip);
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            conn.readBody(output, false);
+            synchronized (this) {
+                missCount++;
+            }
+            byte[] body = output.toByteArray();
+            CacheEntry fetched = createEntry(url, statusCode, conn.getResponseStatusText(),
+                    conn.getResponseHeaderFields(), body, tsResponse);
+            if (fetched == null) {
+                return createResponse(statusCode, conn.getResponseStatusText(), conn.getResponseHeaderFields(),
+                        body, decodeGzip);
+            }
+            if (isStorable) {
+                store(fetched);
+            }
+            return createResponse(fetched, decodeGzip);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public synchronized void invalidate(String url)
+    {
+        CacheEntry entry = entries.remove(url);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized long getRequestCount()
+    {
+        return requestCount;
+    }
+
+    // served from the cache without a request
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    // served from the cache after a 304
+    public synchronized long getRevalidatedCount()
+    {
+        return revalidatedCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    // share of requests served from the cache, by a hit or a 304
+    public synchronized double getHitRate()
+    {
+        return (requestCount == 0) ? 0 : (double) (hitCount + revalidatedCount) / requestCount;
+    }
+
+    // body bytes which did not have to be transferred
+    public synchronized long getBytesSaved()
+    {
+        return bytesSaved;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    // responses not stored as they were too large or less frequent than the victims
+    public synchronized long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+
+    public synchronized long getSize()
+    {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    private synchronized void store(CacheEntry entry)
+    {
+        CacheEntry old = entries.remove(entry.url);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+        if (entry.size > maxBytes) {
+            rejectedCount++;
+            return;
+        }
+
+        if (old == null && totalBytes + entry.size > maxBytes) {
+            // decided once against the least recently used entry, before anything is evicted
+            CacheEntry victim = entries.values().iterator().next();
+            if (sketch.frequency(entry.url) <= sketch.frequency(victim.url)) {
+                rejectedCount++;
+                return;
+            }
+        }
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (totalBytes + entry.size > maxBytes) {
+            CacheEntry victim = it.next();
+            it.remove();
+            totalBytes -= victim.size;
+            evictionCount++;
+        }
+        entries.put(entry.url, entry);
+        totalBytes += entry.size;
+    }
+
+    private boolean isFresh(CacheEntry entry)
+    {
+        long age = entry.initialAge + (System.nanoTime() - entry.tsStored) / NDeadline.NANOS_PER_MILLI;
+        return entry.lifetime > age;
+    }
+
+    private static boolean hasValidator(CacheEntry entry)
+    {
+        return entry.headers.contains("ETag") || entry.headers.contains("Last-Modified");
+    }
+
+    /**
+     * Returns the entry for a response, or null if it shall not be stored: not 200, no-store,
+     * Vary on other than Accept-Encoding, or neither fresh for a while nor revalidatable.
+     */
+    private CacheEntry createEntry(String url, int statusCode, String statusText, NHttpHeaders headers,
+            byte[] body, long tsResponse)
+    {
+        if (statusCode != 200) {
+            return null;
+        }
+        String cacheControl = headers.get("Cache-Control");
+        if (getDirective(cacheControl, "no-store") != null) {
+            return null;
+        }
+        String vary = headers.get("Vary");
+        if (vary != null && ! "Accept-Encoding".equalsIgnoreCase(vary.trim())) {
+            return null;
+        }
+
+        long date = parseDate(headers.get("Date"));
+        if (date < 0) {
+            date = tsResponse;
+        }
+        long lifetime = 0;
+        String maxAge = getDirective(cacheControl, "max-age");
+        if (getDirective(cacheControl, "no-cache") != null) {
+            lifetime = 0;
+        }
+        else if (maxAge != null) {
+            lifetime = parseSeconds(maxAge) * 1000;
+        }
+        else if (headers.contains("Expires")) {
+            // an invalid Expires means already expired
+            long expires = parseDate(headers.get("Expires"));
+            lifetime = (expires < 0) ? 0 : Math.max(0, expires - date);
+        }
+        else {
+            long lastModified = parseDate(headers.get("Last-Modified"));
+            if (lastModified >= 0 && lastModified < date) {
+                lifetime = Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+            }
+        }
+
+        CacheEntry entry = new CacheEntry();
+        entry.url = url;
+        entry.statusCode = statusCode;
+        entry.statusText = statusText;
+        entry.headers = headers;
+        entry.body = body;
+        entry.lifetime = lifetime;
+        entry.initialAge = Math.max(Math.max(0, tsResponse - date), parseSeconds(headers.get("Age")) * 1000);
+        entry.tsStored = System.nanoTime();
+        if (lifetime <= entry.initialAge && ! hasValidator(entry)) {
+            return null;
+        }
+        entry.size = body.length + url.length() + ENTRY_OVERHEAD;
+        for (int i = 0; i < headers.size(); i++) {
+            entry.size += headers.getName(i).length() + headers.getValue(i).length();
+        }
+        return entry;
+    }
+
+    // fields of the 304 replace the stored ones of the same name
+    private static NHttpHeaders mergeHeaders(NHttpHeaders stored, NHttpHeaders updates)
+    {
+        NHttpHeaders merged = new NHttpHeaders();
+        for (int i = 0; i < stored.size(); i++) {
+            String name = stored.getName(i);
+            if (! updates.contains(name) || "Content-Length".equalsIgnoreCase(name)) {
+                merged.add(name, stored.getValue(i));
+            }
+        }
+        for (int i = 0; i < updates.size(); i++) {
+            String name = updates.getName(i);
+            if (! "Content-Length".equalsIgnoreCase(name)) {
+                merged.add(name, updates.getValue(i));
+            }
+        }
+        return merged;
+    }
+
+    private NHttpConnection createConnection(String url)
+    {
+        NHttpConnection conn;
+        if (url.regionMatches(true, 0, "https:", 0, 6)) {
+            conn = new NHttpsConnection(url, false, timeout);
+        }
+        else {
+            conn = new NHttpConnection(url, false, timeout);
+        }
+        if (connectionPool != null) {
+            conn.setConnectionPool(connectionPool);
+        }
+        if (tlsConfig != null) {
+            conn.setTLSConfig(tlsConfig);
+        }
+        if (resolver != null) {
+            conn.setResolver(resolver);
+        }
+        return conn;
+    }
+
+    private NHttpResponse createResponse(CacheEntry entry, boolean decodeGzip) throws Exception
+    {
+        return createResponse(entry.statusCode, entry.statusText, entry.headers, entry.body, decodeGzip);
+    }
+
+    private NHttpResponse createResponse(int statusCode, String statusText, NHttpHeaders headers, byte[] body,
+            boolean decodeGzip) throws Exception
+    {
+        NHttpResponse response = new NHttpResponse(statusCode, statusText, headers);
+        if (decodeGzip && headers.valueEquals("Content-Encoding", "gzip") && body.length > 0) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(body.length * 4);
+            NGzipDecodingOutputStream gzipStream = new NGzipDecodingOutputStream(output);
+            gzipStream.write(body, 0, body.length);
+            gzipStream.finish();
+            response.setBody(output.toByteArray(), gzipStream.getDecodedLength());
+        }
+        else {
+            response.setBody(body, body.length);
+        }
+        return response;
+    }
+
+    private static String findHeader(HashMap<String, String> headers, String name)
+    {
+        if (headers == null) {
+            return null;
+        }
+        Iterator<Map.Entry<String, String>> it = headers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> header = it.next();
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of the directive in a Cache-Control value, "" if it has no value,
+     * or null if it is not there.
+     */
+    private static String getDirective(String cacheControl, String name)
+    {
+        if (cacheControl == null) {
+            return null;
+        }
+        String[] directives = cacheControl.split(",");
+        for (String directive : directives) {
+            int pos = directive.indexOf('=');
+            String directiveName = ((pos < 0) ? directive : directive.substring(0, pos)).trim();
+            if (name.equalsIgnoreCase(directiveName)) {
+                if (pos < 0) {
+                    return "";
+                }
+                String value = directive.substring(pos + 1).trim();
+                if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    // invalid or missing seconds count as 0
+    private static long parseSeconds(String value)
+    {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // milliseconds of an HTTP date, -1 if it is missing or invalid
+    private static long parseDate(String value)
+    {
+        if (value == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch (java.text.ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often URLs were requested, with 4-bit counters which are
+     * halved after a sample period so that old popularity fades.
+     */
+    private static class FrequencySketch
+    {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L,
+        };
+
+        private byte[]      table;
+        private int         mask;
+        private int         additions;
+        private int         samplePeriod;
+
+        // width shall be a power of 2
+        FrequencySketch(int width)
+        {
+            table = new byte[width];
+            mask = width - 1;
+            samplePeriod = width * 10;
+        }
+
+        void increment(String key)
+        {
+            int hash = key.hashCode();
+            boolean isAdded = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                if (table[index] < 15) {
+                    table[index]++;
+                    isAdded = true;
+                }
+            }
+            if (isAdded && ++additions >= samplePeriod) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (byte) (table[i] >>> 1);
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key)
+        {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int i)
+        {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+    }
+
+}
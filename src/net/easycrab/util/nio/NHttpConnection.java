@@ -2,15 +2,25 @@ package net.easycrab.util.nio;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
 
 public class NHttpConnection 
 {
+    protected static final Charset      UTF8 = Charset.forName("utf-8");
     protected final String              HTTP_PROTOCOL = "HTTP/1.1";
-    protected final int                 TMP_BUFFER_SIZE = 2048; // 2K
+    protected final int                 IN_BUFFER_SIZE = 8192; // 8K
+    protected final int                 DIRECT_BUFFER_SIZE = 65536; // 64K
+    protected final int                 CHUNK_BUFFER_SIZE = 8192; // 8K
     
     protected String                    url;
     protected boolean                   isPost;
@@ -24,28 +34,138 @@ public class NHttpConnection
     protected String                    statusText;
     
     protected HashMap<String, String>   requestHeaders;
-    protected HashMap<String, String>   responseHeaders;
+    protected NHttpRequestTemplate      requestTemplate;
+    protected long                      requestContentLength = -1;
+    protected NHttpHeaders              responseHeaders;
     protected NIOConnection             connection;
+    protected NHttpResponseParser       responseParser;
+    protected NChunkedOutputStream      chunkedOutput;
+    protected NChunkedDecoder           chunkedDecoder = new NChunkedDecoder();
+    
+    // data read from connection but not consumed yet, e.g. body bytes following the header
+    protected byte[]                    inBuffer;
+    protected int                       inPosition;
+    protected int                       inLimit;
     
     protected boolean                   isConnected;
     protected boolean                   hasReqHeaderSent;
     protected boolean                   hasRespHeaderGot;
     protected boolean                   isChunkedResponse;
+    protected boolean                   isKeepAliveResponse;
+    protected long                      bodyReadLength;
     
     protected String                    acceptedProtocol = "http";
     protected int                       defaultPortNum = 80;
     
+    protected NConnectionPool           connectionPool;
+    protected NRequestScheduler         scheduler;
+    protected NRequestScheduler.Permit  permit;
+    protected int                       priority = NRequestScheduler.PRIORITY_NORMAL;
+    protected NTLSClientConfig          tlsConfig;
+    protected NIOBufferAllocator        bufferAllocator;
+    protected NIOResolver               resolver;
+    protected boolean                   isBlockingMode;
+    
+    // times of the current call in nanoseconds, only taken when a listener is set
+    protected NConnectionListener       listener;
+    protected long                      tsCallStart;
+    protected long                      tsHeaderSent;
+    protected NConnectionStats          statsAtStart;
+    protected boolean                   isCallFailed;
+    
     public NHttpConnection(String targetUrl, boolean isMethodPost, long timeout)
     {
+        this(targetUrl, isMethodPost, timeout, false);
+    }
+    
+    /**
+     * With blocking mode, the connection uses blocking socket I/O instead of selectors,
+     * which suits virtual threads.
+     */
+    public NHttpConnection(String targetUrl, boolean isMethodPost, long timeout, boolean isBlockingMode)
+    {
+        this.isBlockingMode = isBlockingMode;
         url = targetUrl;
         isPost = isMethodPost;
         this.timeout = timeout;
         requestHeaders = new HashMap<String, String>();
-        responseHeaders = new HashMap<String, String>();
+        responseHeaders = new NHttpHeaders();
         isConnected = false;
         isChunkedResponse = false;
     }
     
+    public NHttpConnection(NHttpRequestTemplate template, long timeout)
+    {
+        this(template, timeout, false);
+    }
+    
+    /**
+     * The request is sent as the template gives, headers prepared on the connection are
+     * added to it for each request.
+     */
+    public NHttpConnection(NHttpRequestTemplate template, long timeout, boolean isBlockingMode)
+    {
+        this(template.getUrl(), "POST".equals(template.getMethod()), timeout, isBlockingMode);
+        requestTemplate = template;
+    }
+    
+    public void setConnectionPool(NConnectionPool pool)
+    {
+        connectionPool = pool;
+    }
+    
+    public NConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+    
+    /**
+     * With a scheduler, connect() waits for a slot of the host before it takes or opens a
+     * connection, and close() gives the slot back.
+     */
+    public void setScheduler(NRequestScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+    
+    // one of NRequestScheduler.PRIORITY_*, used when a slot has to be waited for
+    public void setPriority(int priority)
+    {
+        this.priority = priority;
+    }
+    
+    // only used for https, the shared default config is used if not set
+    public void setTLSConfig(NTLSClientConfig config)
+    {
+        tlsConfig = config;
+    }
+    
+    // NBufferPool.getDefault() is used if not set
+    public void setBufferAllocator(NIOBufferAllocator allocator)
+    {
+        bufferAllocator = allocator;
+    }
+    
+    // NDnsCache.getDefault() is used if not set
+    public void setResolver(NIOResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+    
+    /**
+     * Listener gets the phases of each call and of the connections made for it, set it
+     * before connect. It is passed to pooled connections when they are taken.
+     */
+    public void setListener(NConnectionListener listener)
+    {
+        this.listener = listener;
+    }
+    
+    public NConnectionListener getListener()
+    {
+        return listener;
+    }
+    
     public void prepareRequestHeader(String headerName, String headerVal)
     {
         if (headerName != null && headerName.length() > 0 && headerVal != null) {
@@ -53,15 +173,36 @@ public class NHttpConnection
         }
     }
     
+    // with a template the value is spliced in without formatting a String
+    public void prepareContentLength(long length)
+    {
+        // a request may be framed by one of them only
+        requestHeaders.remove("Transfer-Encoding");
+        if (requestTemplate != null) {
+            requestContentLength = length;
+        }
+        else {
+            requestHeaders.put("Content-Length", Long.toString(length));
+        }
+    }
+    
     public HashMap<String, String> getRequestHeaders()
     {
         return requestHeaders;
     }
     
+    // a copy, the values of a repeated name are joined by comma
     public HashMap<String, String> getResponseHeaders() throws Exception
     {
         ensureHeaderRead();
 
+        return responseHeaders.toMap();
+    }
+    
+    public NHttpHeaders getResponseHeaderFields() throws Exception
+    {
+        ensureHeaderRead();
+
         return responseHeaders;
     }
     
@@ -78,19 +219,23 @@ public class NHttpConnection
     }
     
     public int getContentLength() throws Exception
+    {
+        long len = getContentLengthLong();
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Invalid header for Content-Length!");
+        }
+        return (int) len;
+    }
+    
+    // -1 if there is no Content-Length, bodies of 2G and more need this one
+    public long getContentLengthLong() throws Exception
     {
         ensureHeaderRead();
-        int len = -1;
-        String lenStr = responseHeaders.get("Content-Length");
-        if (lenStr != null && lenStr.length() > 0) {
-            try {
-                len = Integer.parseInt(lenStr);
-            } catch (Exception e) {
-                throw new IOException("Invalid header for Content-Length!");
-
-            }
+        try {
+            return responseHeaders.getLong("Content-Length", -1);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid header for Content-Length!");
         }
-        return len;
     }
     
     public boolean isChunked()
@@ -101,31 +246,133 @@ public class NHttpConnection
     public boolean isGzipContent() throws Exception
     {
         ensureHeaderRead();
-        boolean isGzip = false;
-        String value = responseHeaders.get("Content-Encoding");
-        if (value != null && "gzip".equalsIgnoreCase(value)) {
-            isGzip = true;
-        }
-        return isGzip;
+        return responseHeaders.valueEquals("Content-Encoding", "gzip");
     }
     
     public void connect() throws Exception
     {
-        parseRequestUrl();
-        InetSocketAddress addr = new InetSocketAddress(host, port);
-        connection = new NSocketConnection(addr);
-        connection.connect(timeout);
+        if (requestTemplate != null) {
+            applyRequestTemplate();
+        }
+        else {
+            parseRequestUrl();
+        }
+        if (listener != null) {
+            tsCallStart = System.nanoTime();
+            tsHeaderSent = tsCallStart;
+            isCallFailed = false;
+            listener.callStart(url);
+        }
+        
+        if (scheduler != null && permit == null) {
+            try {
+                permit = scheduler.acquire(getPoolKey(), priority, timeout);
+            } catch (Exception e) {
+                callFailed(e);
+                throw e;
+            }
+        }
+        
+        connection = null;
+        boolean isReused = false;
+        if (connectionPool != null) {
+            connection = connectionPool.acquire(getPoolKey());
+        }
+        if (connection == null) {
+            try {
+                NIOResolver hostResolver = (resolver != null) ? resolver : NDnsCache.getDefault();
+                InetSocketAddress[] addrs = resolveAddresses(hostResolver);
+                connection = createConnection(addrs);
+                if (bufferAllocator != null) {
+                    connection.setBufferAllocator(bufferAllocator);
+                }
+                connection.setListener(listener);
+                connection.connect(timeout);
+                if (addrs.length > 1) {
+                    hostResolver.reportConnected(host, connection.getRemoteAddress().getAddress());
+                }
+            } catch (Exception e) {
+                releasePermit();
+                callFailed(e);
+                throw e;
+            }
+        }
+        else {
+            // pooled connection may carry the mode and listener set by its previous user
+            connection.setTimeoutMode(true);
+            connection.setListener(listener);
+            isReused = true;
+        }
+        statsAtStart = null;
+        if (listener != null) {
+            statsAtStart = connection.getStats().copy();
+            listener.connectionAcquired(isReused);
+        }
         
         hasReqHeaderSent = false;
         hasRespHeaderGot = false;
+        isChunkedResponse = false;
+        isKeepAliveResponse = false;
+        bodyReadLength = 0;
+        inPosition = 0;
+        inLimit = 0;
+        chunkedOutput = null;
         isConnected = true;
     }
     
     public void close() throws Exception
     {
-        if (isConnected) {
-            connection.close();
+        try {
+            if (isConnected) {
+                boolean isReusable = false;
+                try {
+                    isReusable = (connectionPool != null && isConnectionReusable());
+                    // a listener set after connect() has no stats of the call to compare with
+                    NConnectionStats stats = connection.getStats();
+                    if (listener != null && ! isCallFailed && statsAtStart != null && stats != null) {
+                        listener.callEnd(bodyReadLength, System.nanoTime() - tsCallStart, 
+                                stats.since(statsAtStart));
+                    }
+                } finally {
+                    isConnected = false;
+                    if (isReusable) {
+                        connectionPool.release(getPoolKey(), connection);
+                    }
+                    else {
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            releasePermit();
+        }
+    }
+    
+    protected void releasePermit()
+    {
+        if (permit != null) {
+            permit.release();
+            permit = null;
+        }
+    }
+    
+    public boolean isResponseBodyDone() throws Exception
+    {
+        if (! hasRespHeaderGot) {
+            return false;
+        }
+        if (! hasResponseBody()) {
+            return true;
+        }
+        if (isChunkedResponse) {
+            return chunkedDecoder.isDone();
         }
+        long contentLength = getContentLengthLong();
+        if (contentLength < 0) {
+            // body is delimited by closing the connection
+            return false;
+        }
+        return bodyReadLength >= contentLength;
     }
     
     public void resetTimeout(long newTimeout)
@@ -141,145 +388,483 @@ public class NHttpConnection
     }
     
     public void sendData(byte[] data, int offset, int len) throws Exception
+    {
+        if (! hasReqHeaderSent) {
+            sendBuffers(new ByteBuffer[] { ByteBuffer.wrap(data, offset, len) });
+            return;
+        }
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before sending data!");
+        }
+        
+        connection.write(timeout, data, offset, len);        
+    }
+    
+    // sends the remaining bytes of the buffer, a direct or mapped one is written without a heap copy
+    public void sendData(ByteBuffer data) throws Exception
+    {
+        sendBuffers(new ByteBuffer[] { data });
+    }
+    
+    /**
+     * Sends count bytes of the file from the position as body, mapping one window of the file
+     * at a time. For https the data is encrypted straight from the mapped pages. Content-Length
+     * is set to count if the header is not sent yet and the body is not chunked.
+     */
+    public void sendMappedFile(FileChannel file, long position, long count) throws Exception
+    {
+        if (! hasReqHeaderSent && chunkedOutput == null) {
+            prepareContentLength(count);
+        }
+        long sentLen = 0;
+        while (sentLen < count) {
+            long size = Math.min(NMappedFileSink.DEFAULT_WINDOW_SIZE, count - sentLen);
+            MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, position + sentLen, size);
+            sendBuffers(new ByteBuffer[] { window });
+            sentLen += size;
+        }
+    }
+    
+    /**
+     * Sends count bytes of the file from the position as the whole body, Content-Length is set
+     * to count. Over plain HTTP the kernel copies the file to the socket (sendfile), over https
+     * it is read into a pooled direct buffer and encrypted from there.
+     */
+    public void sendFile(FileChannel file, long position, long count) throws Exception
+    {
+        if (hasReqHeaderSent || chunkedOutput != null) {
+            throw new IOException("Request header was already sent, cannot send file as body!");
+        }
+        prepareContentLength(count);
+        sendBuffers(new ByteBuffer[0]);
+        connection.transferFrom(timeout, file, position, count);
+    }
+    
+    /**
+     * Starts a request body of unknown size, sent with chunked transfer encoding. It shall be
+     * called before any data is sent, the Content-Length header is dropped.
+     */
+    public NChunkedOutputStream getChunkedOutputStream() throws Exception
+    {
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before sending data!");
+        }
+        if (chunkedOutput != null) {
+            return chunkedOutput;
+        }
+        if (hasReqHeaderSent) {
+            throw new IOException("Request header was already sent, cannot send chunked body!");
+        }
+        chunkedOutput = new NChunkedOutputStream(this, CHUNK_BUFFER_SIZE);
+        return chunkedOutput;
+    }
+    
+    protected void sendBuffers(ByteBuffer[] data) throws Exception
     {
         if (! isConnected) {
             throw new IOException("Connection is not established yet before sending data!");
         }
         
         if (! hasReqHeaderSent) {
-            sendRequestHeader();
+            // header and first part of body go out together in one gathering write
+            ByteBuffer[] header = createRequestHeader();
+            long headerLength = remaining(header);
+            ByteBuffer[] allData = new ByteBuffer[header.length + data.length];
+            System.arraycopy(header, 0, allData, 0, header.length);
+            System.arraycopy(data, 0, allData, header.length, data.length);
+            connection.write(timeout, allData);
             hasReqHeaderSent = true;
+            headerSent(headerLength);
+            return;
         }
         
-        connection.write(timeout, data, offset, len);        
+        connection.write(timeout, data);
     }
     
     public void readData(byte[] data, int offset, int len) throws Exception
     {
         ensureHeaderRead();
         
-        connection.read(timeout, data, offset, len);        
+        int bufferedLen = inLimit - inPosition;
+        if (bufferedLen >= len) {
+            System.arraycopy(inBuffer, inPosition, data, offset, len);
+            inPosition += len;
+        }
+        else {
+            if (bufferedLen > 0) {
+                System.arraycopy(inBuffer, inPosition, data, offset, bufferedLen);
+                inPosition = inLimit;
+            }
+            connection.read(timeout, data, offset + bufferedLen, len - bufferedLen);
+        }
+        bodyReadLength += len;
     }
     
-    public void readAllChunk(ByteArrayOutputStream baos) throws Exception
+    public void readAllChunk(OutputStream output) throws Exception
     {
         ensureHeaderRead();
         
         if (! isChunkedResponse) {
             throw new IOException("Response is not Chunk!");
         }
-
+        decodeChunks(output);
+    }
+    
+    /**
+     * Writes the whole response body into the channel and returns the count of bytes.
+     * A FileChannel is written from its current position, and for plain HTTP the data
+     * goes from socket to file without passing through java heap.
+     */
+    public long transferBodyTo(WritableByteChannel target) throws Exception
+    {
+        if (target instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) target;
+            long position = fileChannel.position();
+            long transferLen = transferBody(fileChannel, position, null);
+            fileChannel.position(position + transferLen);
+            return transferLen;
+        }
+        return transferBody(null, 0, target);
+    }
+    
+    // write the body at the position, the position of the file channel is not changed
+    public long transferBodyTo(FileChannel target, long position) throws Exception
+    {
+        return transferBody(target, position, null);
+    }
+    
+    /**
+     * Writes the whole response body into the file at the position through a memory mapped
+     * window which moves on with the data. For https records are decrypted straight into it.
+     */
+    public long transferBodyToMapped(FileChannel target, long position) throws Exception
+    {
+        ensureHeaderRead();
+        NMappedFileSink sink = new NMappedFileSink(target, position);
+        try {
+            long contentLength = getContentLengthLong();
+            if (! isChunkedResponse && contentLength >= 0) {
+                sink.setExpectedLength(contentLength);
+            }
+            return transferBody(null, 0, sink);
+        } finally {
+            sink.finish();
+        }
+    }
+    
+    /**
+     * Writes the whole response body into the stream with bounded memory and returns the
+     * count of bytes written. A gzip body is decompressed on the fly if decodeGzip is set.
+     */
+    public long readBody(OutputStream output, boolean decodeGzip) throws Exception
+    {
+        ensureHeaderRead();
+        if (! hasResponseBody()) {
+            return 0;
+        }
+        
+        NGzipDecodingOutputStream gzipStream = null;
+        OutputStream target = output;
+        if (decodeGzip && isGzipContent()) {
+            gzipStream = new NGzipDecodingOutputStream(output);
+            target = gzipStream;
+        }
+        
         long totalLength = 0;
-        int chunkSize;
-//        String chunkExt;
+        if (isChunkedResponse) {
+            totalLength = decodeChunks(target);
+        }
+        else {
+            // without Content-Length the body ends when server closes the connection
+            totalLength = copyBytes(target, getContentLengthLong());
+        }
         
-        String hexText;
-        int place;
+        if (gzipStream != null) {
+            gzipStream.finish();
+            totalLength = gzipStream.getDecodedLength();
+        }
+        return totalLength;
+    }
+    
+    public void decompressGzipData(byte[] gzipData, OutputStream output) throws Exception
+    {
+        NGzipDecodingOutputStream gzipStream = new NGzipDecodingOutputStream(output);
+        gzipStream.write(gzipData, 0, gzipData.length);
+        gzipStream.finish();
+    }
+    
+    protected void ensureHeaderRead() throws Exception
+    {
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before reading data!");
+        }
         
-        byte[] buffer = new byte[TMP_BUFFER_SIZE]; // read 2K every time
+        try {
+            if (! hasReqHeaderSent) {
+                sendRequestHeader();
+                hasReqHeaderSent = true;
+            }
+            if (chunkedOutput != null && ! chunkedOutput.isFinished()) {
+                chunkedOutput.finish();
+            }
+    
+            if (! hasRespHeaderGot) {
+                readResponseHeader();
+                hasRespHeaderGot = true;
+            }
+        } catch (Exception e) {
+            callFailed(e);
+            throw e;
+        }
         
-        boolean needReadMore = true;
-        boolean lastChunkFound = false;
+    }
+    
+    protected void headerSent(long byteCount)
+    {
+        if (listener != null) {
+            tsHeaderSent = System.nanoTime();
+            listener.requestHeaderSent(byteCount);
+        }
+    }
+    
+    protected void callFailed(Exception e)
+    {
+        if (listener != null && ! isCallFailed) {
+            isCallFailed = true;
+            listener.callFailed(e, System.nanoTime() - tsCallStart);
+        }
+    }
+    
+    private InetSocketAddress[] resolveAddresses(NIOResolver hostResolver) throws Exception
+    {
+        long tsStart = 0;
+        if (listener != null) {
+            tsStart = System.nanoTime();
+            listener.dnsStart(host);
+        }
+        InetAddress[] addresses = hostResolver.resolve(host);
+        if (listener != null) {
+            listener.dnsEnd(host, addresses, System.nanoTime() - tsStart);
+        }
         
-        String lineText;
-        while (needReadMore) {
-            lineText = readOneLine();
-            if (lineText == null) {
-                // empty line
-                if (lastChunkFound) {
-                    needReadMore = false;
-//                    System.out.println("Reach end of the chunk body, all data read!");
-                }
-                else {
-                    throw new IOException("Unexpected empty line in chunk body!");
+        InetSocketAddress[] addrs = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            addrs[i] = new InetSocketAddress(addresses[i], port);
+        }
+        return addrs;
+    }
+    
+    // shall be called after the response header is read
+    protected boolean hasResponseBody() throws Exception
+    {
+        // no message body for these status
+        return ! (statusCode / 100 == 1 || statusCode == 204 || statusCode == 304);
+    }
+    
+    // read and drop the rest of the response body, e.g. before the connection is reused
+    protected void skipResponseBody() throws Exception
+    {
+        ensureHeaderRead();
+        if (! hasResponseBody() || isResponseBodyDone()) {
+            return;
+        }
+        
+        if (isChunkedResponse) {
+            decodeChunks(null);
+        }
+        else {
+            long contentLength = getContentLengthLong();
+            copyBytes(null, (contentLength < 0) ? -1 : contentLength - bodyReadLength);
+        }
+    }
+    
+    protected long transferBody(FileChannel fileTarget, long position, WritableByteChannel target) throws Exception
+    {
+        ensureHeaderRead();
+        if (! hasResponseBody()) {
+            return 0;
+        }
+        
+        NIOBufferAllocator allocator = (bufferAllocator != null) ? bufferAllocator : NBufferPool.getDefault();
+        ByteBuffer buffer = null;
+        if (fileTarget == null && ! (target instanceof NMappedFileSink)) {
+            buffer = allocator.allocate(DIRECT_BUFFER_SIZE);
+        }
+        
+        long totalLength = 0;
+        try {
+            if (isChunkedResponse) {
+                while (true) {
+                    inPosition = chunkedDecoder.skipFraming(inBuffer, inPosition, inLimit);
+                    if (chunkedDecoder.isDone()) {
+                        break;
+                    }
+                    long chunkLen = chunkedDecoder.getChunkRemaining();
+                    if (chunkLen == 0) {
+                        fillInBuffer();
+                        continue;
+                    }
+                    // chunk data is moved like a plain body, only the framing passes inBuffer
+                    long len = transferBytes(fileTarget, position + totalLength, target, buffer, chunkLen);
+                    chunkedDecoder.consumeData(len);
+                    totalLength += len;
                 }
             }
-            else if (lastChunkFound) {
-                // skip tailer header
-//                System.out.println("It's a tailer header, skip it. Text:" + lineText);
-           }
             else {
-                // It's a chunk
-                place = lineText.indexOf(';');
-                if (place > 0) {
-                    hexText = lineText.substring(0, place);
-//                    if (place + 1 < lineText.length()) {
-//                        // it has chunk extension
-//                        chunkExt = lineText.substring(place + 1);
-//                        System.out.println("Next Chunk has extension, content: " + chunkExt);
-//                    }
+                // without Content-Length the body ends when server closes the connection
+                totalLength = transferBytes(fileTarget, position, target, buffer, getContentLengthLong());
+            }
+        } finally {
+            if (buffer != null) {
+                allocator.release(buffer);
+            }
+        }
+        return totalLength;
+    }
+    
+    // decode the rest of the chunked body through inBuffer, data is dropped if target is null
+    private long decodeChunks(OutputStream target) throws Exception
+    {
+        long decodedLen = chunkedDecoder.getBodyLength();
+        while (! chunkedDecoder.isDone()) {
+            if (inPosition == inLimit) {
+                fillInBuffer();
+            }
+            inPosition = chunkedDecoder.decode(inBuffer, inPosition, inLimit, target);
+        }
+        long len = chunkedDecoder.getBodyLength() - decodedLen;
+        bodyReadLength += len;
+        return len;
+    }
+    
+    private static long remaining(ByteBuffer[] data)
+    {
+        long count = 0;
+        for (ByteBuffer buffer : data) {
+            count += buffer.remaining();
+        }
+        return count;
+    }
+    
+    private long copyBytes(OutputStream target, long count) throws Exception
+    {
+        // pass data through inBuffer, anything read beyond count stays there for later use
+        // data is dropped if target is null
+        long maxLen = (count < 0) ? Long.MAX_VALUE : count;
+        long transferLen = 0;
+        while (transferLen < maxLen) {
+            if (inPosition == inLimit && ! tryFillInBuffer()) {
+                break;
+            }
+            int len = (int) Math.min(inLimit - inPosition, maxLen - transferLen);
+            if (target != null) {
+                target.write(inBuffer, inPosition, len);
+            }
+            inPosition += len;
+            transferLen += len;
+        }
+        
+        bodyReadLength += transferLen;
+        if (count >= 0 && transferLen < count) {
+            throw new IOException("Cannot read more from the connection!");
+        }
+        return transferLen;
+    }
+    
+    private long transferBytes(FileChannel fileTarget, long position, WritableByteChannel target, 
+            ByteBuffer buffer, long count) throws Exception
+    {
+        long maxLen = (count < 0) ? Long.MAX_VALUE : count;
+        long transferLen = 0;
+        
+        // bytes buffered together with the header come first
+        if (inPosition < inLimit) {
+            int len = (int) Math.min(inLimit - inPosition, maxLen);
+            ByteBuffer buffered = ByteBuffer.wrap(inBuffer, inPosition, len);
+            while (buffered.hasRemaining()) {
+                if (fileTarget != null) {
+                    fileTarget.write(buffered, position + buffered.position() - inPosition);
                 }
                 else {
-                    hexText = lineText;
+                    target.write(buffered);
                 }
-                try {
-                    chunkSize = Integer.parseInt(hexText, 16);
-                } catch (Exception e) {
-                    throw new IOException("Unaccepted chunk size line!" + lineText);
+            }
+            inPosition += len;
+            transferLen = len;
+        }
+        
+        if (fileTarget != null) {
+            transferLen += connection.transferTo(timeout, fileTarget, position + transferLen, maxLen - transferLen);
+        }
+        else if (target instanceof NMappedFileSink) {
+            // read straight into the mapped window
+            NMappedFileSink sink = (NMappedFileSink) target;
+            while (transferLen < maxLen) {
+                int readLen = connection.readAvailable(timeout, sink.window(maxLen - transferLen));
+                if (readLen < 0) {
+                    break;
                 }
-                
-//                System.out.println("Next Chunk found, size is " + chunkSize);
-                if (chunkSize == 0) {
-                    // it's last chunk
-//                    System.out.println("Chunk size is 0, last chunk found!");
-                    lastChunkFound = true;
+                transferLen += readLen;
+            }
+        }
+        else {
+            while (transferLen < maxLen) {
+                buffer.clear();
+                if (buffer.remaining() > maxLen - transferLen) {
+                    buffer.limit((int) (maxLen - transferLen));
                 }
-                else {
-                    int remainLen = chunkSize;
-                    while (remainLen > 0) {
-                        if (remainLen > TMP_BUFFER_SIZE)
-                        {
-                            readData(buffer, 0, TMP_BUFFER_SIZE);
-                            baos.write(buffer, 0, TMP_BUFFER_SIZE);
-                            remainLen -= TMP_BUFFER_SIZE;
-                            totalLength += totalLength;
-                        }
-                        else {
-                            readData(buffer, 0, remainLen);
-                            baos.write(buffer, 0, remainLen);
-                            remainLen = 0;
-                            totalLength += remainLen;
-                        }
-                    }
-                    lineText = readOneLine();
-                    if (lineText != null) {
-                        throw new IOException("The Terminate CRLF expected for end of chunk body!" + lineText);
-                    }
+                int readLen = connection.readAvailable(timeout, buffer);
+                if (readLen < 0) {
+                    break;
                 }
-            }            
-            
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                transferLen += readLen;
+            }
         }
         
+        bodyReadLength += transferLen;
+        if (count >= 0 && transferLen < count) {
+            throw new IOException("Cannot read more from the connection!");
+        }
+        return transferLen;
     }
     
-    public void decompressGzipData(byte[] gzipData, java.io.OutputStream output) throws Exception
+    // addrs are all addresses of the host, in the order to try
+    protected NIOConnection createConnection(InetSocketAddress[] addrs)
     {
-        java.io.ByteArrayInputStream bais = new java.io.ByteArrayInputStream(gzipData);
-        java.util.zip.GZIPInputStream gis = new java.util.zip.GZIPInputStream(bais);
-        byte[] buffer = new byte[TMP_BUFFER_SIZE];
-        int len;
-        while ((len = gis.read(buffer)) != -1) {
-            output.write(buffer, 0, len);
+        if (isBlockingMode) {
+            return new NBlockingSocketConnection(addrs, false, null);
         }
-        gis.close();
+        return new NSocketConnection(addrs);
     }
     
-    protected void ensureHeaderRead() throws Exception
+    protected String getPoolKey()
+    {
+        return acceptedProtocol + "://" + host.toLowerCase() + ":" + port;
+    }
+    
+    protected boolean isConnectionReusable() throws Exception
     {
-        if (! isConnected) {
-            throw new IOException("Connection is not established yet before reading data!");
-        }
-        
         if (! hasReqHeaderSent) {
-            sendRequestHeader();
-            hasReqHeaderSent = true;
+            // nothing exchanged on the connection yet
+            return true;
         }
-
-        if (! hasRespHeaderGot) {
-            readResponseHeader();
-            hasRespHeaderGot = true;
+        if (chunkedOutput != null && ! chunkedOutput.isFinished()) {
+            // request body is not complete
+            return false;
         }
-        
+        String value = requestHeaders.get("Connection");
+        if (value != null && "close".equalsIgnoreCase(value)) {
+            return false;
+        }
+        if (inPosition < inLimit) {
+            // unexpected data after the response
+            return false;
+        }
+        return isKeepAliveResponse && isResponseBodyDone();
     }
     
     protected void parseRequestUrl() throws Exception
@@ -342,17 +927,54 @@ public class NHttpConnection
 
     }
     
+    protected void applyRequestTemplate() throws Exception
+    {
+        if (requestTemplate.isSecure() != "https".equals(acceptedProtocol)) {
+            throw new IOException("Unsupport Protocol for request URL [" + url + "]");
+        }
+        host = requestTemplate.getHost();
+        port = requestTemplate.getPort();
+        path = requestTemplate.getPath();
+    }
+    
     protected void sendRequestHeader() throws Exception
     {
-        StringBuilder sb = new StringBuilder();
-        // Append Request Header
-        if (isPost) {
-            sb.append("POST ");
+        ByteBuffer[] data = createRequestHeader();
+        long headerLength = remaining(data);
+        connection.write(timeout, data);
+        headerSent(headerLength);
+    }
+    
+    protected ByteBuffer[] createRequestHeader()
+    {
+        // add "Accept-Encoding: gzip" 
+        if (requestTemplate == null && ! requestHeaders.containsKey("Accept-Encoding")) {
+            requestHeaders.put("Accept-Encoding", "gzip");
         }
-        else {
-            sb.append("GET ");
+        
+        // the chunked framing belongs to this request only, the shared headers are left as they are
+        HashMap<String, String> reqHeaders = requestHeaders;
+        long contentLength = requestContentLength;
+        if (chunkedOutput != null) {
+            reqHeaders = new HashMap<String, String>(requestHeaders);
+            reqHeaders.remove("Content-Length");
+            reqHeaders.put("Transfer-Encoding", "chunked");
+            contentLength = -1;
         }
-        sb.append(path);
+        
+        if (requestTemplate != null) {
+            return requestTemplate.createHeader(reqHeaders, contentLength);
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap(buildRequestHeader(isPost ? "POST" : "GET", path, reqHeaders)) };
+    }
+    
+    protected byte[] buildRequestHeader(String method, String reqPath, HashMap<String, String> reqHeaders)
+    {
+        StringBuilder sb = new StringBuilder();
+        // Append Request Header
+        sb.append(method);
+        sb.append(' ');
+        sb.append(reqPath);
         sb.append(' ');
         sb.append(HTTP_PROTOCOL);
         sb.append('\r');
@@ -362,13 +984,8 @@ public class NHttpConnection
         sb.append('\r');
         sb.append('\n');
         
-        // add "Accept-Encoding: gzip" 
-        if (! requestHeaders.containsKey("Accept-Encoding")) {
-            requestHeaders.put("Accept-Encoding", "gzip");
-        }
-        
         // Append Other Header
-        Iterator<Entry<String, String>> headers = requestHeaders.entrySet().iterator();
+        Iterator<Entry<String, String>> headers = reqHeaders.entrySet().iterator();
         while (headers.hasNext()) {
             Entry<String, String> entry = headers.next();
             sb.append( entry.getKey() );
@@ -382,145 +999,119 @@ public class NHttpConnection
         sb.append('\r');
         sb.append('\n');
         
-        byte[] data = sb.toString().getBytes();
-        connection.write(timeout, data, 0, data.length);
-        
+        return sb.toString().getBytes(UTF8);
     }
     
     protected void readResponseHeader() throws Exception
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[32];
-        
-        boolean isEndOfHeader = false;
-        byte bNow;
+        if (responseParser == null) {
+            responseParser = new NHttpResponseParser();
+        }
+        else {
+            responseParser.reset();
+        }
         
-        boolean isPreviousCr = false;
-        boolean isCrLfFound  = false;
-        while (! isEndOfHeader) {
-            connection.read(timeout, buffer, 0, 1); // read one byte every time
-            bNow = buffer[0];
-            baos.write(bNow);
-            
-            if (isPreviousCr) {
-                if (bNow == '\n') {
-                    if (isCrLfFound) {
-                        isEndOfHeader = true;
-                    }
-                    else {
-                        isPreviousCr = false;
-                        isCrLfFound = true;
-                    }
-                }
-                else {
-                    isPreviousCr = false;
-                    isCrLfFound = false;
+        // first byte time stays 0 if the header was already buffered, e.g. when pipelined
+        long firstByteNanos = 0;
+        while (! responseParser.isComplete()) {
+            if (inPosition == inLimit) {
+                fillInBuffer();
+                if (listener != null && firstByteNanos == 0) {
+                    firstByteNanos = System.nanoTime() - tsHeaderSent;
                 }
             }
-            else {
-                if (bNow == '\r') {
-                    isPreviousCr = true;
-                }
-                else {
-                    isCrLfFound = false;
-                }
-            }
-           
-        }
-        
-        String respHeader = baos.toString("utf-8");
-        String[] headers = respHeader.split("\r\n");
-        if (headers == null || headers.length == 0) {
-            throw new IOException("Error, no response header received!");
-        }
-//        System.out.println("Got Response Header:");
-//        System.out.println(respHeader);
-        
-        int place1;
-        int place2;
-        // parse status line
-        String statusLine = headers[0].trim();
-        boolean parseStatusLineDone = false;
-        place1 = statusLine.indexOf(' '); // place between protocol and status code
-        if (place1 > 0) {
-            place2 = statusLine.indexOf(' ', place1 + 1);
-            if (place2 > place1) {
-                statusText = statusLine.substring(place2 + 1);
-                String tmp = statusLine.substring(place1 + 1, place2);
-                try {
-                    statusCode = Integer.parseInt(tmp);
-                    parseStatusLineDone = true;
-                } catch (Exception e) {
-                    // invalid status code
-                }
-            }
-        }
-        if (! parseStatusLineDone) {
-            throw new IOException("Error, Invalid Status Line in Response Header [" + statusLine + "]");
-
+            inPosition += responseParser.parse(inBuffer, inPosition, inLimit - inPosition);
         }
-        // parse other headers
-        responseHeaders.clear();
-        String line;
-        String key;
-        String value;
-        for (int i = 1; i < headers.length; i++) {
-            line = headers[i].trim();
-            place1 = line.indexOf(':');
-            if (place1 > 0) {
-                key = line.substring(0, place1).trim();
-                value = line.substring(place1 + 1).trim();
-                responseHeaders.put(key, value);
-                // isChunkedResponse
-            }
-            else {
-                throw new IOException("Error, Invalid Line in Response Header [" + line + "]");
-            }
+        
+        statusCode = responseParser.getStatusCode();
+        statusText = responseParser.getStatusText();
+        responseHeaders = responseParser.getHeaders();
+        if (listener != null) {
+            listener.responseHeaderEnd(statusCode, firstByteNanos, System.nanoTime() - tsHeaderSent);
         }
         
         // check whether the response is chunk sending
-        value = responseHeaders.get("Transfer-Encoding");
-        if (value != null && "chunked".equalsIgnoreCase(value)) {
+        if (responseHeaders.valueEquals("Transfer-Encoding", "chunked")) {
             isChunkedResponse = true;
+            chunkedDecoder.reset();
+        }
+        
+        // HTTP/1.1 keeps the connection alive unless told otherwise, HTTP/1.0 only when asked
+        if (HTTP_PROTOCOL.equalsIgnoreCase(responseParser.getProtocol())) {
+            isKeepAliveResponse = ! responseHeaders.valueEquals("Connection", "close");
+        }
+        else {
+            isKeepAliveResponse = responseHeaders.valueEquals("Connection", "keep-alive");
         }
     }
     
     protected String readOneLine() throws Exception
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[32];
-        
-        byte bNow;        
-        boolean isPreviousCr = false;
-        boolean isCrLfFound  = false;
-        while (! isCrLfFound) {
-            connection.read(timeout, buffer, 0, 1); // read one byte every time
-            bNow = buffer[0];
+        // scan buffered data for LF, only a line split over several reads is copied
+        ByteArrayOutputStream baos = null;
+        while (true) {
+            if (inPosition == inLimit) {
+                fillInBuffer();
+            }
+            int place = inPosition;
+            while (place < inLimit && inBuffer[place] != '\n') {
+                place++;
+            }
+            if (place == inLimit) {
+                if (baos == null) {
+                    baos = new ByteArrayOutputStream();
+                }
+                baos.write(inBuffer, inPosition, place - inPosition);
+                inPosition = place;
+                continue;
+            }
             
-            if (isPreviousCr) {
-                if (bNow == '\n') {
-                    isCrLfFound = true;
+            String lineText = null;
+            if (baos == null) {
+                int end = place;
+                if (end > inPosition && inBuffer[end - 1] == '\r') {
+                    end--;
                 }
-                else {
-                    isPreviousCr = false;
+                if (end > inPosition) {
+                    lineText = new String(inBuffer, inPosition, end - inPosition, "utf-8");
                 }
             }
             else {
-                if (bNow == '\r') {
-                    isPreviousCr = true;
+                baos.write(inBuffer, inPosition, place - inPosition);
+                byte[] line = baos.toByteArray();
+                int end = line.length;
+                if (end > 0 && line[end - 1] == '\r') {
+                    end--;
                 }
-                else {
-                    baos.write(bNow);
+                if (end > 0) {
+                    lineText = new String(line, 0, end, "utf-8");
                 }
             }
+            inPosition = place + 1;
+            return lineText;
         }
-        
-        String lineText = null;
-        if (baos.size() > 0) {
-            lineText = new String(baos.toByteArray(), "utf-8");
+    }
+    
+    protected void fillInBuffer() throws Exception
+    {
+        if (! tryFillInBuffer()) {
+            throw new IOException("Cannot read more from the connection!");
         }
-        
-        return lineText;
+    }
+    
+    // return false on end of stream
+    protected boolean tryFillInBuffer() throws Exception
+    {
+        if (inBuffer == null) {
+            inBuffer = new byte[IN_BUFFER_SIZE];
+        }
+        int readLen = connection.readAvailable(timeout, inBuffer, 0, inBuffer.length);
+        if (readLen < 0) {
+            return false;
+        }
+        inPosition = 0;
+        inLimit = readLen;
+        return true;
     }
     
     
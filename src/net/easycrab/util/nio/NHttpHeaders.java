@@ -0,0 +1,269 @@
+package net.easycrab.util.nio;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Header fields of a message, kept as the raw bytes of names and values in one array with
+ * offsets per field. Names match case insensitively and a field may repeat. Strings are only
+ * decoded when asked for, well-known names are shared constants, so a response whose headers
+ * are just checked by the client costs no String at all.
+ */
+public class NHttpHeaders
+{
+    private static final Charset    UTF8 = Charset.forName("utf-8");
+
+    private static final String[]   KNOWN_NAMES = {
+        "Accept-Ranges", "Age", "Cache-Control", "Connection", "Content-Encoding",
+        "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Expires",
+        "Keep-Alive", "Last-Modified", "Location", "Server", "Set-Cookie",
+        "Transfer-Encoding", "Vary",
+    };
+
+    // name and value bytes of all fields one after another
+    private byte[]                  data;
+    private int                     dataLen;
+    // per field: name start, value start (also the name end), value end
+    private int[]                   offsets;
+    private int                     count;
+
+    // decoded on first use
+    private String[]                names;
+    private String[]                values;
+
+    public NHttpHeaders()
+    {
+        data = new byte[512];
+        offsets = new int[48];
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public String getName(int index)
+    {
+        if (names == null) {
+            names = new String[offsets.length / 3];
+        }
+        if (names[index] == null) {
+            int start = offsets[index * 3];
+            int end = offsets[index * 3 + 1];
+            names[index] = knownName(start, end);
+            if (names[index] == null) {
+                names[index] = new String(data, start, end - start, UTF8);
+            }
+        }
+        return names[index];
+    }
+
+    public String getValue(int index)
+    {
+        if (values == null) {
+            values = new String[offsets.length / 3];
+        }
+        if (values[index] == null) {
+            int start = offsets[index * 3 + 1];
+            values[index] = new String(data, start, offsets[index * 3 + 2] - start, UTF8);
+        }
+        return values[index];
+    }
+
+    // returns the index of the first field with the name at or after fromIndex, or -1
+    public int indexOf(String name, int fromIndex)
+    {
+        for (int i = fromIndex; i < count; i++) {
+            if (nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(String name)
+    {
+        return indexOf(name, 0) >= 0;
+    }
+
+    // value of the first field with the name, or null
+    public String get(String name)
+    {
+        int index = indexOf(name, 0);
+        return (index < 0) ? null : getValue(index);
+    }
+
+    // values of all fields with the name in their order, e.g. for Set-Cookie
+    public ArrayList<String> getAll(String name)
+    {
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = indexOf(name, 0); i >= 0; i = indexOf(name, i + 1)) {
+            result.add(getValue(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the first field with the name has the value, ignoring case, without
+     * decoding it.
+     */
+    public boolean valueEquals(String name, String value)
+    {
+        int index = indexOf(name, 0);
+        if (index < 0) {
+            return false;
+        }
+        int start = offsets[index * 3 + 1];
+        return equalsIgnoreCase(start, offsets[index * 3 + 2], value);
+    }
+
+    /**
+     * Returns the decimal value of the first field with the name, or defaultValue if there
+     * is none. Throws NumberFormatException if it is not a non-negative number.
+     */
+    public long getLong(String name, long defaultValue)
+    {
+        int index = indexOf(name, 0);
+        if (index < 0) {
+            return defaultValue;
+        }
+        int start = offsets[index * 3 + 1];
+        int end = offsets[index * 3 + 2];
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException("Invalid number for " + name + " [" + getValue(index) + "]");
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b < '0' || b > '9') {
+                throw new NumberFormatException("Invalid number for " + name + " [" + getValue(index) + "]");
+            }
+            result = result * 10 + (b - '0');
+        }
+        return result;
+    }
+
+    public void add(String name, String value)
+    {
+        byte[] nameBytes = name.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        add(nameBytes, 0, nameBytes.length, valueBytes, 0, valueBytes.length);
+        if (names == null) {
+            names = new String[offsets.length / 3];
+        }
+        if (values == null) {
+            values = new String[offsets.length / 3];
+        }
+        names[count - 1] = name;
+        values[count - 1] = value;
+    }
+
+    // copies one field, e.g. from the line being parsed
+    void add(byte[] nameData, int nameStart, int nameEnd, byte[] valueData, int valueStart, int valueEnd)
+    {
+        int nameLen = nameEnd - nameStart;
+        int valueLen = valueEnd - valueStart;
+        if (dataLen + nameLen + valueLen > data.length) {
+            byte[] newData = new byte[Math.max(dataLen + nameLen + valueLen, data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, dataLen);
+            data = newData;
+        }
+        if ((count + 1) * 3 > offsets.length) {
+            int[] newOffsets = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count * 3);
+            offsets = newOffsets;
+            if (names != null) {
+                String[] newNames = new String[offsets.length / 3];
+                System.arraycopy(names, 0, newNames, 0, count);
+                names = newNames;
+            }
+            if (values != null) {
+                String[] newValues = new String[offsets.length / 3];
+                System.arraycopy(values, 0, newValues, 0, count);
+                values = newValues;
+            }
+        }
+
+        offsets[count * 3] = dataLen;
+        System.arraycopy(nameData, nameStart, data, dataLen, nameLen);
+        dataLen += nameLen;
+        offsets[count * 3 + 1] = dataLen;
+        System.arraycopy(valueData, valueStart, data, dataLen, valueLen);
+        dataLen += valueLen;
+        offsets[count * 3 + 2] = dataLen;
+        count++;
+    }
+
+    /**
+     * Returns the fields as a map, the values of a repeated name are joined by comma.
+     */
+    public HashMap<String, String> toMap()
+    {
+        HashMap<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            String name = getName(i);
+            String old = map.get(name);
+            map.put(name, (old == null) ? getValue(i) : old + ", " + getValue(i));
+        }
+        return map;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(getName(i)).append('=').append(getValue(i));
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private boolean nameEquals(int index, String name)
+    {
+        return equalsIgnoreCase(offsets[index * 3], offsets[index * 3 + 1], name);
+    }
+
+    // header names and the values compared are ASCII, other chars must match exactly
+    private boolean equalsIgnoreCase(int start, int end, String text)
+    {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int b = data[i] & 0xff;
+            int c = text.charAt(i - start);
+            if (b != c && toLower(b) != toLower(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String knownName(int start, int end)
+    {
+        for (String name : KNOWN_NAMES) {
+            if (name.length() != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length() && data[start + i] == name.charAt(i)) {
+                i++;
+            }
+            if (i == name.length()) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static int toLower(int c)
+    {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+}
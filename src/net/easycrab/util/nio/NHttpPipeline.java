@@ -0,0 +1,246 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Sends several idempotent requests back to back on one connection (HTTP/1.1 pipelining)
+ * and reads their responses in the same order. Typical use:
+ * <pre>
+ *     pipeline.connect();
+ *     pipeline.addRequest("/a");
+ *     pipeline.addRequest("/b");
+ *     while (pipeline.nextResponse()) {
+ *         pipeline.getResponseStatusCode();
+ *         pipeline.readBody(output, true);
+ *     }
+ *     pipeline.close();
+ * </pre>
+ * A response body not read by caller is skipped by the next call of nextResponse().
+ */
+public class NHttpPipeline extends NHttpConnection
+{
+    private LinkedList<PipelinedRequest>    queuedRequests;
+    private LinkedList<PipelinedRequest>    sentRequests;
+    private PipelinedRequest                currentRequest;
+
+    private static class PipelinedRequest
+    {
+        String      method;
+        String      path;
+        byte[]      header;
+
+        PipelinedRequest(String method, String path, byte[] header)
+        {
+            this.method = method;
+            this.path = path;
+            this.header = header;
+        }
+    }
+
+    // the path of the URL is used by addRequest() without path
+    public NHttpPipeline(String targetUrl, long timeout)
+    {
+        this(targetUrl, timeout, false);
+    }
+
+    public NHttpPipeline(String targetUrl, long timeout, boolean isBlockingMode)
+    {
+        super(targetUrl, false, timeout, isBlockingMode);
+        if (targetUrl != null && targetUrl.regionMatches(true, 0, "https://", 0, 8)) {
+            acceptedProtocol = "https";
+            defaultPortNum = 443;
+        }
+        queuedRequests = new LinkedList<PipelinedRequest>();
+        sentRequests = new LinkedList<PipelinedRequest>();
+    }
+
+    public void connect() throws Exception
+    {
+        super.connect();
+        // requests are only sent through sendRequests()
+        hasReqHeaderSent = true;
+        hasRespHeaderGot = false;
+        currentRequest = null;
+        queuedRequests.clear();
+        sentRequests.clear();
+    }
+
+    public void addRequest() throws Exception
+    {
+        addRequest("GET", path, null);
+    }
+
+    public void addRequest(String reqPath) throws Exception
+    {
+        addRequest("GET", reqPath, null);
+    }
+
+    /**
+     * Queues a request without body. Only idempotent methods are accepted, since a pipelined
+     * request may have to be resent if the server closes the connection early.
+     */
+    public void addRequest(String method, String reqPath, HashMap<String, String> extraHeaders) throws Exception
+    {
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before adding request!");
+        }
+        if (! isIdempotent(method)) {
+            throw new IOException("Method " + method + " cannot be pipelined!");
+        }
+        if (reqPath == null || reqPath.length() == 0) {
+            reqPath = "/";
+        }
+
+        HashMap<String, String> headers = new HashMap<String, String>(requestHeaders);
+        if (extraHeaders != null) {
+            headers.putAll(extraHeaders);
+        }
+        if (! headers.containsKey("Accept-Encoding")) {
+            headers.put("Accept-Encoding", "gzip");
+        }
+        String upperMethod = method.toUpperCase();
+        queuedRequests.add(new PipelinedRequest(upperMethod, reqPath,
+                buildRequestHeader(upperMethod, reqPath, headers)));
+    }
+
+    /**
+     * Writes all queued requests in one go.
+     */
+    public void sendRequests() throws Exception
+    {
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before sending data!");
+        }
+        if (queuedRequests.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer[] data = new ByteBuffer[queuedRequests.size()];
+        int index = 0;
+        long byteCount = 0;
+        for (PipelinedRequest request : queuedRequests) {
+            data[index++] = ByteBuffer.wrap(request.header);
+            byteCount += request.header.length;
+        }
+
+        connection.write(timeout, data);
+        headerSent(byteCount);
+        sentRequests.addAll(queuedRequests);
+        queuedRequests.clear();
+    }
+
+    /**
+     * Moves to the response of the next request, sending queued requests first if needed.
+     * Returns false if there is no request waiting for response.
+     */
+    public boolean nextResponse() throws Exception
+    {
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before reading data!");
+        }
+        if (currentRequest != null && hasRespHeaderGot) {
+            skipResponseBody();
+            if (! isKeepAliveResponse && ! sentRequests.isEmpty()) {
+                throw new IOException("Server closed the pipeline, " + sentRequests.size()
+                        + " requests are not answered!");
+            }
+        }
+        if (sentRequests.isEmpty()) {
+            sendRequests();
+        }
+        currentRequest = sentRequests.poll();
+        if (currentRequest == null) {
+            return false;
+        }
+
+        hasRespHeaderGot = false;
+        isChunkedResponse = false;
+        isKeepAliveResponse = false;
+        bodyReadLength = 0;
+        ensureHeaderRead();
+        return true;
+    }
+
+    public String getResponseMethod()
+    {
+        return (currentRequest == null) ? null : currentRequest.method;
+    }
+
+    public String getResponsePath()
+    {
+        return (currentRequest == null) ? null : currentRequest.path;
+    }
+
+    public int getQueuedCount()
+    {
+        return queuedRequests.size();
+    }
+
+    public int getPendingCount()
+    {
+        return sentRequests.size();
+    }
+
+    protected void ensureHeaderRead() throws Exception
+    {
+        if (! isConnected) {
+            throw new IOException("Connection is not established yet before reading data!");
+        }
+        if (currentRequest == null) {
+            throw new IOException("No response is selected, call nextResponse() first!");
+        }
+
+        if (! hasRespHeaderGot) {
+            readResponseHeader();
+            hasRespHeaderGot = true;
+            if (statusCode / 100 == 1) {
+                // skip interim response, the final one follows
+                hasRespHeaderGot = false;
+                ensureHeaderRead();
+            }
+        }
+    }
+
+    protected boolean hasResponseBody() throws Exception
+    {
+        if (currentRequest != null && "HEAD".equals(currentRequest.method)) {
+            return false;
+        }
+        return super.hasResponseBody();
+    }
+
+    protected boolean isConnectionReusable() throws Exception
+    {
+        if (! sentRequests.isEmpty()) {
+            // responses are still on the way
+            return false;
+        }
+        if (currentRequest == null) {
+            // nothing sent since connect, requests only queued are dropped
+            return true;
+        }
+        return super.isConnectionReusable();
+    }
+
+    protected NIOConnection createConnection(InetSocketAddress[] addrs)
+    {
+        if ("https".equals(acceptedProtocol)) {
+            if (isBlockingMode) {
+                return new NBlockingSocketConnection(addrs, true, tlsConfig);
+            }
+            return new NSSLSocketConnection(addrs, tlsConfig);
+        }
+        return super.createConnection(addrs);
+    }
+
+    private static boolean isIdempotent(String method)
+    {
+        return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)
+                || "OPTIONS".equalsIgnoreCase(method) || "TRACE".equalsIgnoreCase(method);
+    }
+
+}
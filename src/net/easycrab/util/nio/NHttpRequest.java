@@ -0,0 +1,90 @@
+package net.easycrab.util.nio;
+
+import java.util.HashMap;
+
+/**
+ * A request for NAsyncHttpClient.
+ */
+public class NHttpRequest
+{
+    private String                      method;
+    private String                      url;
+    private HashMap<String, String>     headers;
+    private byte[]                      body;
+    private long                        timeout = 30000; // 30 seconds
+    private boolean                     decodeGzip;
+
+    public NHttpRequest(String url)
+    {
+        this("GET", url);
+    }
+
+    public NHttpRequest(String method, String url)
+    {
+        this.method = method.toUpperCase();
+        this.url = url;
+        headers = new HashMap<String, String>();
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public void setHeader(String headerName, String headerVal)
+    {
+        if (headerName != null && headerName.length() > 0 && headerVal != null) {
+            headers.put(headerName, headerVal);
+        }
+    }
+
+    public HashMap<String, String> getHeaders()
+    {
+        return headers;
+    }
+
+    // Content-Length is set from the body when the request is sent
+    public void setBody(byte[] data)
+    {
+        body = data;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    // used for connect and for every wait on the connection
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    // decompress a gzip response body before it is handed to caller
+    public void setDecodeGzip(boolean isDecodeGzip)
+    {
+        decodeGzip = isDecodeGzip;
+    }
+
+    public boolean isDecodeGzip()
+    {
+        return decodeGzip;
+    }
+
+    public boolean isIdempotent()
+    {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)
+                || "TRACE".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+}
@@ -0,0 +1,185 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A request shape which is sent many times, e.g. polling one URL. The URL is parsed once
+ * and the request line, Host and the static headers are encoded to bytes once; a request
+ * only adds its own headers and Content-Length after them. It is immutable, so one template
+ * can be shared by connections of many threads.
+ */
+public class NHttpRequestTemplate
+{
+    private static final Charset    UTF8 = Charset.forName("utf-8");
+    private static final byte[]     CRLF = { '\r', '\n' };
+    private static final byte[]     CONTENT_LENGTH = "Content-Length: ".getBytes(UTF8);
+
+    private String                  url;
+    private String                  method;
+    private boolean                 isSecure;
+    private String                  host;
+    private int                     port;
+    private String                  path;
+
+    // request line and static headers, without the empty line
+    private byte[]                  prefix;
+
+    public NHttpRequestTemplate(String method, String url) throws IOException
+    {
+        this(method, url, null);
+    }
+
+    /**
+     * Static headers are copied. "Accept-Encoding: gzip" is added unless given.
+     */
+    public NHttpRequestTemplate(String method, String url, HashMap<String, String> headers) throws IOException
+    {
+        this.method = method.toUpperCase();
+        this.url = url;
+
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid request URL. [" + url + "]");
+        }
+        String scheme = uri.getScheme();
+        if ("https".equalsIgnoreCase(scheme)) {
+            isSecure = true;
+        }
+        else if (! "http".equalsIgnoreCase(scheme)) {
+            throw new IOException("Unsupport Protocol for request URL [" + url + "]");
+        }
+        host = uri.getHost();
+        if (host == null) {
+            throw new IOException("Invalid request URL, no host is given! [" + url + "]");
+        }
+        int defaultPort = isSecure ? 443 : 80;
+        port = (uri.getPort() > 0) ? uri.getPort() : defaultPort;
+        path = uri.getRawPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (port != defaultPort) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\n");
+        boolean hasAcceptEncoding = false;
+        if (headers != null) {
+            Iterator<Entry<String, String>> entries = headers.entrySet().iterator();
+            while (entries.hasNext()) {
+                Entry<String, String> entry = entries.next();
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+                if ("Accept-Encoding".equalsIgnoreCase(entry.getKey())) {
+                    hasAcceptEncoding = true;
+                }
+            }
+        }
+        if (! hasAcceptEncoding) {
+            sb.append("Accept-Encoding: gzip\r\n");
+        }
+        prefix = sb.toString().getBytes(UTF8);
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    public boolean isSecure()
+    {
+        return isSecure;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the request header as buffers for one gathering write. The extra headers may be
+     * null, Content-Length is only added if contentLength >= 0.
+     */
+    public ByteBuffer[] createHeader(HashMap<String, String> extraHeaders, long contentLength)
+    {
+        ByteBuffer head = ByteBuffer.wrap(prefix);
+        if ((extraHeaders == null || extraHeaders.isEmpty()) && contentLength < 0) {
+            return new ByteBuffer[] { head, ByteBuffer.wrap(CRLF) };
+        }
+
+        byte[] extra = null;
+        if (extraHeaders != null && ! extraHeaders.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            Iterator<Entry<String, String>> entries = extraHeaders.entrySet().iterator();
+            while (entries.hasNext()) {
+                Entry<String, String> entry = entries.next();
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+            extra = sb.toString().getBytes(UTF8);
+        }
+
+        int digitCount = 0;
+        if (contentLength >= 0) {
+            digitCount = 1;
+            for (long value = contentLength; value >= 10; value /= 10) {
+                digitCount++;
+            }
+        }
+        int size = (extra != null ? extra.length : 0) + CRLF.length;
+        if (contentLength >= 0) {
+            size += CONTENT_LENGTH.length + digitCount + CRLF.length;
+        }
+
+        byte[] tail = new byte[size];
+        int pos = 0;
+        if (extra != null) {
+            System.arraycopy(extra, 0, tail, 0, extra.length);
+            pos = extra.length;
+        }
+        if (contentLength >= 0) {
+            System.arraycopy(CONTENT_LENGTH, 0, tail, pos, CONTENT_LENGTH.length);
+            pos += CONTENT_LENGTH.length;
+            long value = contentLength;
+            for (int i = pos + digitCount - 1; i >= pos; i--) {
+                tail[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            pos += digitCount;
+            tail[pos++] = '\r';
+            tail[pos++] = '\n';
+        }
+        tail[pos++] = '\r';
+        tail[pos] = '\n';
+        return new ByteBuffer[] { head, ByteBuffer.wrap(tail) };
+    }
+
+}
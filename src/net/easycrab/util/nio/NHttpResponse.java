@@ -0,0 +1,66 @@
+package net.easycrab.util.nio;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A response from NAsyncHttpClient. The body is null if it was streamed to the caller's output.
+ */
+public class NHttpResponse
+{
+    private int                         statusCode;
+    private String                      statusText;
+    private NHttpHeaders                headers;
+    private byte[]                      body;
+    private long                        bodyLength;
+
+    public NHttpResponse(int statusCode, String statusText, NHttpHeaders headers)
+    {
+        this.statusCode = statusCode;
+        this.statusText = statusText;
+        this.headers = headers;
+    }
+
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    public String getStatusText()
+    {
+        return statusText;
+    }
+
+    public NHttpHeaders getHeaders()
+    {
+        return headers;
+    }
+
+    // the name is matched ignoring case
+    public String getHeader(String headerName)
+    {
+        return headers.get(headerName);
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    public String getBodyText(String charset) throws UnsupportedEncodingException
+    {
+        return (body == null) ? null : new String(body, charset);
+    }
+
+    // count of body bytes handed to caller, after gzip decoding if it was asked for
+    public long getBodyLength()
+    {
+        return bodyLength;
+    }
+
+    void setBody(byte[] data, long length)
+    {
+        body = data;
+        bodyLength = length;
+    }
+
+}
@@ -0,0 +1,214 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental parser for the status line and header block of an HTTP response. Data can be
+ * fed in arbitrary pieces, parse() stops right after the empty line ending the header block,
+ * so bytes following it (the body) are left to the caller.
+ */
+public class NHttpResponseParser
+{
+    private static final Charset    UTF8 = Charset.forName("utf-8");
+
+    private final int               MAX_LINE_LENGTH = 65536; // 64K
+
+    // holds a line only when it spans more than one parse() call
+    private byte[]                  lineBuf = new byte[256];
+    private int                     lineLen;
+
+    private boolean                 isStatusLineDone;
+    private boolean                 isHeaderDone;
+
+    private String                  protocol;
+    private int                     statusCode;
+    private String                  statusText;
+    private NHttpHeaders            headers;
+
+    public NHttpResponseParser()
+    {
+        reset();
+    }
+
+    public void reset()
+    {
+        lineLen = 0;
+        isStatusLineDone = false;
+        isHeaderDone = false;
+        protocol = null;
+        statusCode = 0;
+        statusText = null;
+        headers = new NHttpHeaders();
+    }
+
+    public boolean isComplete()
+    {
+        return isHeaderDone;
+    }
+
+    public String getProtocol()
+    {
+        return protocol;
+    }
+
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    public String getStatusText()
+    {
+        return statusText;
+    }
+
+    public NHttpHeaders getHeaders()
+    {
+        return headers;
+    }
+
+    /**
+     * Parses the data and returns the count of bytes consumed. It is less than len only
+     * when the header block is complete.
+     */
+    public int parse(byte[] data, int offset, int len) throws IOException
+    {
+        int end = offset + len;
+        int pos = offset;
+        while (pos < end && ! isHeaderDone) {
+            int place = pos;
+            while (place < end && data[place] != '\n') {
+                place++;
+            }
+            if (place == end) {
+                // line continues in next data
+                appendLine(data, pos, end - pos);
+                pos = end;
+            }
+            else {
+                if (lineLen == 0) {
+                    // common case, the whole line is in the data, no copy needed
+                    parseLine(data, pos, place - pos);
+                }
+                else {
+                    appendLine(data, pos, place - pos);
+                    parseLine(lineBuf, 0, lineLen);
+                    lineLen = 0;
+                }
+                pos = place + 1;
+            }
+        }
+        return pos - offset;
+    }
+
+    private void appendLine(byte[] data, int offset, int len) throws IOException
+    {
+        int newLen = lineLen + len;
+        if (newLen > MAX_LINE_LENGTH) {
+            throw new IOException("Error, too long line in Response Header!");
+        }
+        if (newLen > lineBuf.length) {
+            byte[] newBuf = new byte[Math.max(newLen, lineBuf.length * 2)];
+            System.arraycopy(lineBuf, 0, newBuf, 0, lineLen);
+            lineBuf = newBuf;
+        }
+        System.arraycopy(data, offset, lineBuf, lineLen, len);
+        lineLen = newLen;
+    }
+
+    private void parseLine(byte[] data, int offset, int len) throws IOException
+    {
+        int end = offset + len;
+        if (end > offset && data[end - 1] == '\r') {
+            end--;
+        }
+
+        if (! isStatusLineDone) {
+            if (end == offset) {
+                // ignore empty lines before the status line
+                return;
+            }
+            parseStatusLine(data, offset, end);
+            isStatusLineDone = true;
+        }
+        else if (end == offset) {
+            isHeaderDone = true;
+        }
+        else {
+            parseHeaderLine(data, offset, end);
+        }
+    }
+
+    private void parseStatusLine(byte[] data, int start, int end) throws IOException
+    {
+        start = skipSpace(data, start, end);
+        end = trimSpace(data, start, end);
+
+        // place between protocol and status code
+        int place1 = indexOf(data, start, end, (byte) ' ');
+        int place2 = (place1 > start) ? indexOf(data, place1 + 1, end, (byte) ' ') : -1;
+        int code = -1;
+        if (place2 > place1 + 1) {
+            code = 0;
+            for (int i = place1 + 1; i < place2; i++) {
+                byte b = data[i];
+                if (b < '0' || b > '9' || code > 99999) {
+                    code = -1;
+                    break;
+                }
+                code = code * 10 + (b - '0');
+            }
+        }
+        if (code < 0) {
+            throw new IOException("Error, Invalid Status Line in Response Header ["
+                    + new String(data, start, end - start, UTF8) + "]");
+        }
+
+        protocol = new String(data, start, place1 - start, UTF8);
+        statusCode = code;
+        statusText = new String(data, place2 + 1, end - place2 - 1, UTF8);
+    }
+
+    private void parseHeaderLine(byte[] data, int start, int end) throws IOException
+    {
+        start = skipSpace(data, start, end);
+        end = trimSpace(data, start, end);
+
+        int place = indexOf(data, start, end, (byte) ':');
+        if (place <= start) {
+            throw new IOException("Error, Invalid Line in Response Header ["
+                    + new String(data, start, end - start, UTF8) + "]");
+        }
+        int keyEnd = trimSpace(data, start, place);
+        int valueStart = skipSpace(data, place + 1, end);
+
+        headers.add(data, start, keyEnd, data, valueStart, end);
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte target)
+    {
+        for (int i = start; i < end; i++) {
+            if (data[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpace(byte[] data, int start, int end)
+    {
+        while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimSpace(byte[] data, int start, int end)
+    {
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+}
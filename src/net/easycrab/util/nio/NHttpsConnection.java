@@ -7,21 +7,34 @@ public class NHttpsConnection extends NHttpConnection
     
     public NHttpsConnection(String targetUrl, boolean isMethodPost, long timeout)
     {
-        super(targetUrl, isMethodPost, timeout);
+        this(targetUrl, isMethodPost, timeout, false);
+    }
+
+    public NHttpsConnection(String targetUrl, boolean isMethodPost, long timeout, boolean isBlockingMode)
+    {
+        super(targetUrl, isMethodPost, timeout, isBlockingMode);
+        acceptedProtocol = "https";
+        defaultPortNum = 443;
+    }
+
+    public NHttpsConnection(NHttpRequestTemplate template, long timeout)
+    {
+        this(template, timeout, false);
+    }
+
+    public NHttpsConnection(NHttpRequestTemplate template, long timeout, boolean isBlockingMode)
+    {
+        super(template, timeout, isBlockingMode);
         acceptedProtocol = "https";
         defaultPortNum = 443;
     }
 
-    public void connect() throws Exception
+    protected NIOConnection createConnection(InetSocketAddress[] addrs)
     {
-        parseRequestUrl();
-        InetSocketAddress addr = new InetSocketAddress(host, port);
-        connection = new NSSLSocketConnection(addr);
-        connection.connect(timeout);
-        
-        hasReqHeaderSent = false;
-        hasRespHeaderGot = false;
-        isConnected = true;
+        if (isBlockingMode) {
+            return new NBlockingSocketConnection(addrs, true, tlsConfig);
+        }
+        return new NSSLSocketConnection(addrs, tlsConfig);
     }
 
 }
@@ -0,0 +1,17 @@
+package net.easycrab.util.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the I/O buffers used by connections. Buffers are taken when a connection opens
+ * and given back when it closes.
+ */
+public interface NIOBufferAllocator
+{
+    // return a cleared buffer, its capacity may be larger than asked
+    public ByteBuffer allocate(int capacity);
+    
+    // the buffer shall not be touched by caller any more
+    public void release(ByteBuffer buffer);
+    
+}
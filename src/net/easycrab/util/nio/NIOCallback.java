@@ -0,0 +1,9 @@
+package net.easycrab.util.nio;
+
+public interface NIOCallback<T>
+{
+    public void completed(T result);
+    
+    public void failed(Exception e);
+    
+}
@@ -1,5 +1,9 @@
 package net.easycrab.util.nio;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 public interface NIOConnection
 {
     public void connect(long timeout) throws Exception;
@@ -8,8 +12,37 @@ public interface NIOConnection
     
     public void write(long timeout, byte[] data, int offset, int len) throws Exception;
     
+    // write the remaining bytes of all buffers in order, with as few system calls as possible
+    public void write(long timeout, ByteBuffer[] srcs) throws Exception;
+    
     public int read(long timeout, byte[] data, int offset, int len) throws Exception;
     
+    // block until some data is available and read at most len bytes, return -1 on end of stream
+    public int readAvailable(long timeout, byte[] data, int offset, int len) throws Exception;
+    
+    public int readAvailable(long timeout, ByteBuffer dst) throws Exception;
+    
+    // write count bytes into file at position, return less only on end of stream
+    public long transferTo(long timeout, FileChannel target, long position, long count) throws Exception;
+    
+    // write count bytes of file from position, the file shall hold them all
+    public void transferFrom(long timeout, FileChannel src, long position, long count) throws Exception;
+    
     public void setTimeoutMode(boolean isOnlyCheckBlockTime);
     
+    // buffers are taken from it on connect and given back on close, set it before connect
+    public void setBufferAllocator(NIOBufferAllocator allocator);
+    
+    // events and counters are only taken while a listener is set
+    public void setListener(NConnectionListener listener);
+    
+    // counters since the first listener was set, null if never
+    public NConnectionStats getStats();
+    
+    // the address connected to, one of those given when several were tried
+    public InetSocketAddress getRemoteAddress();
+    
+    // check without blocking whether the connection can be reused for another request
+    public boolean isAlive();
+    
 }
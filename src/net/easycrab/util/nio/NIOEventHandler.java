@@ -0,0 +1,13 @@
+package net.easycrab.util.nio;
+
+import java.nio.channels.SelectionKey;
+
+public interface NIOEventHandler
+{
+    // called on the event loop thread when the registered channel is ready
+    public void handleEvent(SelectionKey key) throws Exception;
+    
+    // called on the event loop thread when handleEvent() failed or the loop is shut down
+    public void handleError(Exception e);
+    
+}
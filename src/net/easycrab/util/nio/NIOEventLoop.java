@@ -0,0 +1,171 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread which owns many channels. All handler callbacks, submitted tasks and
+ * timers run on this thread, so handlers need no locking for their own state. The select
+ * waits until the next timer tick, or without limit while no timer is pending.
+ */
+public class NIOEventLoop implements Runnable
+{
+    private Selector                        selector;
+    private Thread                          thread;
+    private ConcurrentLinkedQueue<Runnable> taskQueue;
+    private NTimerWheel                     timerWheel;
+    private volatile boolean                isRunning;
+    private Thread.UncaughtExceptionHandler exceptionHandler;
+
+    public NIOEventLoop(String name) throws IOException
+    {
+        selector = Selector.open();
+        taskQueue = new ConcurrentLinkedQueue<Runnable>();
+        timerWheel = new NTimerWheel();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        isRunning = true;
+        thread.start();
+    }
+
+    public void shutdown()
+    {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Gets what a task or timer task throws, set it before start. The default handler of
+     * Thread is used if not set.
+     */
+    public void setExceptionHandler(Thread.UncaughtExceptionHandler handler)
+    {
+        exceptionHandler = handler;
+        timerWheel.setExceptionHandler(handler);
+    }
+
+    public boolean isRunning()
+    {
+        return isRunning;
+    }
+
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task)
+    {
+        taskQueue.add(task);
+        if (! inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // shall be called on the event loop thread, e.g. from a task passed to execute()
+    public SelectionKey register(SelectableChannel channel, int ops, NIOEventHandler handler) throws IOException
+    {
+        if (! inEventLoop()) {
+            throw new IOException("Channel can only be registered on the event loop thread!");
+        }
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Runs the task after the delay in milliseconds, e.g. to expire an operation. It shall be
+     * called on the event loop thread, the returned timer can be cancelled.
+     */
+    public NTimerWheel.Timer schedule(Runnable task, long delay)
+    {
+        if (! inEventLoop()) {
+            throw new IllegalStateException("Timer can only be scheduled on the event loop thread!");
+        }
+        return timerWheel.schedule(task, delay);
+    }
+
+    public void run()
+    {
+        while (isRunning) {
+            try {
+                long delay = timerWheel.getDelayNanos(System.nanoTime());
+                if (delay < 0) {
+                    selector.select();
+                }
+                else if (delay == 0) {
+                    selector.selectNow();
+                }
+                else {
+                    // round up, waking before the tick would only spin
+                    selector.select((delay + NDeadline.NANOS_PER_MILLI - 1) / NDeadline.NANOS_PER_MILLI);
+                }
+            } catch (IOException e) {
+                // selector is broken, nothing more can be served
+                break;
+            }
+
+            Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+            while (keyIterator.hasNext()) {
+                SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+                if (! key.isValid()) {
+                    continue;
+                }
+                NIOEventHandler handler = (NIOEventHandler) key.attachment();
+                try {
+                    handler.handleEvent(key);
+                } catch (Exception e) {
+                    handler.handleError(e);
+                }
+            }
+
+            runTasks();
+            timerWheel.expire(System.nanoTime());
+        }
+
+        isRunning = false;
+        runTasks();
+        IOException e = new IOException("Event loop was shut down!");
+        for (NIOEventHandler handler : getHandlers()) {
+            handler.handleError(e);
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // a broken task shall not stop the loop
+                NTimerWheel.reportTaskError(exceptionHandler, e);
+            }
+        }
+    }
+
+    private ArrayList<NIOEventHandler> getHandlers()
+    {
+        ArrayList<NIOEventHandler> handlers = new ArrayList<NIOEventHandler>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof NIOEventHandler) {
+                handlers.add((NIOEventHandler) key.attachment());
+            }
+        }
+        return handlers;
+    }
+
+}
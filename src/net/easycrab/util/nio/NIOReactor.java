@@ -0,0 +1,72 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * A group of event loops. Connections are spread over the loops in round-robin order.
+ */
+public class NIOReactor
+{
+    private NIOEventLoop[]      eventLoops;
+    private AtomicInteger       nextIndex;
+
+    public NIOReactor() throws IOException
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public NIOReactor(int loopCount) throws IOException
+    {
+        if (loopCount <= 0) {
+            loopCount = 1;
+        }
+        eventLoops = new NIOEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i] = new NIOEventLoop("NIOEventLoop-" + i);
+        }
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i].start();
+        }
+        nextIndex = new AtomicInteger();
+    }
+
+    public NIOEventLoop next()
+    {
+        int index = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+        return eventLoops[index];
+    }
+
+    public int getLoopCount()
+    {
+        return eventLoops.length;
+    }
+
+    public NAsyncConnection createConnection(InetSocketAddress address)
+    {
+        return new NAsyncConnection(next(), address, null);
+    }
+
+    // the engine shall be created in client mode for the target host
+    public NAsyncConnection createConnection(InetSocketAddress address, SSLEngine sslEngine)
+    {
+        return new NAsyncConnection(next(), address, sslEngine);
+    }
+
+    public NAsyncConnection createConnection(InetSocketAddress address, NTLSClientConfig config)
+    {
+        SSLEngine sslEngine = config.createEngine(address.getHostString(), address.getPort());
+        return new NAsyncConnection(next(), address, sslEngine);
+    }
+
+    public void shutdown()
+    {
+        for (NIOEventLoop loop : eventLoops) {
+            loop.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package net.easycrab.util.nio;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+public interface NIOResolver
+{
+    // all addresses of the host in the order they shall be tried, never empty
+    public InetAddress[] resolve(String host) throws UnknownHostException;
+
+    // the address which connected first, so it can be tried first next time
+    public void reportConnected(String host, InetAddress address);
+
+}
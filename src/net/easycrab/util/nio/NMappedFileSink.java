@@ -0,0 +1,119 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes into a file through a memory mapped window which moves on as it fills, so data read
+ * from a connection lands in the page cache without a heap copy or a write call per buffer.
+ * Mapping past the end grows the file, finish() cuts back what was mapped but not written.
+ * <p>
+ * Mappings are released by the garbage collector, there is no way to unmap them earlier.
+ * Windows does not allow to truncate a file while a mapping of it is alive, so there
+ * finish() fails if the file grew; set the expected length first to map no more than it.
+ */
+public class NMappedFileSink implements WritableByteChannel
+{
+    public static final int     DEFAULT_WINDOW_SIZE = 16777216; // 16M
+
+    private FileChannel         file;
+    private int                 windowSize;
+    private long                originalSize;
+    private long                expectedEnd = -1;
+
+    private MappedByteBuffer    window;
+    private long                windowStart;
+    private boolean             isOpen = true;
+
+    public NMappedFileSink(FileChannel file, long position) throws IOException
+    {
+        this(file, position, DEFAULT_WINDOW_SIZE);
+    }
+
+    public NMappedFileSink(FileChannel file, long position, int windowSize) throws IOException
+    {
+        this.file = file;
+        this.windowSize = windowSize;
+        originalSize = file.size();
+        windowStart = position;
+    }
+
+    // windows are not mapped beyond position + length once the length of the data is known
+    public void setExpectedLength(long length)
+    {
+        expectedEnd = getPosition() + length;
+    }
+
+    // position in the file after the last byte written
+    public long getPosition()
+    {
+        return (window == null) ? windowStart : windowStart + window.position();
+    }
+
+    /**
+     * Returns the window to put at most maxLen bytes into at its position, a new one is mapped
+     * once the current one is full.
+     */
+    ByteBuffer window(long maxLen) throws IOException
+    {
+        if (window == null || window.position() == window.capacity()) {
+            long start = getPosition();
+            long size = windowSize;
+            if (expectedEnd > start) {
+                size = Math.min(size, expectedEnd - start);
+            }
+            window = file.map(FileChannel.MapMode.READ_WRITE, start, size);
+            windowStart = start;
+        }
+        window.limit((int) Math.min(window.capacity(), window.position() + maxLen));
+        return window;
+    }
+
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (! isOpen) {
+            throw new IOException("Sink was finished, cannot write more!");
+        }
+        int writeLen = 0;
+        while (src.hasRemaining()) {
+            ByteBuffer dst = window(src.remaining());
+            int len = Math.min(dst.remaining(), src.remaining());
+            int oldLimit = src.limit();
+            src.limit(src.position() + len);
+            dst.put(src);
+            src.limit(oldLimit);
+            writeLen += len;
+        }
+        return writeLen;
+    }
+
+    // cuts the file back if a window mapped beyond the data made it grow
+    public void finish() throws IOException
+    {
+        if (! isOpen) {
+            return;
+        }
+        isOpen = false;
+        long end = getPosition();
+        windowStart = end;
+        window = null;
+        long size = Math.max(originalSize, end);
+        if (file.size() > size) {
+            file.truncate(size);
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return isOpen;
+    }
+
+    public void close() throws IOException
+    {
+        finish();
+    }
+
+}
@@ -0,0 +1,486 @@
+package net.easycrab.util.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Downloads one URL over several connections at once, so a link with a large bandwidth-delay
+ * product is filled where a single TCP stream is limited by its window. The object is split
+ * into blocks fetched by Range requests, each written at its offset into the file, which is
+ * sized to the object first.
+ * <p>
+ * The first block also probes the object: a 206 gives the total length from Content-Range,
+ * a 200 means ranges are not supported and the body is taken as one stream. Later blocks send
+ * If-Range with the ETag or Last-Modified of the probe, so a changed object fails the download
+ * rather than mixing versions. A failed block is retried on its own, and blocks done are kept
+ * by the downloader, so calling download again resumes an object which has not changed.
+ */
+public class NRangeDownloader
+{
+    public static final int     DEFAULT_CONNECTION_COUNT = 4;
+    public static final long    DEFAULT_BLOCK_SIZE = 4194304; // 4M
+    public static final int     DEFAULT_MAX_RETRIES = 3;
+
+    private static final byte   BLOCK_PENDING = 0;
+    private static final byte   BLOCK_RUNNING = 1;
+    private static final byte   BLOCK_DONE = 2;
+
+    private String                  url;
+    private long                    timeout;
+    private int                     connectionCount = DEFAULT_CONNECTION_COUNT;
+    private long                    blockSize = DEFAULT_BLOCK_SIZE;
+    private int                     maxRetries = DEFAULT_MAX_RETRIES;
+    private HashMap<String, String> requestHeaders = new HashMap<String, String>();
+    private NTLSClientConfig        tlsConfig;
+    private NIOResolver             resolver;
+
+    // connections are kept between the blocks of one download
+    private NConnectionPool         connectionPool;
+
+    // state of the object, kept for resuming
+    private long                    totalLength = -1;
+    private String                  validator;
+    private boolean                 isRangeSupported;
+    private byte[]                  blockStates;
+
+    // state of the running download, guarded by this
+    private int[]                   blockRetries;
+    private long                    downloadedLength;
+    private int                     retryCount;
+    private Exception               failure;
+    private long                    failedBlockStart;
+
+    public NRangeDownloader(String url, long timeout)
+    {
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    public void setConnectionCount(int count)
+    {
+        connectionCount = Math.max(1, count);
+    }
+
+    public void setBlockSize(long size)
+    {
+        blockSize = Math.max(1, size);
+    }
+
+    // retries of each block
+    public void setMaxRetries(int retries)
+    {
+        maxRetries = Math.max(0, retries);
+    }
+
+    public void setTLSConfig(NTLSClientConfig config)
+    {
+        tlsConfig = config;
+    }
+
+    public void setResolver(NIOResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    public void prepareRequestHeader(String headerName, String headerVal)
+    {
+        if (headerName != null && headerName.length() > 0 && headerVal != null) {
+            requestHeaders.put(headerName, headerVal);
+        }
+    }
+
+    // -1 before the object is probed or if the server does not tell it
+    public long getContentLength()
+    {
+        return totalLength;
+    }
+
+    public boolean isRangeSupported()
+    {
+        return isRangeSupported;
+    }
+
+    public synchronized long getDownloadedLength()
+    {
+        return downloadedLength;
+    }
+
+    public synchronized int getRetryCount()
+    {
+        return retryCount;
+    }
+
+    /**
+     * Downloads into the file, which is created or resized to the object. Returns the length
+     * of the object.
+     */
+    public long download(File file) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return download(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Downloads into the channel from position 0, the channel is resized to the object.
+     * Returns the length of the object.
+     */
+    public long download(FileChannel target) throws Exception
+    {
+        connectionPool = new NConnectionPool(connectionCount, connectionCount, NConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        try {
+            return doDownload(target);
+        } finally {
+            connectionPool.closeAll();
+            connectionPool = null;
+        }
+    }
+
+    private long doDownload(FileChannel target) throws Exception
+    {
+        synchronized (this) {
+            failure = null;
+            retryCount = 0;
+        }
+
+        long probeEnd = blockSize - 1;
+        NHttpConnection probe = createConnection();
+        probe.prepareRequestHeader("Range", "bytes=0-" + probeEnd);
+        try {
+            probe.connect();
+            int statusCode = probe.getResponseStatusCode();
+            if (statusCode == 200) {
+                return downloadWhole(probe, target);
+            }
+            long[] range = parseContentRange(probe.getResponseHeaderFields().get("Content-Range"));
+            if (statusCode == 416 && range != null && range[0] < 0 && range[2] == 0) {
+                // empty object, no range of it can be satisfied
+                setObject(0, null);
+                target.truncate(0);
+                return 0;
+            }
+            if (statusCode != 206) {
+                throw new IOException("Unexpected response status " + statusCode + " of download!");
+            }
+            if (range == null || range[0] != 0 || range[2] <= 0 || range[1] != Math.min(probeEnd, range[2] - 1)) {
+                throw new IOException("Invalid Content-Range of download! ["
+                        + probe.getResponseHeaderFields().get("Content-Range") + "]");
+            }
+
+            String etag = probe.getResponseHeaderFields().get("ETag");
+            String newValidator = (etag != null && ! etag.startsWith("W/")) ? etag
+                    : probe.getResponseHeaderFields().get("Last-Modified");
+            setObject(range[2], newValidator);
+            preallocate(target, totalLength);
+            // on resume the first block may be done, then the probe is closed without reading it
+            boolean isFirstDone;
+            synchronized (this) {
+                isFirstDone = (blockStates[0] == BLOCK_DONE);
+                if (! isFirstDone) {
+                    blockStates[0] = BLOCK_RUNNING;
+                }
+            }
+
+            // the other blocks start while the first one is still being read
+            int threadCount = Math.min(connectionCount - 1, blockStates.length - 1);
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                threads[i] = new Thread(new Worker(target), "NRangeDownloader-" + i);
+                threads[i].start();
+            }
+            if (! isFirstDone) {
+                try {
+                    long len = probe.transferBodyTo(target, 0);
+                    checkLength(len, 0, range[1]);
+                    blockDone(0, len);
+                } catch (Exception e) {
+                    blockFailed(0, e);
+                }
+            }
+            probe.close();
+            new Worker(target).run();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            probe.close();
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("Download of " + url + " failed at byte " + failedBlockStart
+                        + ", " + failure.getMessage(), failure);
+            }
+        }
+        return totalLength;
+    }
+
+    // server ignored the range, the body is taken as one stream
+    private long downloadWhole(NHttpConnection probe, FileChannel target) throws Exception
+    {
+        int retries = 0;
+        NHttpConnection conn = probe;
+        while (true) {
+            try {
+                if (conn != probe) {
+                    conn.connect();
+                    if (conn.getResponseStatusCode() != 200) {
+                        throw new IOException("Unexpected response status " + conn.getResponseStatusCode()
+                                + " of download!");
+                    }
+                }
+                long contentLength = conn.getContentLengthLong();
+                setObject(contentLength, null);
+                isRangeSupported = false;
+                if (contentLength >= 0) {
+                    preallocate(target, contentLength);
+                }
+                long len = conn.transferBodyTo(target, 0);
+                conn.close();
+                if (contentLength < 0) {
+                    target.truncate(len);
+                    totalLength = len;
+                }
+                synchronized (this) {
+                    downloadedLength = len;
+                }
+                return len;
+            } catch (Exception e) {
+                conn.close();
+                if (retries++ >= maxRetries) {
+                    throw e;
+                }
+                synchronized (this) {
+                    retryCount++;
+                }
+                conn = createConnection();
+            }
+        }
+    }
+
+    // blocks done are kept if the object is the same as of the earlier download
+    private synchronized void setObject(long length, String newValidator)
+    {
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        boolean isSame = (blockStates != null && length == totalLength && newValidator != null
+                && newValidator.equals(validator) && blockStates.length == blockCount);
+        totalLength = length;
+        validator = newValidator;
+        isRangeSupported = true;
+        if (! isSame) {
+            blockStates = new byte[blockCount];
+        }
+        blockRetries = new int[blockCount];
+        downloadedLength = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (blockStates[i] == BLOCK_DONE) {
+                downloadedLength += blockLength(i);
+            }
+            else {
+                blockStates[i] = BLOCK_PENDING;
+            }
+        }
+    }
+
+    // returns the next pending block, or -1 if all are done or the download failed
+    private synchronized int takeBlock() throws InterruptedException
+    {
+        while (failure == null) {
+            boolean isRunning = false;
+            for (int i = 0; i < blockStates.length; i++) {
+                if (blockStates[i] == BLOCK_PENDING) {
+                    blockStates[i] = BLOCK_RUNNING;
+                    return i;
+                }
+                isRunning |= (blockStates[i] == BLOCK_RUNNING);
+            }
+            if (! isRunning) {
+                return -1;
+            }
+            // a running block may fail and come back
+            wait();
+        }
+        return -1;
+    }
+
+    private synchronized void blockDone(int index, long len)
+    {
+        if (blockStates[index] != BLOCK_DONE) {
+            blockStates[index] = BLOCK_DONE;
+            downloadedLength += len;
+        }
+        notifyAll();
+    }
+
+    private synchronized void blockFailed(int index, Exception e)
+    {
+        if (blockRetries[index]++ < maxRetries && failure == null) {
+            blockStates[index] = BLOCK_PENDING;
+            retryCount++;
+        }
+        else {
+            blockStates[index] = BLOCK_PENDING;
+            if (failure == null) {
+                failure = e;
+                failedBlockStart = index * blockSize;
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void abort(Exception e)
+    {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    private long blockLength(int index)
+    {
+        return Math.min(blockSize, totalLength - index * blockSize);
+    }
+
+    private void fetchBlock(FileChannel target, int index) throws Exception
+    {
+        long start = index * blockSize;
+        long end = start + blockLength(index) - 1;
+        NHttpConnection conn = createConnection();
+        conn.prepareRequestHeader("Range", "bytes=" + start + "-" + end);
+        if (validator != null) {
+            conn.prepareRequestHeader("If-Range", validator);
+        }
+        try {
+            conn.connect();
+            if (conn.getResponseStatusCode() != 206) {
+                throw new IOException("Range is not returned, status " + conn.getResponseStatusCode()
+                        + ", the object may have changed!");
+            }
+            long[] range = parseContentRange(conn.getResponseHeaderFields().get("Content-Range"));
+            if (range == null || range[0] != start || range[1] != end || range[2] != totalLength) {
+                throw new IOException("Invalid Content-Range of download! ["
+                        + conn.getResponseHeaderFields().get("Content-Range") + "]");
+            }
+            long len = conn.transferBodyTo(target, start);
+            checkLength(len, start, end);
+            blockDone(index, len);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private NHttpConnection createConnection()
+    {
+        NHttpConnection conn;
+        if (url.regionMatches(true, 0, "https:", 0, 6)) {
+            conn = new NHttpsConnection(url, false, timeout);
+        }
+        else {
+            conn = new NHttpConnection(url, false, timeout);
+        }
+        conn.setConnectionPool(connectionPool);
+        if (tlsConfig != null) {
+            conn.setTLSConfig(tlsConfig);
+        }
+        if (resolver != null) {
+            conn.setResolver(resolver);
+        }
+        Iterator<Entry<String, String>> entries = requestHeaders.entrySet().iterator();
+        while (entries.hasNext()) {
+            Entry<String, String> entry = entries.next();
+            conn.prepareRequestHeader(entry.getKey(), entry.getValue());
+        }
+        // ranges of a compressed body would be ranges of the compressed bytes
+        conn.prepareRequestHeader("Accept-Encoding", "identity");
+        return conn;
+    }
+
+    private static void checkLength(long len, long start, long end) throws IOException
+    {
+        if (len != end - start + 1) {
+            throw new IOException("Range " + start + "-" + end + " ended after " + len + " bytes!");
+        }
+    }
+
+    // the file gets its size once instead of growing with each write
+    private static void preallocate(FileChannel target, long length) throws IOException
+    {
+        if (target.size() > length) {
+            target.truncate(length);
+        }
+        else if (target.size() < length) {
+            target.write(ByteBuffer.wrap(new byte[1]), length - 1);
+        }
+    }
+
+    /**
+     * Parses "bytes start-end/total" into { start, end, total }, start and end are -1 for
+     * "bytes * /total" and total is -1 for "*". Returns null if it is invalid.
+     */
+    private static long[] parseContentRange(String value)
+    {
+        if (value == null || ! value.regionMatches(true, 0, "bytes ", 0, 6)) {
+            return null;
+        }
+        try {
+            String spec = value.substring(6).trim();
+            int slash = spec.indexOf('/');
+            if (slash < 0) {
+                return null;
+            }
+            String rangePart = spec.substring(0, slash).trim();
+            String totalPart = spec.substring(slash + 1).trim();
+            long total = "*".equals(totalPart) ? -1 : Long.parseLong(totalPart);
+            if ("*".equals(rangePart)) {
+                return new long[] { -1, -1, total };
+            }
+            int dash = rangePart.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            return new long[] {
+                Long.parseLong(rangePart.substring(0, dash).trim()),
+                Long.parseLong(rangePart.substring(dash + 1).trim()),
+                total,
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        private FileChannel     target;
+
+        Worker(FileChannel target)
+        {
+            this.target = target;
+        }
+
+        public void run()
+        {
+            try {
+                int index;
+                while ((index = takeBlock()) >= 0) {
+                    try {
+                        fetchBlock(target, index);
+                    } catch (Exception e) {
+                        blockFailed(index, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                abort(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Limits the requests in flight per host and in total, so that a burst of callers does not
+ * open hundreds of sockets to one server. Callers beyond the limits wait in a bounded queue,
+ * higher priority first and in arrival order within one priority. A waiting request for a
+ * host at its limit does not hold back those for other hosts.
+ * <p>
+ * A request which would wait longer than its timeout by the average time a slot is held is
+ * rejected at once, so a caller under overload fails fast instead of timing out late.
+ */
+public class NRequestScheduler
+{
+    public static final int     PRIORITY_HIGH = 0;
+    public static final int     PRIORITY_NORMAL = 1;
+    public static final int     PRIORITY_LOW = 2;
+
+    public static final int     DEFAULT_MAX_PER_HOST = 8;
+    public static final int     DEFAULT_MAX_TOTAL = 64;
+    public static final int     DEFAULT_MAX_QUEUE_LENGTH = 256;
+
+    private static final int    PRIORITY_COUNT = 3;
+    private static final int    HOLD_TIME_WEIGHT = 8; // new sample counts 1/8 in the average
+
+    private int                 maxPerHost;
+    private int                 maxTotal;
+    private int                 maxQueueLength;
+
+    private HashMap<String, Integer>    inFlightMap = new HashMap<String, Integer>();
+    private int                         inFlightTotal;
+    // waiters of each priority in arrival order
+    private LinkedList<Waiter>[]        queues;
+    private int                         queueLength;
+
+    // metrics, times in nanoseconds
+    private long                admittedCount;
+    private long                queuedCount;
+    private long                rejectedCount;
+    private long                timeoutCount;
+    private long                totalWaitTime;
+    private long                maxWaitTime;
+    private int                 peakQueueLength;
+    private long                avgHoldTime;
+
+    private static class Waiter
+    {
+        String      key;
+        int         priority;
+        boolean     isGranted;
+
+        Waiter(String key, int priority)
+        {
+            this.key = key;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * A slot taken by acquire(), it shall be released once the request is done.
+     */
+    public static class Permit
+    {
+        private NRequestScheduler   scheduler;  // null when released
+        private String              key;
+        private long                grantedAt;  // System.nanoTime()
+
+        private Permit(NRequestScheduler scheduler, String key, long grantedAt)
+        {
+            this.scheduler = scheduler;
+            this.key = key;
+            this.grantedAt = grantedAt;
+        }
+
+        // returns false if it has already been released
+        public boolean release()
+        {
+            NRequestScheduler owner;
+            synchronized (this) {
+                owner = scheduler;
+                scheduler = null;
+            }
+            if (owner == null) {
+                return false;
+            }
+            owner.release(key, System.nanoTime() - grantedAt);
+            return true;
+        }
+    }
+
+    public NRequestScheduler()
+    {
+        this(DEFAULT_MAX_PER_HOST, DEFAULT_MAX_TOTAL, DEFAULT_MAX_QUEUE_LENGTH);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public NRequestScheduler(int maxPerHost, int maxTotal, int maxQueueLength)
+    {
+        this.maxPerHost = maxPerHost;
+        this.maxTotal = maxTotal;
+        this.maxQueueLength = maxQueueLength;
+        queues = new LinkedList[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            queues[i] = new LinkedList<Waiter>();
+        }
+    }
+
+    public Permit acquire(String key, long timeout) throws Exception
+    {
+        return acquire(key, PRIORITY_NORMAL, timeout);
+    }
+
+    /**
+     * Takes a slot for a request to the key, e.g. "scheme://host:port", waiting at most timeout
+     * milliseconds for one, 0 means no limit.
+     */
+    public synchronized Permit acquire(String key, int priority, long timeout) throws Exception
+    {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        long start = System.nanoTime();
+        if (queueLength == 0 && hasRoom(key)) {
+            addInFlight(key);
+            return grant(key, start, start);
+        }
+        if (queueLength >= maxQueueLength) {
+            rejectedCount++;
+            throw new IOException("Request queue is full!");
+        }
+
+        Waiter waiter = new Waiter(key, priority);
+        queues[priority].addLast(waiter);
+        queueLength++;
+        // others of this priority may be queued for a full host while this one has room
+        dispatch();
+        if (! waiter.isGranted && timeout > 0
+                && estimateWaitTime(waiter) > timeout * NDeadline.NANOS_PER_MILLI) {
+            queues[priority].remove(waiter);
+            queueLength--;
+            rejectedCount++;
+            throw new IOException("Request cannot get a slot before its deadline!");
+        }
+        if (! waiter.isGranted) {
+            queuedCount++;
+            peakQueueLength = Math.max(peakQueueLength, queueLength);
+        }
+
+        long deadline = start + timeout * NDeadline.NANOS_PER_MILLI;
+        while (! waiter.isGranted) {
+            long waitTime = 0;
+            if (timeout > 0) {
+                waitTime = deadline - System.nanoTime();
+                if (waitTime <= 0) {
+                    queues[priority].remove(waiter);
+                    queueLength--;
+                    timeoutCount++;
+                    throw new IOException("Wait for request slot timeout!");
+                }
+            }
+            try {
+                // round up, wait(0) would wait for ever
+                wait((waitTime + NDeadline.NANOS_PER_MILLI - 1) / NDeadline.NANOS_PER_MILLI);
+            } catch (InterruptedException e) {
+                if (! waiter.isGranted) {
+                    queues[priority].remove(waiter);
+                    queueLength--;
+                }
+                else {
+                    release(key, 0);
+                }
+                throw e;
+            }
+        }
+        return grant(key, start, System.nanoTime());
+    }
+
+    // requests in flight in total
+    public synchronized int getInFlightCount()
+    {
+        return inFlightTotal;
+    }
+
+    public synchronized int getInFlightCount(String key)
+    {
+        Integer count = inFlightMap.get(key);
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    public synchronized int getQueueLength()
+    {
+        return queueLength;
+    }
+
+    public synchronized int getPeakQueueLength()
+    {
+        return peakQueueLength;
+    }
+
+    public synchronized long getAdmittedCount()
+    {
+        return admittedCount;
+    }
+
+    // requests which had to wait before they were admitted or timed out
+    public synchronized long getQueuedCount()
+    {
+        return queuedCount;
+    }
+
+    // rejected at once, for a full queue or a deadline which cannot be met
+    public synchronized long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+
+    public synchronized long getTimeoutCount()
+    {
+        return timeoutCount;
+    }
+
+    // average wait of admitted requests in milliseconds, those never queued count with 0
+    public synchronized double getAverageWaitTime()
+    {
+        if (admittedCount == 0) {
+            return 0;
+        }
+        return (double) totalWaitTime / admittedCount / NDeadline.NANOS_PER_MILLI;
+    }
+
+    public synchronized double getMaxWaitTime()
+    {
+        return (double) maxWaitTime / NDeadline.NANOS_PER_MILLI;
+    }
+
+    // moving average of how long a slot is held in milliseconds
+    public synchronized double getAverageHoldTime()
+    {
+        return (double) avgHoldTime / NDeadline.NANOS_PER_MILLI;
+    }
+
+    private synchronized void release(String key, long holdTime)
+    {
+        Integer count = inFlightMap.get(key);
+        if (count == null) {
+            return;
+        }
+        if (count.intValue() <= 1) {
+            inFlightMap.remove(key);
+        }
+        else {
+            inFlightMap.put(key, count.intValue() - 1);
+        }
+        inFlightTotal--;
+        if (holdTime > 0) {
+            avgHoldTime = (avgHoldTime == 0) ? holdTime : avgHoldTime + (holdTime - avgHoldTime) / HOLD_TIME_WEIGHT;
+        }
+        dispatch();
+    }
+
+    // hands free slots to waiters, the first in priority and arrival order whose host has room
+    private void dispatch()
+    {
+        boolean isGranted = false;
+        for (int i = 0; i < PRIORITY_COUNT && inFlightTotal < maxTotal; i++) {
+            Iterator<Waiter> it = queues[i].iterator();
+            while (it.hasNext() && inFlightTotal < maxTotal) {
+                Waiter waiter = it.next();
+                if (hasRoom(waiter.key)) {
+                    it.remove();
+                    queueLength--;
+                    waiter.isGranted = true;
+                    addInFlight(waiter.key);
+                    isGranted = true;
+                }
+            }
+        }
+        if (isGranted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Guesses how long a new waiter would wait: the waiters served before it hold each slot
+     * for the average hold time, by the host limit and by the total limit.
+     */
+    private long estimateWaitTime(Waiter self)
+    {
+        if (avgHoldTime == 0) {
+            // nothing measured yet
+            return 0;
+        }
+        int aheadForHost = 0;
+        int aheadTotal = 0;
+        for (int i = 0; i <= self.priority; i++) {
+            for (Waiter waiter : queues[i]) {
+                if (waiter == self) {
+                    break;
+                }
+                aheadTotal++;
+                if (waiter.key.equals(self.key)) {
+                    aheadForHost++;
+                }
+            }
+        }
+        long rounds = Math.max(aheadForHost / maxPerHost, aheadTotal / maxTotal) + 1;
+        return rounds * avgHoldTime;
+    }
+
+    private boolean hasRoom(String key)
+    {
+        return inFlightTotal < maxTotal && getInFlightCount(key) < maxPerHost;
+    }
+
+    private void addInFlight(String key)
+    {
+        inFlightMap.put(key, getInFlightCount(key) + 1);
+        inFlightTotal++;
+    }
+
+    private Permit grant(String key, long start, long now)
+    {
+        long waitTime = now - start;
+        admittedCount++;
+        totalWaitTime += waitTime;
+        maxWaitTime = Math.max(maxWaitTime, waitTime);
+        return new Permit(this, key, now);
+    }
+
+}
@@ -3,21 +3,22 @@ package net.easycrab.util.nio;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSession;
 
 public class NSSLSocketConnection implements NIOConnection
 {
+    private static final int    FILE_BUFFER_SIZE = 65536; // 64K, the largest size pooled by NBufferPool
+    
     
     private SSLEngine       sslEngine;
     private boolean         handshakeDone;
@@ -27,18 +28,55 @@ public class NSSLSocketConnection implements NIOConnection
     private ByteBuffer      writeNetBuffer;
     private ByteBuffer      writeAppBuffer;
     private ByteBuffer      dummyBuffer = ByteBuffer.allocate(0);
+    private int             appBufferSize;
         
     private SocketChannel       channel;
     private Selector            readSelector;
     private Selector            writeSelector;
 
     private InetSocketAddress   hostAddr;
+    private InetSocketAddress[] hostAddrs;
+    private NTLSClientConfig    tlsConfig;
+    private NIOBufferAllocator  bufferAllocator;
+    private NConnectionListener listener;
+    private NConnectionStats    stats;
+    private String[]            applicationProtocols;
 
     private boolean             onlyCheckBlockTime = true;
     
     public NSSLSocketConnection(InetSocketAddress address)
     {
-        hostAddr = address;
+        this(new InetSocketAddress[] { address }, null);
+    }
+    
+    public NSSLSocketConnection(InetSocketAddress address, NTLSClientConfig config)
+    {
+        this(new InetSocketAddress[] { address }, config);
+    }
+    
+    // all addresses of one host, connect races them and keeps the first one connected
+    public NSSLSocketConnection(InetSocketAddress[] addresses, NTLSClientConfig config)
+    {
+        hostAddr = addresses[0];
+        hostAddrs = addresses;
+        tlsConfig = config;
+    }
+    
+    public SSLSession getSession()
+    {
+        return (sslEngine == null) ? null : sslEngine.getSession();
+    }
+    
+    // protocols offered by ALPN in the order of preference, e.g. "h2", set before connect
+    public void setApplicationProtocols(String[] protocols)
+    {
+        applicationProtocols = protocols;
+    }
+    
+    // protocol chosen by the server through ALPN, null or empty if none was chosen
+    public String getApplicationProtocol()
+    {
+        return (sslEngine == null) ? null : sslEngine.getApplicationProtocol();
     }
 
     public void connect(long timeout) throws Exception
@@ -46,39 +84,36 @@ public class NSSLSocketConnection implements NIOConnection
         initSSLEngine();
         initByteBuffer();
         
-        channel = SocketChannel.open();
-        channel.configureBlocking(false);
-        
-        Selector selector = Selector.open();
-        channel.register(selector, SelectionKey.OP_CONNECT);
-        
-        long tsNow = System.currentTimeMillis();    
-        System.out.println("Try to connect to host:" + hostAddr.toString());
-        channel.connect(hostAddr);
-
-        if (timeout > 0) {
-            selector.select(timeout);
+        long tsStart = 0;
+        if (listener != null) {
+            tsStart = System.nanoTime();
+            listener.connectStart(hostAddr);
+            try {
+                openChannel(timeout);
+            } catch (Exception e) {
+                listener.connectFailed(hostAddr, System.nanoTime() - tsStart, e);
+                throw e;
+            }
+            listener.connectEnd(hostAddr, System.nanoTime() - tsStart);
+            tsStart = System.nanoTime();
+            listener.handshakeStart(hostAddr);
         }
         else {
-            selector.select();
+            openChannel(timeout);
         }
-        selector.close();
-        if (! channel.finishConnect()) {
-            if (System.currentTimeMillis() - tsNow > timeout) {
-                // time out
-                throw new IOException("Connect to " + hostAddr.toString() + " timeout!");
-            }
-            else {
-                throw new IOException("Fail to connect to " + hostAddr.toString() + " !");
-            }
-        }
-        
         
-        System.out.println("----** Begin Handshake Now ... **----");
         handshakeDone = false;
         sslEngine.beginHandshake();
-        processHandshake(timeout);
-        System.out.println("----** Handshake Completed! **----");
+        processHandshake(timeout, NDeadline.start(timeout));
+        if (listener != null) {
+            listener.handshakeEnd(sslEngine.getSession(), System.nanoTime() - tsStart);
+        }
+    }
+    
+    private void openChannel(long timeout) throws Exception
+    {
+        channel = NConnectRacer.connect(hostAddrs, timeout, stats);
+        hostAddr = NConnectRacer.getConnectedAddress(channel, hostAddrs);
     }
     
     public void close() throws Exception
@@ -92,8 +127,20 @@ public class NSSLSocketConnection implements NIOConnection
                 readSelector.close();
                 readSelector = null;
             }
-            System.out.println("----** close SSL Socket Channel **----");
             channel.close();
+            if (listener != null) {
+                listener.connectionClosed(hostAddr, stats);
+            }
+        }
+        if (readAppBuffer != null) {
+            bufferAllocator.release(readAppBuffer);
+            bufferAllocator.release(readNetBuffer);
+            bufferAllocator.release(writeAppBuffer);
+            bufferAllocator.release(writeNetBuffer);
+            readAppBuffer = null;
+            readNetBuffer = null;
+            writeAppBuffer = null;
+            writeNetBuffer = null;
         }
     }
     
@@ -102,6 +149,29 @@ public class NSSLSocketConnection implements NIOConnection
         onlyCheckBlockTime = isOnlyCheckBlockTime;
     }
     
+    public void setBufferAllocator(NIOBufferAllocator allocator)
+    {
+        bufferAllocator = allocator;
+    }
+    
+    public void setListener(NConnectionListener listener)
+    {
+        this.listener = listener;
+        if (listener != null && stats == null) {
+            stats = new NConnectionStats();
+        }
+    }
+    
+    public NConnectionStats getStats()
+    {
+        return stats;
+    }
+    
+    public InetSocketAddress getRemoteAddress()
+    {
+        return hostAddr;
+    }
+    
     public void write(long timeout, byte[] data, int offset, int len) throws Exception
     {
         
@@ -109,22 +179,11 @@ public class NSSLSocketConnection implements NIOConnection
         int offsetNow = offset;
         
         int capacity = writeAppBuffer.capacity();
-        long tsStart = System.currentTimeMillis();  
-        long remainTimeout = timeout;
+        long deadline = NDeadline.start(timeout);
 
         boolean remainDataInBuf = false;
         writeAppBuffer.clear();
         while (remainLen > 0 || remainDataInBuf) {
-            if (timeout > 0) {
-                long passTime = System.currentTimeMillis() - tsStart;
-                if (passTime < timeout) {
-                    remainTimeout = timeout - passTime;
-                }
-                else {
-                    throw new IOException("Write data to outbound timeout!");
-                }
-            }
-            
             if (! remainDataInBuf) {
                 writeAppBuffer.clear();
                 if (remainLen > capacity) {
@@ -141,18 +200,12 @@ public class NSSLSocketConnection implements NIOConnection
             }
             
             writeNetBuffer.clear();
-//            SSLEngineResult result;
-//            result = 
-                    sslEngine.wrap(writeAppBuffer, writeNetBuffer);
+            SSLEngineResult result = sslEngine.wrap(writeAppBuffer, writeNetBuffer);
+            countWrapped(result);
 //            System.out.println("---> Wrapping for Outbound - :" + result);
 
             if (writeNetBuffer.position() > 0) {
-                if (onlyCheckBlockTime) {
-                    flushNetBuffer(timeout);                    
-                }
-                else {
-                    flushNetBuffer(remainTimeout);
-                }
+                flushNetBuffer(timeout, deadline);
             }
 
             remainDataInBuf = writeAppBuffer.hasRemaining();
@@ -183,107 +236,211 @@ public class NSSLSocketConnection implements NIOConnection
         int offsetNow = offset;
         int totalReadLen = 0;
 
-        if (readAppBuffer.hasRemaining()) {
+        long deadline = NDeadline.start(timeout);
+
+        while (remainLen > 0) {
+            if (! readAppBuffer.hasRemaining()) {
+                if (unwrapInboundData(timeout, deadline) < 0) {
+                    throw new IOException("No data is read for unwrap!");
+                }
+            }
+            
             readLen = readFromReaminAppBuffer(data, offsetNow, remainLen);
             offsetNow += readLen;
             remainLen -= readLen;
             totalReadLen += readLen;
+//            System.out.println("------>>> SSLSocket Read, total Now:" + totalReadLen);
+
         }
-        
-        while (remainLen > 0 && readNetBuffer.hasRemaining()) {
-            // try to consume the remain inbound net buffer
-//            System.out.println("------>>> readNetBuffer has remaining!! len:" + readNetBuffer.remaining());
-            readAppBuffer.clear();
-            SSLEngineResult result;
-            result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
-//            System.out.println("------>>> Unwrapping from remain read net buffer - :" + result
-//                    + " readAppBuffer.position(): " + readAppBuffer.position());
-            if (result.getStatus() != Status.OK && result.getStatus() != Status.BUFFER_UNDERFLOW) {
-                throw new IOException("--> Unexpected error for unwrap read net buffer!");
+        return totalReadLen;
+         
+    }
+    
+    public void write(long timeout, ByteBuffer[] srcs) throws Exception
+    {
+        long deadline = NDeadline.start(timeout);
+        while (hasRemaining(srcs)) {
+            // data of several buffers is packed into one record
+            writeNetBuffer.clear();
+            SSLEngineResult result = sslEngine.wrap(srcs, writeNetBuffer);
+            countWrapped(result);
+            if (result.getStatus() == Status.CLOSED) {
+                throw new IOException("Connection was closed, cannot write more!");
             }
-            
-            readAppBuffer.flip();            
-            if (readAppBuffer.hasRemaining()) {
-                readLen = readFromReaminAppBuffer(data, offsetNow, remainLen);
-                offsetNow += readLen;
-                remainLen -= readLen;
-                totalReadLen += readLen;
+            if (writeNetBuffer.position() > 0) {
+                flushNetBuffer(timeout, deadline);
             }
-            
         }
-
-        long tsStart = System.currentTimeMillis();  
-        long remainTimeout = timeout;
-
-        while (remainLen > 0) {
-            if (timeout > 0) {
-                long passTime = System.currentTimeMillis() - tsStart;
-                if (passTime < timeout) {
-                    remainTimeout = timeout - passTime;
-                }
-                else {
-                    throw new IOException("Read data from Inbound timeout!");
+    }
+    
+    private static boolean hasRemaining(ByteBuffer[] buffers)
+    {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public int readAvailable(long timeout, byte[] data, int offset, int len) throws Exception
+    {
+        return readAvailable(timeout, ByteBuffer.wrap(data, offset, len));
+    }
+    
+    public int readAvailable(long timeout, ByteBuffer dst) throws Exception
+    {
+        if (! dst.hasRemaining()) {
+            return 0;
+        }
+        if (! readAppBuffer.hasRemaining()) {
+            if (dst.remaining() >= appBufferSize) {
+                // room for a whole record, e.g. a mapped file window, decrypt straight into it
+                return unwrapInto(timeout, NDeadline.start(timeout), dst);
+            }
+            if (unwrapInboundData(timeout, NDeadline.start(timeout)) < 0) {
+                return -1;
+            }
+        }
+        return drainReadAppBuffer(dst, dst.remaining());
+    }
+    
+    public long transferTo(long timeout, FileChannel target, long position, long count) throws Exception
+    {
+        // data has to be decrypted first, so write it out from readAppBuffer
+        long transferLen = 0;
+        long deadline = NDeadline.start(timeout);
+        while (transferLen < count) {
+            if (! readAppBuffer.hasRemaining()) {
+                if (unwrapInboundData(timeout, deadline) < 0) {
+                    break;
                 }
             }
-            if (onlyCheckBlockTime) {
-                unwrapInboundData(timeout);
+            int oldLimit = readAppBuffer.limit();
+            if (readAppBuffer.remaining() > count - transferLen) {
+                readAppBuffer.limit(readAppBuffer.position() + (int) (count - transferLen));
             }
-            else {
-                unwrapInboundData(remainTimeout);
+            transferLen += target.write(readAppBuffer, position + transferLen);
+            readAppBuffer.limit(oldLimit);
+        }
+        return transferLen;
+    }
+    
+    public void transferFrom(long timeout, FileChannel src, long position, long count) throws Exception
+    {
+        // data has to be encrypted, so the file is read into a pooled buffer and wrapped from there
+        ByteBuffer buffer = bufferAllocator.allocate((int) Math.min(FILE_BUFFER_SIZE, Math.max(count, 1)));
+        ByteBuffer[] srcs = new ByteBuffer[] { buffer };
+        try {
+            long sentLen = 0;
+            while (sentLen < count) {
+                buffer.clear();
+                if (buffer.remaining() > count - sentLen) {
+                    buffer.limit((int) (count - sentLen));
+                }
+                while (buffer.hasRemaining()) {
+                    if (src.read(buffer, position + sentLen + buffer.position()) < 0) {
+                        throw new IOException("File ends before " + count + " bytes are sent!");
+                    }
+                }
+                buffer.flip();
+                sentLen += buffer.remaining();
+                write(timeout, srcs);
             }
-            
-            readLen = readAppBuffer.remaining();
-            if (readLen > remainLen) {
-                readAppBuffer.get(data, offsetNow, remainLen);
-                totalReadLen = remainLen;
-                break;
+        } finally {
+            bufferAllocator.release(buffer);
+        }
+    }
+    
+    private int drainReadAppBuffer(ByteBuffer dst, int maxLen)
+    {
+        int readLen = Math.min(maxLen, readAppBuffer.remaining());
+        int oldLimit = readAppBuffer.limit();
+        readAppBuffer.limit(readAppBuffer.position() + readLen);
+        dst.put(readAppBuffer);
+        readAppBuffer.limit(oldLimit);
+        return readLen;
+    }
+    
+    public boolean isAlive()
+    {
+        if (channel == null || ! channel.isOpen() || ! channel.isConnected()
+                || sslEngine.isInboundDone() || sslEngine.isOutboundDone()) {
+            return false;
+        }
+        if (readAppBuffer.hasRemaining() || readNetBuffer.position() > 0) {
+            // unconsumed data from previous response
+            return false;
+        }
+        
+        try {
+            // channel is non-blocking, so this returns 0 at once if the peer is silent
+            int readLen = readChannel();
+            if (readLen < 0) {
+                return false;
             }
-            else {
-                readAppBuffer.get(data, offsetNow, readLen);
-                offsetNow += readLen;
-                remainLen -= readLen;
-                totalReadLen += readLen;
+            if (readLen > 0) {
+                // may be a close_notify or a late handshake message (e.g. TLS 1.3 session ticket)
+                readNetBuffer.flip();
+                readAppBuffer.clear();
+                SSLEngineResult result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
+                countUnwrapped(result);
+                readNetBuffer.compact();
+                readAppBuffer.flip();
+                runDelegatedTasks();
+                if (result.getStatus() != Status.OK || readAppBuffer.hasRemaining() 
+                        || readNetBuffer.position() > 0) {
+                    return false;
+                }
             }
-//            System.out.println("------>>> SSLSocket Read, total Now:" + totalReadLen);
-
+        } catch (IOException e) {
+            return false;
         }
-        return totalReadLen;
-         
+        return true;
     }
 
-    private void processHandshake(long timeout) throws Exception
+    private void processHandshake(long timeout, long deadline) throws Exception
     {        
         HandshakeStatus hsStatus;
         while (! handshakeDone) {
             hsStatus = sslEngine.getHandshakeStatus();
 //            System.out.println("Current HandshakeStatus -- : " + hsStatus);
             if (hsStatus == HandshakeStatus.NEED_WRAP) {
-                wrapHandshakeData(timeout);
+                wrapHandshakeData(timeout, deadline);
             }
             else if (hsStatus == HandshakeStatus.NEED_UNWRAP) {
-                unwrapHandshakeData(timeout);
+                unwrapHandshakeData(timeout, deadline);
             }
             else if (hsStatus == HandshakeStatus.NEED_TASK) {
-                Runnable runnable;
-                while ((runnable = sslEngine.getDelegatedTask()) != null) {
-                    runnable.run();
-                }
+                runDelegatedTasks();
             }
             else { 
-                // It's NOT_HANDSHAKING
-                System.out.println("Unexpected HandshakeStatus -- : " + hsStatus);
-                break;
+                // NOT_HANDSHAKING before the FINISHED result, e.g. the engine was closed
+                throw new IOException("Unexpected handshake status " + hsStatus + "!");
             }
             
         }
     }
     
-    private void wrapHandshakeData(long timeout) throws Exception
+    private void runDelegatedTasks()
+    {
+        Runnable runnable;
+        while ((runnable = sslEngine.getDelegatedTask()) != null) {
+            runnable.run();
+        }
+    }
+    
+    private void wrapHandshakeData(long timeout, long deadline) throws Exception
     {
         SSLEngineResult result;
         writeNetBuffer.clear();
 
         result = sslEngine.wrap(dummyBuffer, writeNetBuffer);
+        countWrapped(result);
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            // client sends the last flight, e.g. TLS 1.3 or an abbreviated TLS 1.2 handshake
+            handshakeDone = true;
+        }
         Status          status = result.getStatus();
 //        System.out.println("wrapHandshakeData() status: " + status);        
         if (status != Status.OK) {
@@ -299,239 +456,155 @@ public class NSSLSocketConnection implements NIOConnection
             }
         }
         
-        flushNetBuffer(timeout); 
+        flushNetBuffer(timeout, deadline);
 
     }
     
-    private void unwrapHandshakeData(long timeout) throws Exception
+    private void unwrapHandshakeData(long timeout, long deadline) throws Exception
     {
-        boolean unwrapDone = false;
-        boolean previousUnderflow = false;
+        // readNetBuffer stays in fill mode between calls, it may hold data left from previous read
+        boolean needReadMore = (readNetBuffer.position() == 0);
         SSLEngineResult result;
 
-        while (! unwrapDone) {
-            
-            if (previousUnderflow || readNetBuffer.position() == 0) {
-                waitForReadable(timeout);
-                
-                int readLen = channel.read(readNetBuffer);
+        while (true) {
+            if (needReadMore) {
+                int readLen = readChannel();
 //                System.out.println("Handshake: Inbound data read for upwrap. read Len:" + readLen);
                 if (readLen < 0) {
                     throw new IOException("Handshake: No data is read for unwrap!");
                 }
-                
-                if (previousUnderflow) {
-                    previousUnderflow = false;
+                if (readLen == 0) {
+                    waitForReadable(timeout, deadline);
+                    continue;
                 }
-                
             }
             readNetBuffer.flip();
             readAppBuffer.clear();
-
-            do {
-                result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
-//                System.out.println("Unwrapping - :" + result);
-//                System.out.println("------==>1> readNetBuffer remaining count:" + readNetBuffer.remaining());
-                // During an handshake re-negotiation we might need to
-                // perform several unwraps to consume the handshake data.
-            } while (result.getStatus() == SSLEngineResult.Status.OK
-                    && result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP
-                    && result.bytesProduced() == 0);
+            result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
+            countUnwrapped(result);
+            readNetBuffer.compact();
+            readAppBuffer.flip();
+//            System.out.println("Unwrapping - :" + result);
             
             if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
                 handshakeDone = true;
             }
             
-            if (readAppBuffer.position() == 0 && result.getStatus() == Status.OK
-                    && readNetBuffer.hasRemaining()) {
-                result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
-//                System.out.println("Unwrapping -* : " + result);
-                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
-                    handshakeDone = true;
-                }
-            }
-//            System.out.println("------==>2> readNetBuffer remaining count:" + readNetBuffer.remaining());
-
             Status status = result.getStatus();
-            if (status != Status.OK) {
-                switch (status) {
-                case BUFFER_OVERFLOW:
-                    System.out.println("unwrap from inbound (BUFFER_OVERFLOW)");
-//                    throw new IOException("Handshake: unwrap from inbound (BUFFER_OVERFLOW)");
-                case BUFFER_UNDERFLOW:
-                    System.out.println("unwrap from inbound (BUFFER_UNDERFLOW)");
-                    readNetBuffer.compact();
-                    previousUnderflow = true;
-//                    throw new IOException("Handshake: unwrap from inbound (BUFFER_UNDERFLOW)");
-                default:
-                    // do nothing;
-                }
+            if (status == Status.BUFFER_UNDERFLOW) {
+                needReadMore = true;
             }
-            else { 
-                unwrapDone = true;
-                if (! handshakeDone) {
-                    readNetBuffer.compact();
-                }
-
+            else if (status == Status.OK) {
+                break;
+            }
+            else {
+                throw new IOException("Handshake: unwrap from inbound (" + status + ")");
             }
        }
 
     }
     
-    private void waitForReadable(long timeout) throws Exception
+    private void waitForReadable(long timeout, long deadline) throws Exception
     {
         if (readSelector == null) {
             readSelector = Selector.open();
             channel.register(readSelector, SelectionKey.OP_READ);
         }
         
-        long tsNow;  
-        long remainTimeout = timeout;
-        boolean needWait4Readable = true;
-        while (needWait4Readable && readSelector != null && readSelector.isOpen()) {
-            if (timeout > 0) {
-                tsNow = System.currentTimeMillis();  
-                readSelector.select(timeout);
-                long passedTime = System.currentTimeMillis() - tsNow;
-                if (passedTime > remainTimeout) {
-                    throw new IOException("Wait for socket channel READable timeout!");
-                }
-                remainTimeout -= passedTime;
-            }
-            else {
-                readSelector.select();
-            }
-            
-            Set<SelectionKey> selectedKeys = readSelector.selectedKeys();
-            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-            if (keyIterator.hasNext()) {
-                SelectionKey key = keyIterator.next();
-                if (key.isReadable() ) {
-                    needWait4Readable = false;
-                }
-            }
-        }
+        String message = "Wait for socket channel READable timeout!";
+        long waitingTime = NDeadline.waitTime(timeout, deadline, onlyCheckBlockTime, message);
+        countSelect();
+        NDeadline.select(readSelector, waitingTime, message);
     }
 
-    private void waitForWritable(long timeout) throws Exception
+    private void waitForWritable(long timeout, long deadline) throws Exception
     {
         if (writeSelector == null) {
             writeSelector = Selector.open();
             channel.register(writeSelector, SelectionKey.OP_WRITE);
-
         }
         
-        long tsNow;  
-        long remainTimeout = timeout;
-        boolean needWait4Writable = true;
-        while (needWait4Writable && writeSelector != null && writeSelector.isOpen()) {
-            if (timeout > 0) {
-                tsNow = System.currentTimeMillis();  
-                writeSelector.select(timeout);
-                long passedTime = System.currentTimeMillis() - tsNow;
-                if (passedTime > remainTimeout) {
-                    throw new IOException("Wait for socket channel WRITable timeout!");
-                }
-                remainTimeout -= passedTime;
-            }
-            else {
-                writeSelector.select();
-            }
-            
-            Set<SelectionKey> selectedKeys = writeSelector.selectedKeys();
-            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-            if (keyIterator.hasNext()) {
-                SelectionKey key = keyIterator.next();
-                if (key.isWritable() ) {
-                    needWait4Writable = false;
-                }
-            }
-        }
+        String message = "Wait for socket channel WRITable timeout!";
+        long waitingTime = NDeadline.waitTime(timeout, deadline, onlyCheckBlockTime, message);
+        countSelect();
+        NDeadline.select(writeSelector, waitingTime, message);
     }
 
-    private void unwrapInboundData(long timeout) throws Exception
+    private int unwrapInboundData(long timeout, long deadline) throws Exception
     {
-        readNetBuffer.clear();
+        // readAppBuffer is left for draining in any case, so a later read can go on after a timeout
         readAppBuffer.clear();
+        try {
+            return unwrapInto(timeout, deadline, readAppBuffer);
+        } finally {
+            readAppBuffer.flip();
+        }
+    }
 
-        long tsStart = System.currentTimeMillis();  
-        long remainTimeout = timeout;
-
+    private int unwrapInto(long timeout, long deadline, ByteBuffer appBuffer) throws Exception
+    {
+        // unwrap until some application data is available, readNetBuffer stays in fill mode
+        // returns count of unwrapped bytes, or -1 if the peer has closed the connection
+        int startPosition = appBuffer.position();
         int readLen = 0;
-        boolean needReadMore = true;
-        while (needReadMore) {
-            if (timeout > 0) {
-                long passTime = System.currentTimeMillis() - tsStart;
-                if (passTime < timeout) {
-                    remainTimeout = timeout - passTime;
+        boolean needReadMore = (readNetBuffer.position() == 0);
+        while (appBuffer.position() == startPosition) {
+            if (needReadMore) {
+                readLen = readChannel();
+                if (readLen < 0) {
+//                    System.out.println("no data is read for unwrap. count=" + readLen);
+                    return -1;
                 }
-                else {
-                    throw new IOException("Read data from Inbound timeout!");
+//                System.out.println(" **======** data read: " + readLen);
+                if (readLen == 0) {
+                    // try to read first, wait only when nothing has arrived yet
+                    waitForReadable(timeout, deadline);
+                    continue;
                 }
             }
-            if (onlyCheckBlockTime) {
-                waitForReadable(timeout);
+            
+            readNetBuffer.flip();
+            SSLEngineResult result;
+            result = sslEngine.unwrap(readNetBuffer, appBuffer);
+            countUnwrapped(result);
+            readNetBuffer.compact();
+//            System.out.println("Unwrapping from Inbound- :" + result 
+//                    + " readAppBuffer.position(): " + readAppBuffer.position());
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
             }
-            else {
-                waitForReadable(remainTimeout);
+            
+            Status status = result.getStatus();
+            if (status == Status.BUFFER_UNDERFLOW) {
+                needReadMore = true;
             }
-
-            readLen = channel.read(readNetBuffer);
-            if (readLen < 0) {
-//                System.out.println("no data is read for unwrap. count=" + readLen);
-                throw new IOException("No data is read for unwrap!");
+            else if (status == Status.OK) {
+                // a record without application data (e.g. session ticket) may be consumed
+                needReadMore = (readNetBuffer.position() == 0);
             }
-//            System.out.println(" **======** data read: " + readLen);
-            if (readLen > 0) {
-                readNetBuffer.flip();
-                
-                SSLEngineResult result;
-                result = sslEngine.unwrap(readNetBuffer, readAppBuffer);
-//                System.out.println("Unwrapping from Inbound- :" + result 
-//                        + " readAppBuffer.position(): " + readAppBuffer.position());
-                if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
-                    needReadMore = true;
-                    readNetBuffer.compact();
-                }
-                else {
-                    needReadMore = false;
-                }
-                
+            else if (status == Status.CLOSED) {
+                // close_notify from peer
+                return -1;
+            }
+            else {
+                throw new IOException("Unexpected status for unwrap inbound data: " + status);
             }
-            
         }
-        readAppBuffer.flip();
-        readLen = readAppBuffer.remaining();
-//        System.out.println("------==>>> Unwrapp result len : " + readLen);        
-//        System.out.println("------==>>> readNetBuffer remaining count:" + readNetBuffer.remaining());
+        return appBuffer.position() - startPosition;
     }
     
     private void initSSLEngine() throws Exception
     {
-        // Create a trust manager that does not validate certificate chains
-        javax.net.ssl.TrustManager[] trustAllCerts = new javax.net.ssl.TrustManager[] {
-                new javax.net.ssl.X509TrustManager() {
-                    public java.security.cert.X509Certificate[] getAcceptedIssuers()
-                    {
-                        return new java.security.cert.X509Certificate[] {};
-                    }
-
-                    public void checkClientTrusted(java.security.cert.X509Certificate[] chain, String authType)
-                            throws java.security.cert.CertificateException
-                    {
-                    }
-
-                    public void checkServerTrusted(java.security.cert.X509Certificate[] chain, String authType)
-                            throws java.security.cert.CertificateException
-                    {
-                    }
-                } };
-
-        // Install the all-trusting trust manager
-        SSLContext sslContext = SSLContext.getInstance("SSL");
-        sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
-        sslEngine = sslContext.createSSLEngine();
-        sslEngine.setUseClientMode(true);
+        if (tlsConfig == null) {
+            tlsConfig = NTLSClientConfig.getDefault();
+        }
+        // bind the engine to the peer, so the shared context can resume an earlier session
+        sslEngine = tlsConfig.createEngine(hostAddr.getHostString(), hostAddr.getPort());
+        if (applicationProtocols != null) {
+            SSLParameters params = sslEngine.getSSLParameters();
+            params.setApplicationProtocols(applicationProtocols);
+            sslEngine.setSSLParameters(params);
+        }
 
     }
     
@@ -539,41 +612,62 @@ public class NSSLSocketConnection implements NIOConnection
     {
         SSLSession session = sslEngine.getSession();
         int appBufMaxSize = session.getApplicationBufferSize();
+        appBufferSize = appBufMaxSize;
         int packBufMaxSize = session.getPacketBufferSize();
-        readAppBuffer = ByteBuffer.allocate(appBufMaxSize);
-        readNetBuffer = ByteBuffer.allocate(packBufMaxSize);
-        writeAppBuffer = ByteBuffer.allocate(appBufMaxSize);
-        writeNetBuffer = ByteBuffer.allocate(packBufMaxSize);   
+        if (bufferAllocator == null) {
+            bufferAllocator = NBufferPool.getDefault();
+        }
+        readAppBuffer = bufferAllocator.allocate(appBufMaxSize);
+        readNetBuffer = bufferAllocator.allocate(packBufMaxSize);
+        writeAppBuffer = bufferAllocator.allocate(appBufMaxSize);
+        writeNetBuffer = bufferAllocator.allocate(packBufMaxSize);
+        readAppBuffer.flip(); // nothing unwrapped yet
    }
     
-    private void flushNetBuffer(long timeout) throws Exception
+    private int readChannel() throws IOException
+    {
+        int readLen = channel.read(readNetBuffer);
+        if (stats != null) {
+            stats.onRead(readLen);
+        }
+        return readLen;
+    }
+    
+    private void countSelect()
+    {
+        if (stats != null) {
+            stats.onSelect();
+        }
+    }
+    
+    // one wrap makes at most one record and one unwrap consumes at most one
+    private void countWrapped(SSLEngineResult result)
+    {
+        if (stats != null && result.bytesProduced() > 0) {
+            stats.onRecordWritten();
+        }
+    }
+    
+    private void countUnwrapped(SSLEngineResult result)
+    {
+        if (stats != null && result.bytesConsumed() > 0) {
+            stats.onRecordRead();
+        }
+    }
+    
+    private void flushNetBuffer(long timeout, long deadline) throws Exception
     {        
         writeNetBuffer.flip();
-        long tsNow;
-        long remainTimeout = timeout;
-//        int sendLen;
-        while (writeNetBuffer.hasRemaining()) {
-            tsNow = System.currentTimeMillis();
-            if (onlyCheckBlockTime) {
-                waitForWritable(timeout);
+        while (true) {
+            int sendLen = channel.write(writeNetBuffer);
+            if (stats != null) {
+                stats.onWrite(sendLen);
             }
-            else {
-                waitForWritable(remainTimeout);
-            }
-//            System.out.println("Before output - writeNetBuffer.remaining()=" + writeNetBuffer.remaining());
-//            sendLen = 
-                    channel.write(writeNetBuffer);
-//            System.out.println("After output - : writeNetBuffer.remaining()=" + writeNetBuffer.remaining() 
-//            + " sendLength=" + sendLen);
-            if (writeNetBuffer.hasRemaining()) {
-                if (timeout > 0) {
-                    long passTime = System.currentTimeMillis() - tsNow;
-                    if (passTime >= remainTimeout) {
-                        throw new IOException("Flush Outbound Data timeout!");
-                    }
-                    remainTimeout -= passTime;
-                }
+            if (! writeNetBuffer.hasRemaining()) {
+                break;
             }
+            // socket buffer is full
+            waitForWritable(timeout, deadline);
         }
               
     }
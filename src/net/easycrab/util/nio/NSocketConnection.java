@@ -4,16 +4,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
 
 
 public class NSocketConnection implements NIOConnection
 {
-    private final int           BUFFER_CAPACITY = 256;
+    private final int           BUFFER_CAPACITY = 8192; // 8K
     
     private SocketChannel       channel;
     private ByteBuffer          readBuf;
@@ -21,46 +20,54 @@ public class NSocketConnection implements NIOConnection
     private Selector            readSelector;
     private Selector            writeSelector;
     private boolean             onlyCheckBlockTime = true;
+    private NIOBufferAllocator  bufferAllocator;
+    private NConnectionListener listener;
+    private NConnectionStats    stats;
     
     private InetSocketAddress   hostAddr;
+    private InetSocketAddress[] hostAddrs;
     
     public NSocketConnection(InetSocketAddress address)
     {
         hostAddr = address;
+        hostAddrs = new InetSocketAddress[] { address };
+    }
+    
+    // all addresses of one host, connect races them and keeps the first one connected
+    public NSocketConnection(InetSocketAddress[] addresses)
+    {
+        hostAddr = addresses[0];
+        hostAddrs = addresses;
     }
     
     public void connect(long timeout) throws Exception
     {
-        channel = SocketChannel.open();
-        channel.configureBlocking(false);
-        
-        Selector selector = Selector.open();
-        channel.register(selector, SelectionKey.OP_CONNECT);
-        
-        long tsNow = System.currentTimeMillis();        
-        channel.connect(hostAddr);
-        if (timeout > 0) {
-            selector.select(timeout);
-        }
-        else {
-            selector.select();
+        if (listener == null) {
+            openChannel(timeout);
+            return;
         }
-        if (channel.finishConnect()) {
-            selector.close();
-            readBuf = ByteBuffer.allocate(BUFFER_CAPACITY);
-            writeBuf = ByteBuffer.allocate(BUFFER_CAPACITY);
+        
+        long tsStart = System.nanoTime();
+        listener.connectStart(hostAddr);
+        try {
+            openChannel(timeout);
+        } catch (Exception e) {
+            listener.connectFailed(hostAddr, System.nanoTime() - tsStart, e);
+            throw e;
         }
-        else {
-            selector.close();
-            if (System.currentTimeMillis() - tsNow > timeout) {
-                // time out
-                throw new IOException("Connect to " + hostAddr.toString() + " timeout!");
-            }
-            else {
-                throw new IOException("Fail to connect to " + hostAddr.toString() + " !");
-            }
+        listener.connectEnd(hostAddr, System.nanoTime() - tsStart);
+    }
+    
+    private void openChannel(long timeout) throws Exception
+    {
+        channel = NConnectRacer.connect(hostAddrs, timeout, stats);
+        hostAddr = NConnectRacer.getConnectedAddress(channel, hostAddrs);
+        if (bufferAllocator == null) {
+            bufferAllocator = NBufferPool.getDefault();
         }
-        
+        readBuf = bufferAllocator.allocate(BUFFER_CAPACITY);
+        readBuf.flip(); // nothing read yet
+        writeBuf = bufferAllocator.allocate(BUFFER_CAPACITY);
     }
     
     public void close() throws Exception
@@ -73,6 +80,15 @@ public class NSocketConnection implements NIOConnection
                 readSelector.close();
             }
             channel.close();
+            if (listener != null) {
+                listener.connectionClosed(hostAddr, stats);
+            }
+        }
+        if (readBuf != null) {
+            bufferAllocator.release(readBuf);
+            bufferAllocator.release(writeBuf);
+            readBuf = null;
+            writeBuf = null;
         }
     }
     
@@ -81,84 +97,238 @@ public class NSocketConnection implements NIOConnection
         onlyCheckBlockTime = isOnlyCheckBlockTime;
     }
     
-    public void write(long timeout, byte[] data, int offset, int len) throws Exception
+    public void setBufferAllocator(NIOBufferAllocator allocator)
     {
-        if (writeSelector == null) {
-            writeSelector = Selector.open();
-            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        bufferAllocator = allocator;
+    }
+    
+    public void setListener(NConnectionListener listener)
+    {
+        this.listener = listener;
+        if (listener != null && stats == null) {
+            stats = new NConnectionStats();
         }
-
+    }
+    
+    public NConnectionStats getStats()
+    {
+        return stats;
+    }
+    
+    public InetSocketAddress getRemoteAddress()
+    {
+        return hostAddr;
+    }
+    
+    public boolean isAlive()
+    {
+        if (channel == null || ! channel.isOpen() || ! channel.isConnected()) {
+            return false;
+        }
+        if (readBuf.hasRemaining()) {
+            // unconsumed data from previous response
+            return false;
+        }
+        
+        int readLen;
+        try {
+            // channel is non-blocking, so this returns 0 at once if the peer is silent
+            readBuf.clear();
+            readLen = readChannel(readBuf);
+            readBuf.flip();
+        } catch (IOException e) {
+            return false;
+        }
+        // -1 means the peer has closed, any data means the stream is out of sync
+        return readLen == 0;
+    }
+    
+    public void write(long timeout, byte[] data, int offset, int len) throws Exception
+    {
+        // stage the data in the direct buffer, so the JDK need not copy it once more
+        ByteBuffer[] srcs = new ByteBuffer[] { writeBuf };
+        long deadline = NDeadline.start(timeout);
         int remainLen = len;
         int offsetNow = offset;
-        long tsNow;  
-        long remainTimeout = timeout;
-        long waitingTime;
-
-        writeBuf.clear();
-        writeBuf.flip();
-        while (remainLen > 0 || writeBuf.hasRemaining()) {
-            tsNow = System.currentTimeMillis();  
-            if (timeout > 0) {
-                if (onlyCheckBlockTime) {
-                    waitingTime = timeout;
-                }
-                else {
-                    waitingTime = remainTimeout;
-                }
-                writeSelector.select(waitingTime);
-                long passTime = System.currentTimeMillis() - tsNow;
-                if (passTime >= waitingTime) {
-                    // time out
-                    throw new IOException("Wait for connection writable timeout!");
-                }
-                remainTimeout -= passTime;
+        while (remainLen > 0) {
+            int chunkLen = Math.min(remainLen, writeBuf.capacity());
+            writeBuf.clear();
+            writeBuf.put(data, offsetNow, chunkLen);
+            writeBuf.flip();
+            offsetNow += chunkLen;
+            remainLen -= chunkLen;
+            writeFully(timeout, deadline, srcs);
+        }
+    }
+    
+    public void write(long timeout, ByteBuffer[] srcs) throws Exception
+    {
+        writeFully(timeout, NDeadline.start(timeout), srcs);
+    }
+    
+    private void writeFully(long timeout, long deadline, ByteBuffer[] srcs) throws Exception
+    {
+        int index = 0;
+        while (true) {
+            while (index < srcs.length && ! srcs[index].hasRemaining()) {
+                index++;
             }
-            else {
-                writeSelector.select();
+            if (index == srcs.length) {
+                break;
             }
-            
-            Set<SelectionKey> selectedKeys = writeSelector.selectedKeys();
-            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-            if (keyIterator.hasNext()) {
-                SelectionKey key = keyIterator.next();
-                if (key.isWritable() ) {
-                    if (! writeBuf.hasRemaining()) {
-                        writeBuf.clear();
-                        if (remainLen > BUFFER_CAPACITY) {
-                            writeBuf.put(data, offsetNow, BUFFER_CAPACITY);
-                            offsetNow += BUFFER_CAPACITY;
-                            remainLen -= BUFFER_CAPACITY;
-                        }
-                        else {
-                            writeBuf.put(data, offsetNow, remainLen);
-                            remainLen = 0; 
-                        }
-                        writeBuf.flip();
-                    }
-                    
-                    channel.write(writeBuf);
+            // one gathering write for all buffers, wait only when the socket buffer is full
+            long writeLen = channel.write(srcs, index, srcs.length - index);
+            if (stats != null) {
+                stats.onWrite(writeLen);
+            }
+            if (writeLen == 0) {
+                waitForWritable(timeout, deadline);
+            }
+        }
+    }
+    
+    public int readAvailable(long timeout, byte[] data, int offset, int len) throws Exception
+    {
+        // read straight into the caller's array, no need to stage it in readBuf
+        return readAvailable(timeout, ByteBuffer.wrap(data, offset, len));
+    }
+    
+    public int readAvailable(long timeout, ByteBuffer dst) throws Exception
+    {
+        if (! dst.hasRemaining()) {
+            return 0;
+        }
+        if (readBuf.hasRemaining()) {
+            return drainReadBuf(dst, dst.remaining());
+        }
+        
+        long deadline = NDeadline.start(timeout);
+        int readLen;
+        while ((readLen = readChannel(dst)) == 0) {
+            waitForReadable(timeout, deadline);
+        }
+        return readLen;
+    }
+    
+    public long transferTo(long timeout, FileChannel target, long position, long count) throws Exception
+    {
+        // the position shall not be beyond the end of the file, transferFrom() does nothing there
+        long transferLen = 0;
+        long deadline = NDeadline.start(timeout);
+        while (transferLen < count) {
+            if (readBuf.hasRemaining()) {
+                int oldLimit = readBuf.limit();
+                if (readBuf.remaining() > count - transferLen) {
+                    readBuf.limit(readBuf.position() + (int) (count - transferLen));
                 }
+                transferLen += target.write(readBuf, position + transferLen);
+                readBuf.limit(oldLimit);
+                continue;
             }
             
+            // let the file channel pull data from socket, no copy into java heap
+            long len = target.transferFrom(channel, position + transferLen, count - transferLen);
+            if (stats != null) {
+                stats.onRead(len);
+            }
+            if (len > 0) {
+                transferLen += len;
+                continue;
+            }
+            
+            // transferFrom() cannot tell end of stream from no data, so probe it by a plain read
+            readBuf.clear();
+            int readLen = readChannel(readBuf);
+            readBuf.flip();
+            if (readLen < 0) {
+                break;
+            }
+            if (readLen == 0) {
+                waitForReadable(timeout, deadline);
+            }
         }
-              
+        return transferLen;
     }
     
-    public int read(long timeout, byte[] data, int offset, int len) throws Exception
+    public void transferFrom(long timeout, FileChannel src, long position, long count) throws Exception
+    {
+        // transferTo() returns 0 at the end of the file as well as on a full socket buffer
+        if (position + count > src.size()) {
+            throw new IOException("File ends before " + count + " bytes are sent!");
+        }
+        long sentLen = 0;
+        long deadline = NDeadline.start(timeout);
+        while (sentLen < count) {
+            // sendfile where the platform has it, the data never enters java heap or a buffer
+            long len = src.transferTo(position + sentLen, count - sentLen, channel);
+            if (stats != null) {
+                stats.onWrite(len);
+            }
+            if (len == 0) {
+                waitForWritable(timeout, deadline);
+            }
+            sentLen += len;
+        }
+    }
+    
+    private int drainReadBuf(ByteBuffer dst, int maxLen)
+    {
+        int readLen = Math.min(maxLen, readBuf.remaining());
+        int oldLimit = readBuf.limit();
+        readBuf.limit(readBuf.position() + readLen);
+        dst.put(readBuf);
+        readBuf.limit(oldLimit);
+        return readLen;
+    }
+    
+    private int readChannel(ByteBuffer dst) throws IOException
+    {
+        int readLen = channel.read(dst);
+        if (stats != null) {
+            stats.onRead(readLen);
+        }
+        return readLen;
+    }
+    
+    private void countSelect()
+    {
+        if (stats != null) {
+            stats.onSelect();
+        }
+    }
+    
+    private void waitForReadable(long timeout, long deadline) throws Exception
     {
         if (readSelector == null) {
             readSelector = Selector.open();
             channel.register(readSelector, SelectionKey.OP_READ);
         }
         
+        String message = "Wait for connection readable timeout!";
+        long waitingTime = NDeadline.waitTime(timeout, deadline, onlyCheckBlockTime, message);
+        countSelect();
+        NDeadline.select(readSelector, waitingTime, message);
+    }
+    
+    private void waitForWritable(long timeout, long deadline) throws Exception
+    {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        
+        String message = "Wait for connection writable timeout!";
+        long waitingTime = NDeadline.waitTime(timeout, deadline, onlyCheckBlockTime, message);
+        countSelect();
+        NDeadline.select(writeSelector, waitingTime, message);
+    }
+    
+    public int read(long timeout, byte[] data, int offset, int len) throws Exception
+    {
         int remainLen = len;
         int offsetNow = offset;
         int totalReadLen = 0;
         
-        long tsStart;        
-        long remainTimeout = timeout;
-        long waitingTime;
-
         if (readBuf.hasRemaining()) {
             int previousRemainLen = readBuf.remaining();
             if (previousRemainLen > remainLen) {
@@ -175,56 +345,31 @@ public class NSocketConnection implements NIOConnection
 
         }
 
+        // try to read first, wait only when nothing has arrived yet
+        long deadline = NDeadline.start(timeout);
         while (remainLen > 0) {
-            if (timeout > 0) {
-                if (onlyCheckBlockTime) {
-                    waitingTime = timeout;
-                }
-                else {
-                    waitingTime = remainTimeout;
-                }
-                tsStart = System.currentTimeMillis();    
-                readSelector.select(waitingTime);
-                long passTime = System.currentTimeMillis() - tsStart;
-                if (passTime >= waitingTime) {
-                    // time out
-                    throw new IOException("Wait for connection readable timeout!");
-                }
-                remainTimeout -= passTime;
+            readBuf.clear();
+            int readLen = readChannel(readBuf);
+            readBuf.flip();
+
+            if (readLen == -1) {
+                // the read channel is not available now?
+                throw new IOException("Cannot read more from the connection!");
             }
-            else {
-                readSelector.select();
+            else if (readLen == 0) {
+                waitForReadable(timeout, deadline);
             }
-            
-            Set<SelectionKey> selectedKeys = readSelector.selectedKeys();
-            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-            if (keyIterator.hasNext()) {
-                SelectionKey key = keyIterator.next();
-                if (key.isReadable() ) {
-                    readBuf.clear();
-                    int readLen = channel.read(readBuf);
-        
-                    if (readLen == -1) {
-                        // the read channel is not available now?
-                        throw new IOException("Cannot read more from the connection!");
-                    }
-                    else if (readLen > 0) {
-                        readBuf.flip();
-                        if (readLen >= remainLen) {
-                            readBuf.get(data, offsetNow, remainLen);
-                            totalReadLen += remainLen;
-                            break;
-                        }
-                        else {
-                            readBuf.get(data, offsetNow, readLen);
-                            offsetNow += readLen;
-                            remainLen -= readLen;
-                            totalReadLen += readLen;
-                        }
-                    }
-                }
+            else if (readLen >= remainLen) {
+                readBuf.get(data, offsetNow, remainLen);
+                totalReadLen += remainLen;
+                break;
+            }
+            else {
+                readBuf.get(data, offsetNow, readLen);
+                offsetNow += readLen;
+                remainLen -= readLen;
+                totalReadLen += readLen;
             }
-
         }
         return totalReadLen;
          
@@ -0,0 +1,155 @@
+package net.easycrab.util.nio;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Reusable TLS client setting. One SSLContext is shared by all connections created from it,
+ * and engines are bound to the peer host and port, so the client session cache of the context
+ * can resume earlier sessions instead of doing a full handshake.
+ */
+public class NTLSClientConfig
+{
+    public static final int         DEFAULT_SESSION_CACHE_SIZE = 1024;
+    public static final int         DEFAULT_SESSION_TIMEOUT = 3600; // in seconds
+
+    private static NTLSClientConfig defaultConfig;
+
+    private SSLContext              sslContext;
+    private String[]                enabledProtocols;
+    private String[]                enabledCipherSuites;
+
+    public NTLSClientConfig(SSLContext context)
+    {
+        sslContext = context;
+    }
+
+    /**
+     * The config used by connections which are not given one. Like before, it accepts any
+     * server certificate.
+     */
+    public static synchronized NTLSClientConfig getDefault() throws Exception
+    {
+        if (defaultConfig == null) {
+            defaultConfig = createTrustAllConfig();
+        }
+        return defaultConfig;
+    }
+
+    public static synchronized void setDefault(NTLSClientConfig config)
+    {
+        defaultConfig = config;
+    }
+
+    public static NTLSClientConfig createTrustAllConfig() throws Exception
+    {
+        // Create a trust manager that does not validate certificate chains
+        javax.net.ssl.TrustManager[] trustAllCerts = new javax.net.ssl.TrustManager[] {
+                new javax.net.ssl.X509TrustManager() {
+                    public java.security.cert.X509Certificate[] getAcceptedIssuers()
+                    {
+                        return new java.security.cert.X509Certificate[] {};
+                    }
+
+                    public void checkClientTrusted(java.security.cert.X509Certificate[] chain, String authType)
+                            throws java.security.cert.CertificateException
+                    {
+                    }
+
+                    public void checkServerTrusted(java.security.cert.X509Certificate[] chain, String authType)
+                            throws java.security.cert.CertificateException
+                    {
+                    }
+                } };
+
+        // Install the all-trusting trust manager
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustAllCerts, new java.security.SecureRandom());
+        NTLSClientConfig config = new NTLSClientConfig(context);
+        config.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        config.setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+        return config;
+    }
+
+    public SSLContext getSSLContext()
+    {
+        return sslContext;
+    }
+
+    // max count of cached sessions, 0 means no limit
+    public void setSessionCacheSize(int size)
+    {
+        getSessionContext().setSessionCacheSize(size);
+    }
+
+    public int getSessionCacheSize()
+    {
+        return getSessionContext().getSessionCacheSize();
+    }
+
+    // in seconds, 0 means no limit
+    public void setSessionTimeout(int seconds)
+    {
+        getSessionContext().setSessionTimeout(seconds);
+    }
+
+    public int getSessionTimeout()
+    {
+        return getSessionContext().getSessionTimeout();
+    }
+
+    public SSLSessionContext getSessionContext()
+    {
+        return sslContext.getClientSessionContext();
+    }
+
+    public void setEnabledProtocols(String[] protocols)
+    {
+        enabledProtocols = protocols;
+    }
+
+    public void setEnabledCipherSuites(String[] cipherSuites)
+    {
+        enabledCipherSuites = cipherSuites;
+    }
+
+    /**
+     * Creates a client mode engine. The peer host and port are the key for session resumption.
+     */
+    public SSLEngine createEngine(String peerHost, int peerPort)
+    {
+        SSLEngine engine = sslContext.createSSLEngine(peerHost, peerPort);
+        engine.setUseClientMode(true);
+        if (enabledProtocols != null) {
+            engine.setEnabledProtocols(enabledProtocols);
+        }
+        if (enabledCipherSuites != null) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return engine;
+    }
+
+    /**
+     * Layers a client mode TLS socket over a connected socket, closing the TLS socket closes
+     * the plain one too. Sessions are resumed in the same way as for engines.
+     */
+    public SSLSocket createSocket(Socket plainSocket, String peerHost, int peerPort) throws IOException
+    {
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(plainSocket, peerHost,
+                peerPort, true);
+        socket.setUseClientMode(true);
+        if (enabledProtocols != null) {
+            socket.setEnabledProtocols(enabledProtocols);
+        }
+        if (enabledCipherSuites != null) {
+            socket.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return socket;
+    }
+
+}
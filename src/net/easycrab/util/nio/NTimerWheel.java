@@ -0,0 +1,197 @@
+package net.easycrab.util.nio;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel on System.nanoTime(). Each slot holds the timers of one tick, a timer
+ * further away than one turn of the wheel waits the remaining turns in its slot. Adding and
+ * cancelling a timer are O(1), expire() only visits the slots of the ticks passed. It is not
+ * thread safe, the owner thread (e.g. an NIOEventLoop) shall do all calls.
+ */
+public class NTimerWheel
+{
+    public static final long    DEFAULT_TICK = 10; // 10 ms
+    public static final int     DEFAULT_SLOT_COUNT = 512;
+
+    private static final long   NANOS_PER_MILLI = 1000000;
+
+    private long                tickNanos;
+    private Timer[]             slots;
+    private int                 mask;
+    private long                startTime;
+    private long                nextTick;   // the first tick not expired yet
+    private int                 timerCount;
+    private ArrayList<Timer>    expiredTimers = new ArrayList<Timer>();
+    private Thread.UncaughtExceptionHandler exceptionHandler;
+
+    public static class Timer
+    {
+        private Runnable        task;
+        private long            remainingTurns;
+        private int             slot;
+        private Timer           prev;
+        private Timer           next;
+        private NTimerWheel     wheel;  // null when expired or cancelled
+
+        private Timer(Runnable task)
+        {
+            this.task = task;
+        }
+
+        // returns false if the timer has already expired or been cancelled
+        public boolean cancel()
+        {
+            if (wheel == null) {
+                return false;
+            }
+            wheel.unlink(this);
+            return true;
+        }
+
+        public boolean isPending()
+        {
+            return wheel != null;
+        }
+    }
+
+    public NTimerWheel()
+    {
+        this(DEFAULT_TICK, DEFAULT_SLOT_COUNT);
+    }
+
+    // the slot count is rounded up to a power of two
+    public NTimerWheel(long tickMillis, int slotCount)
+    {
+        tickNanos = Math.max(1, tickMillis) * NANOS_PER_MILLI;
+        int size = 1;
+        while (size < slotCount) {
+            size <<= 1;
+        }
+        slots = new Timer[size];
+        mask = size - 1;
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Runs the task after the delay, at the first expire() call of a tick at or after it.
+     */
+    public Timer schedule(Runnable task, long delayMillis)
+    {
+        long deadline = System.nanoTime() + Math.max(0, delayMillis) * NANOS_PER_MILLI;
+        // the first tick which starts at or after the deadline
+        long tick = (deadline - startTime + tickNanos - 1) / tickNanos;
+        if (tick < nextTick) {
+            tick = nextTick;
+        }
+
+        Timer timer = new Timer(task);
+        timer.remainingTurns = (tick - nextTick) / slots.length;
+        timer.slot = (int) (tick & mask);
+        timer.wheel = this;
+        timer.next = slots[timer.slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[timer.slot] = timer;
+        timerCount++;
+        return timer;
+    }
+
+    /**
+     * Gets what a task throws, the default handler of Thread is used if not set. Without any
+     * handler the failure is dropped.
+     */
+    public void setExceptionHandler(Thread.UncaughtExceptionHandler handler)
+    {
+        exceptionHandler = handler;
+    }
+
+    public int size()
+    {
+        return timerCount;
+    }
+
+    /**
+     * Runs the tasks of all timers whose tick has passed, returns the count of them.
+     */
+    public int expire(long tsNow)
+    {
+        long nowTick = (tsNow - startTime) / tickNanos;
+        while (nextTick <= nowTick && timerCount > 0) {
+            Timer timer = slots[(int) (nextTick & mask)];
+            while (timer != null) {
+                Timer nextTimer = timer.next;
+                if (timer.remainingTurns <= 0) {
+                    unlink(timer);
+                    expiredTimers.add(timer);
+                }
+                else {
+                    timer.remainingTurns--;
+                }
+                timer = nextTimer;
+            }
+            nextTick++;
+        }
+        if (timerCount == 0 && nextTick <= nowTick) {
+            // nothing waits, so the empty ticks need no visit
+            nextTick = nowTick + 1;
+        }
+
+        // tasks may add or cancel timers, so they run after the slots are left
+        int count = expiredTimers.size();
+        for (int i = 0; i < count; i++) {
+            try {
+                expiredTimers.get(i).task.run();
+            } catch (RuntimeException e) {
+                // a broken task shall not stop the others
+                reportTaskError(exceptionHandler, e);
+            }
+        }
+        expiredTimers.clear();
+        return count;
+    }
+
+    static void reportTaskError(Thread.UncaughtExceptionHandler handler, RuntimeException e)
+    {
+        if (handler == null) {
+            handler = Thread.getDefaultUncaughtExceptionHandler();
+        }
+        if (handler != null) {
+            handler.uncaughtException(Thread.currentThread(), e);
+        }
+    }
+
+    /**
+     * Returns the nanoseconds until the next tick holding a timer, or -1 if there is no timer.
+     * A timer waiting more turns still needs its slot visited, so its tick counts as well.
+     */
+    public long getDelayNanos(long tsNow)
+    {
+        if (timerCount == 0) {
+            return -1;
+        }
+        long tick = nextTick;
+        for (int i = 0; i < slots.length && slots[(int) (tick & mask)] == null; i++) {
+            tick++;
+        }
+        return Math.max(0, startTime + tick * tickNanos - tsNow);
+    }
+
+    private void unlink(Timer timer)
+    {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        }
+        else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.wheel = null;
+        timerCount--;
+    }
+
+}